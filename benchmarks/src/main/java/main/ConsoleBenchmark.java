@@ -0,0 +1,68 @@
+package main;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.PrintStream;
+import java.io.UnsupportedEncodingException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmark of the console log path of the {@link UploaderTask}: FTP commands and replies
+ * printed through the UTF-8 {@link PrintStream} into the {@link ConsoleBuffer},
+ * and drained from it in bulk, as the JavaFX Application Thread does.
+ * The score is lines per millisecond.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+public class ConsoleBenchmark {
+    private static final int consoleBufferSize = 1 << 20;
+    private static final int linesPerDrain = 64;
+    private static final String[] lines = {
+            "PASV",
+            "227 Entering Passive Mode (127,0,0,1,195,80).",
+            "STOR report-2017-04-01.csv",
+            "150 File status okay; about to open data connection.",
+            "226 Transfer complete.",
+            "Uploading file \"résumé.pdf\"..."
+    };
+    private ConsoleBuffer consoleBuffer;
+    private PrintStream printStream;
+
+    /**
+     * Creates the {@link ConsoleBuffer} and the {@link PrintStream} into it, as newPrintStream() does,
+     * without a drain scheduler, since the benchmark drains itself.
+     * @throws UnsupportedEncodingException Never, UTF-8 is always supported.
+     */
+    @Setup
+    public void setUp() throws UnsupportedEncodingException {
+        consoleBuffer = new ConsoleBuffer(consoleBufferSize, null);
+        printStream = new PrintStream(consoleBuffer, true, "UTF-8");
+    }
+
+    /**
+     * Prints a batch of lines and drains them, like the console between two pulses of the JavaFX Application Thread.
+     * @return  Drained text, so the work is not optimized away.
+     */
+    @Benchmark
+    @OperationsPerInvocation(linesPerDrain)
+    public String printAndDrain() {
+        for(int i = 0; i < linesPerDrain; i++) {
+            printStream.println(lines[i%lines.length]);
+        }
+        return consoleBuffer.drain();
+    }
+}
@@ -0,0 +1,159 @@
+package main;
+
+import org.apache.commons.lang3.SystemUtils;
+import org.apache.ftpserver.ConnectionConfigFactory;
+import org.apache.ftpserver.DataConnectionConfigurationFactory;
+import org.apache.ftpserver.FtpServer;
+import org.apache.ftpserver.FtpServerFactory;
+import org.apache.ftpserver.ftplet.Authority;
+import org.apache.ftpserver.ftplet.DefaultFtplet;
+import org.apache.ftpserver.ftplet.FtpException;
+import org.apache.ftpserver.ftplet.FtpRequest;
+import org.apache.ftpserver.ftplet.FtpSession;
+import org.apache.ftpserver.ftplet.Ftplet;
+import org.apache.ftpserver.ftplet.FtpletResult;
+import org.apache.ftpserver.listener.Listener;
+import org.apache.ftpserver.listener.ListenerFactory;
+import org.apache.ftpserver.ssl.SslConfigurationFactory;
+import org.apache.ftpserver.usermanager.impl.BaseUser;
+import org.apache.ftpserver.usermanager.impl.ConcurrentLoginPermission;
+import org.apache.ftpserver.usermanager.impl.WritePermission;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Apache FtpServer on the loopback address with explicit TLS ("AUTH TLS") and a self-signed
+ * certificate, for measuring uploads without a live server. The certificate is created with
+ * the keytool of the running JDK when the server starts.
+ * The server listens on a free port and takes passive data connections on free ports.
+ * Unless the files are kept, every stored file is deleted as soon as its upload ends,
+ * so uploading many gigabytes needs no disk space on the server side.
+ */
+public class EmbeddedFtpsServer {
+    public static final String username = "harness";
+    public static final String password = "harness";
+    private static final String keystorePassword = "harness";
+    private final File directory;
+    private final boolean keepFiles;
+    private FtpServer server;
+    private Listener listener;
+
+    /**
+     * Constructor for {@link EmbeddedFtpsServer}.
+     * @param directory Directory for the keystore and the "root" directory of the FTP user.
+     * @param keepFiles True to keep the stored files, false to delete each one once it is stored.
+     */
+    public EmbeddedFtpsServer(File directory, boolean keepFiles) {
+        this.directory = directory;
+        this.keepFiles = keepFiles;
+        this.server = null;
+        this.listener = null;
+    }
+
+    /**
+     * Creates the certificate and starts the server.
+     * @throws IOException  If the certificate cannot be created or the server cannot start.
+     */
+    public void start() throws IOException {
+        File root = new File(directory, "root");
+        if(!root.isDirectory() && !root.mkdirs()) {
+            throw new IOException("Could not create "+root.getPath()+".");
+        }
+        SslConfigurationFactory sslConfigurationFactory = new SslConfigurationFactory();
+        sslConfigurationFactory.setKeystoreFile(createKeystore());
+        sslConfigurationFactory.setKeystoreType("PKCS12");
+        sslConfigurationFactory.setKeystorePassword(keystorePassword);
+        DataConnectionConfigurationFactory dataConnectionFactory = new DataConnectionConfigurationFactory();
+        dataConnectionFactory.setPassivePorts("0");
+        ListenerFactory listenerFactory = new ListenerFactory();
+        listenerFactory.setServerAddress("127.0.0.1");
+        listenerFactory.setPort(0);
+        listenerFactory.setSslConfiguration(sslConfigurationFactory.createSslConfiguration());
+        listenerFactory.setDataConnectionConfiguration(dataConnectionFactory.createDataConnectionConfiguration());
+        listener = listenerFactory.createListener();
+        ConnectionConfigFactory connectionConfigFactory = new ConnectionConfigFactory();
+        connectionConfigFactory.setMaxLogins(0);
+        connectionConfigFactory.setMaxThreads(0);
+        FtpServerFactory serverFactory = new FtpServerFactory();
+        serverFactory.addListener("default", listener);
+        serverFactory.setConnectionConfig(connectionConfigFactory.createConnectionConfig());
+        if(!keepFiles) {
+            Map<String, Ftplet> ftplets = new HashMap<>();
+            ftplets.put("discard", new DefaultFtplet() {
+                @Override
+                public FtpletResult onUploadEnd(FtpSession session, FtpRequest request) throws FtpException {
+                    session.getFileSystemView().getFile(request.getArgument()).delete();
+                    return FtpletResult.DEFAULT;
+                }
+            });
+            serverFactory.setFtplets(ftplets);
+        }
+        BaseUser user = new BaseUser();
+        user.setName(username);
+        user.setPassword(password);
+        user.setHomeDirectory(root.getAbsolutePath());
+        List<Authority> authorities = new ArrayList<>();
+        authorities.add(new WritePermission());
+        authorities.add(new ConcurrentLoginPermission(0, 0));
+        user.setAuthorities(authorities);
+        try {
+            serverFactory.getUserManager().save(user);
+            server = serverFactory.createServer();
+            server.start();
+        } catch(FtpException e) {
+            throw new IOException("Embedded FTP server could not start.", e);
+        }
+    }
+
+    /**
+     * Creates a PKCS12 keystore with a self-signed certificate for "localhost" with the keytool of the running JDK.
+     * @return              {@link File} of the keystore.
+     * @throws IOException  If keytool cannot be run or fails.
+     */
+    private File createKeystore() throws IOException {
+        File keystore = new File(directory, "server.p12");
+        if(keystore.isFile()) {
+            return keystore;
+        }
+        File keytool = new File(new File(System.getProperty("java.home"), "bin"),
+                SystemUtils.IS_OS_WINDOWS ? "keytool.exe" : "keytool");
+        File log = new File(directory, "keytool.log");
+        Process process = new ProcessBuilder(keytool.getPath(), "-genkeypair", "-alias", "ftpserver",
+                "-keyalg", "RSA", "-keysize", "2048", "-validity", "3650", "-dname", "CN=localhost",
+                "-storetype", "PKCS12", "-keystore", keystore.getPath(),
+                "-storepass", keystorePassword, "-keypass", keystorePassword)
+                .redirectErrorStream(true).redirectOutput(log).start();
+        try {
+            if(process.waitFor() != 0) {
+                throw new IOException("keytool could not create "+keystore.getPath()+", see "+log.getPath()+".");
+            }
+        } catch(InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while creating "+keystore.getPath()+".", e);
+        }
+        return keystore;
+    }
+
+    /**
+     * Returns the port the server listens on.
+     * @return  Port on the loopback address.
+     */
+    public int getPort() {
+        return listener.getPort();
+    }
+
+    /**
+     * Stops the server, if it was started.
+     */
+    public void stop() {
+        if(server != null) {
+            server.stop();
+            server = null;
+        }
+    }
+}
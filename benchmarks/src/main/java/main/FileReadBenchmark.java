@@ -0,0 +1,176 @@
+package main;
+
+import org.apache.commons.net.ftp.FTP;
+import org.apache.commons.net.ftp.FTPReply;
+import org.apache.commons.net.io.CopyStreamAdapter;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import javax.net.ssl.SSLContext;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.security.NoSuchAlgorithmException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmark of the read path of a file into a data connection: the {@link ChannelTransfer}
+ * used by default for private data connections, against storeFile() of commons-net with a
+ * {@link FileInputStream}, which the transferPath=stream setting uses.
+ * The data connection is a {@link Socket} that discards everything written to it, so only
+ * the reading, copying and progress reporting are measured, with the file in the page cache.
+ * Divide the file size by the score for the throughput.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+public class FileReadBenchmark {
+    @Param({"65536", "16777216"})
+    private int fileSize;
+    @Param({"64"})
+    private int bufferSizeKB;
+    private File file;
+    private NullDataClient ftp;
+    private ChannelTransfer channelTransfer;
+    private long bytesReported;
+
+    /**
+     * Writes a temporary file of random bytes and creates the client and the {@link ChannelTransfer}
+     * with the given buffer size, reporting progress like the {@link UploadEngine}.
+     * @throws IOException                  If the temporary file cannot be written.
+     * @throws NoSuchAlgorithmException     If there is no default {@link SSLContext}.
+     */
+    @Setup
+    public void setUp() throws IOException, NoSuchAlgorithmException {
+        file = File.createTempFile("upload", ".bin");
+        byte[] bytes = new byte[fileSize];
+        new Random(fileSize).nextBytes(bytes);
+        FileOutputStream outputStream = new FileOutputStream(file);
+        outputStream.write(bytes);
+        outputStream.close();
+        ftp = new NullDataClient();
+        ftp.setFileType(FTP.BINARY_FILE_TYPE);
+        ftp.setBufferSize(bufferSizeKB*1024);
+        ftp.setCopyStreamListener(new CopyStreamAdapter() {
+            @Override
+            public void bytesTransferred(long totalBytesTransferred, int bytesTransferred, long streamSize) {
+                bytesReported += bytesTransferred;
+            }
+        });
+        channelTransfer = new ChannelTransfer(bufferSizeKB*1024, written -> bytesReported += written,
+                new BandwidthLimiter(0, false));
+    }
+
+    /**
+     * Deletes the temporary file.
+     */
+    @TearDown
+    public void tearDown() {
+        file.delete();
+    }
+
+    /**
+     * Sends the file through the {@link ChannelTransfer}.
+     * @return              Bytes reported as progress so far.
+     * @throws IOException  If the file cannot be read.
+     */
+    @Benchmark
+    public long channelTransfer() throws IOException {
+        channelTransfer.storeFile(ftp, file, 0, "STOR", null);
+        return bytesReported;
+    }
+
+    /**
+     * Sends the file through storeFile() of commons-net.
+     * @return              Bytes reported as progress so far.
+     * @throws IOException  If the file cannot be read.
+     */
+    @Benchmark
+    public long commonsNetStream() throws IOException {
+        FileInputStream fileStream = new FileInputStream(file);
+        try {
+            ftp.storeFile(file.getName(), fileStream);
+        } finally {
+            fileStream.close();
+        }
+        return bytesReported;
+    }
+
+    /**
+     * {@link UploaderFtpsClient} that needs no server: every command is answered with 200,
+     * and every data connection is a {@link Socket} that discards what is written to it.
+     */
+    private static class NullDataClient extends UploaderFtpsClient {
+
+        /**
+         * Constructor for {@link NullDataClient}.
+         * @throws NoSuchAlgorithmException If there is no default {@link SSLContext}.
+         */
+        private NullDataClient() throws NoSuchAlgorithmException {
+            super(false, SSLContext.getDefault());
+        }
+
+        /**
+         * Answers every command with 200 without sending it.
+         * @param command   FTP command.
+         * @param args      Arguments of the command.
+         * @return          200.
+         */
+        @Override
+        public int sendCommand(String command, String args) {
+            return FTPReply.COMMAND_OK;
+        }
+
+        /**
+         * Returns a new data connection that discards what is written to it.
+         * @param command   FTP command the data connection is for.
+         * @param arg       Argument of the command.
+         * @return          Unconnected {@link Socket} with a discarding output stream.
+         */
+        @Override
+        protected Socket _openDataConnection_(String command, String arg) {
+            return new Socket() {
+                private final OutputStream output = new OutputStream() {
+                    @Override
+                    public void write(int b) {
+                    }
+
+                    @Override
+                    public void write(byte[] b, int off, int len) {
+                    }
+                };
+
+                @Override
+                public OutputStream getOutputStream() {
+                    return output;
+                }
+            };
+        }
+
+        /**
+         * Confirms every transfer without reading a reply.
+         * @return  True.
+         */
+        @Override
+        public boolean completePendingCommand() {
+            return true;
+        }
+    }
+}
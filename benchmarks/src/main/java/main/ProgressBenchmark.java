@@ -0,0 +1,92 @@
+package main;
+
+import org.apache.commons.net.io.CopyStreamAdapter;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmark of the progress callback that the {@link UploadEngine} hands to every connection:
+ * the {@link CopyStreamAdapter} called by commons-net and the {@link ChannelTransfer}
+ * for every block written, by one connection and by four connections at the same time.
+ * The score is callbacks per microsecond.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+public class ProgressBenchmark {
+    private static final int blockSize = ChannelTransfer.defaultBufferSize;
+    private File file;
+    private CopyStreamAdapter copyStreamAdapter;
+
+    /**
+     * Creates an {@link UploadEngine} for one empty file, without opening a connection,
+     * and takes its {@link CopyStreamAdapter}.
+     * @throws IOException  If the temporary file cannot be created.
+     */
+    @Setup
+    public void setUp() throws IOException {
+        file = File.createTempFile("progress", ".bin");
+        Properties properties = new Properties();
+        properties.setProperty("resume", "false");
+        UploadEngine uploadEngine = new UploadEngine(new FtpsSessionFactory("localhost", 21, "user", "", "/"),
+                Collections.singletonList(file), 1, new UploadListener() {
+            @Override
+            public void fileStarted(File file) {
+            }
+
+            @Override
+            public void progressChanged(long bytesUploaded, long bytesTotal) {
+            }
+
+            @Override
+            public void throughputChanged(double bytesPerSecond, long secondsRemaining) {
+            }
+        }, new UploadSettings(properties));
+        copyStreamAdapter = uploadEngine.newCopyStreamAdapter();
+    }
+
+    /**
+     * Deletes the temporary file.
+     */
+    @TearDown
+    public void tearDown() {
+        file.delete();
+    }
+
+    /**
+     * Reports one written block from one connection.
+     */
+    @Benchmark
+    @Threads(1)
+    public void oneConnection() {
+        copyStreamAdapter.bytesTransferred(0, blockSize, -1);
+    }
+
+    /**
+     * Reports one written block from each of four connections at the same time.
+     */
+    @Benchmark
+    @Threads(4)
+    public void fourConnections() {
+        copyStreamAdapter.bytesTransferred(0, blockSize, -1);
+    }
+}
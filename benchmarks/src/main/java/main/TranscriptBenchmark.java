@@ -0,0 +1,72 @@
+package main;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmark of the growth of the console transcript, which replaced appendString():
+ * a whole transcript of the given number of lines is appended to a new {@link TranscriptLog}
+ * in drains of 64 lines, spilling to its temporary file past the line cap.
+ * The time per transcript should grow linearly with its length; the old appendString()
+ * copied the whole transcript on every append and grew quadratically.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+public class TranscriptBenchmark {
+    private static final int linesPerDrain = 64;
+    @Param({"1000", "10000", "100000"})
+    private int lines;
+    private String[] drains;
+
+    /**
+     * Builds the drained text of the transcript, so that building it is not measured.
+     */
+    @Setup
+    public void setUp() {
+        drains = new String[(lines+linesPerDrain-1)/linesPerDrain];
+        int line = 0;
+        for(int i = 0; i < drains.length; i++) {
+            StringBuilder text = new StringBuilder();
+            for(int j = 0; j < linesPerDrain && line < lines; j++, line++) {
+                if(line%2 == 0) {
+                    text.append("STOR file-").append(line/2).append(".bin\n");
+                } else {
+                    text.append("226 Transfer complete.\n");
+                }
+            }
+            drains[i] = text.toString();
+        }
+    }
+
+    /**
+     * Appends the whole transcript to a new {@link TranscriptLog} with the default line cap, and closes it.
+     * @return  Number of lines in the transcript.
+     */
+    @Benchmark
+    public int appendTranscript() {
+        TranscriptLog transcriptLog = new TranscriptLog(TranscriptLog.defaultLineCap);
+        try {
+            for(String drain : drains) {
+                transcriptLog.append(drain);
+            }
+            return transcriptLog.size();
+        } finally {
+            transcriptLog.close();
+        }
+    }
+}
@@ -0,0 +1,363 @@
+package main;
+
+import java.io.File;
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * End-to-end throughput harness: uploads a generated set of files with the {@link UploadEngine},
+ * headless like the {@link UploaderCli}, to an {@link EmbeddedFtpsServer} on the loopback address,
+ * and writes one JSON line per run to stdout with files per second, MB per second,
+ * TLS handshakes, and the median, 99th percentile and longest time of the upload of a file.
+ * Everything else that is printed goes to stderr.
+ * <p>
+ * Profiles: "small" is 10000 files of 4 KB, "large" 100 files of 100 MB, and "mixed"
+ * 2000 files of 4 KB, 200 files of 1 MB and 5 files of 100 MB. "--scale=0.1" uploads a tenth
+ * of the files of every size. The files are generated once into the data directory and reused.
+ * Any other "--name=value" argument is a setting of the program, such as "--connections=4".
+ * <pre>
+ * java -cp benchmarks/target/benchmarks.jar main.UploadHarness --profile=small --connections=4 --runs=3
+ * </pre>
+ */
+public class UploadHarness {
+    private static final int blockSize = 1024*1024;
+    private final Properties properties;
+    private String profile;
+    private double scale;
+    private File dataDirectory;
+    private boolean keepFiles;
+    private int runs;
+    private int warmupRuns;
+    private PrintStream output;
+
+    /**
+     * Constructor for {@link UploadHarness} with the default options.
+     */
+    public UploadHarness() {
+        this.properties = new Properties();
+        this.properties.setProperty("connections", "4");
+        this.properties.setProperty("resume", "false");
+        this.profile = "small";
+        this.scale = 1;
+        this.dataDirectory = new File(System.getProperty("java.io.tmpdir"), "autouploadfiles-harness");
+        this.keepFiles = false;
+        this.runs = 1;
+        this.warmupRuns = 0;
+        this.output = new PrintStream(new FileOutputStream(FileDescriptor.out), true);
+    }
+
+    /**
+     * Runs the harness and exits with 0 if every file of every run was stored, 1 if not, 2 if the arguments are invalid.
+     * @param args          Options of the form "--name=value".
+     * @throws IOException  If the files cannot be generated or the server cannot start.
+     */
+    public static void main(String[] args) throws IOException {
+        UploadHarness harness = new UploadHarness();
+        if(!harness.parseArguments(args)) {
+            System.err.println("Usage: java -cp benchmarks.jar main.UploadHarness [--profile=small|large|mixed] [--scale=1]"
+                    +" [--runs=1] [--warmupRuns=0] [--dataDir=] [--keepFiles=false] [--<setting>=]...");
+            System.exit(UploaderCli.exitUsage);
+        }
+        System.exit(harness.run() ? UploaderCli.exitSucceeded : UploaderCli.exitFailed);
+    }
+
+    /**
+     * Parses the options. Options that are not options of the harness are settings of the program.
+     * @param args  Options of the form "--name=value".
+     * @return      False if an option is invalid.
+     */
+    private boolean parseArguments(String[] args) {
+        for(String arg : args) {
+            int equals = arg.indexOf('=');
+            if(!arg.startsWith("--") || equals < 0) {
+                return false;
+            }
+            String name = arg.substring(2, equals);
+            String value = arg.substring(equals+1);
+            try {
+                if(name.equals("profile")) {
+                    profile = value.toLowerCase(Locale.ROOT);
+                } else if(name.equals("scale")) {
+                    scale = Double.parseDouble(value);
+                } else if(name.equals("dataDir")) {
+                    dataDirectory = new File(value);
+                } else if(name.equals("keepFiles")) {
+                    keepFiles = Boolean.parseBoolean(value);
+                } else if(name.equals("runs")) {
+                    runs = Integer.parseInt(value);
+                } else if(name.equals("warmupRuns")) {
+                    warmupRuns = Integer.parseInt(value);
+                } else {
+                    properties.setProperty(name, value);
+                }
+            } catch(NumberFormatException e) {
+                return false;
+            }
+        }
+        return getSizes() != null && scale > 0 && runs > 0 && warmupRuns >= 0;
+    }
+
+    /**
+     * Returns the file sizes of the profile and the number of files of each size.
+     * @return  Pairs of size in bytes and number of files, or null for an unknown profile.
+     */
+    private long[][] getSizes() {
+        switch(profile) {
+            case "small":
+                return new long[][] {{4*1024, 10000}};
+            case "large":
+                return new long[][] {{100*1024*1024, 100}};
+            case "mixed":
+                return new long[][] {{4*1024, 2000}, {1024*1024, 200}, {100*1024*1024, 5}};
+            default:
+                return null;
+        }
+    }
+
+    /**
+     * Generates the files, starts the server, and uploads the files once per run.
+     * @return              True if every file of every run was stored.
+     * @throws IOException  If the files cannot be generated or the server cannot start.
+     */
+    private boolean run() throws IOException {
+        System.setOut(System.err);
+        List<File> files = generateFiles();
+        File serverDirectory = Files.createTempDirectory("autouploadfiles-ftps").toFile();
+        EmbeddedFtpsServer server = new EmbeddedFtpsServer(serverDirectory, keepFiles);
+        server.start();
+        System.err.println("Embedded FTPS server on 127.0.0.1:"+server.getPort()+", root "+serverDirectory.getPath()+".");
+        boolean succeeded = true;
+        try {
+            for(int run = 1; run <= warmupRuns+runs; run++) {
+                succeeded &= upload(server.getPort(), files, run, run <= warmupRuns);
+            }
+        } finally {
+            server.stop();
+            if(!keepFiles) {
+                delete(serverDirectory);
+            }
+        }
+        return succeeded;
+    }
+
+    /**
+     * Uploads all files once over a new session, like the {@link UploaderCli},
+     * and writes the result of the run as one JSON line.
+     * @param port      Port of the {@link EmbeddedFtpsServer}.
+     * @param files     {@link File}s to upload.
+     * @param run       Number of the run, starting at 1.
+     * @param warmup    True if the run is a warmup run.
+     * @return          True if every file was stored.
+     */
+    private boolean upload(int port, List<File> files, int run, boolean warmup) {
+        UploadSettings settings = new UploadSettings(properties);
+        FtpsSessionFactory sessionFactory = new FtpsSessionFactory("127.0.0.1", port,
+                EmbeddedFtpsServer.username, EmbeddedFtpsServer.password, "/");
+        sessionFactory.setSettings(settings);
+        sessionFactory.setBandwidthLimiter(new BandwidthLimiter(settings.getLong("bandwidthLimitKBps", 0)*1024,
+                settings.getBoolean("bandwidthFair", false)));
+        LatencyListener listener = new LatencyListener();
+        boolean stored = false;
+        String message = null;
+        UploadEngine uploadEngine = null;
+        long start = System.nanoTime();
+        try {
+            UploaderFtpsClient ftp = sessionFactory.openSession();
+            boolean reusable = false;
+            try {
+                uploadEngine = new UploadEngine(sessionFactory, files, settings.getInt("connections", 1), listener, settings);
+                stored = uploadEngine.upload(ftp);
+                reusable = true;
+            } finally {
+                sessionFactory.releaseSession(ftp, reusable);
+            }
+        } catch(IOException e) {
+            e.printStackTrace();
+            message = e.getMessage() != null ? e.getMessage() : e.getClass().getSimpleName();
+        }
+        double seconds = (System.nanoTime()-start)/1e9;
+        long bytes = uploadEngine != null ? uploadEngine.getBytesUploaded() : 0;
+        int filesStored = uploadEngine != null ? uploadEngine.getFilesStored() : 0;
+        long[] latencies = listener.getLatencies();
+        HandshakeStats handshakeStats = sessionFactory.getHandshakeStats();
+        output.println("{\"run\":"+run
+                +",\"warmup\":"+warmup
+                +",\"profile\":\""+profile+"\""
+                +",\"connections\":"+settings.getInt("connections", 1)
+                +",\"files\":"+files.size()
+                +",\"filesStored\":"+filesStored
+                +",\"bytes\":"+bytes
+                +",\"seconds\":"+format(seconds)
+                +",\"filesPerSecond\":"+format(filesStored/seconds)
+                +",\"megabytesPerSecond\":"+format(bytes/seconds/(1024*1024))
+                +",\"fullHandshakes\":"+handshakeStats.getFullHandshakes()
+                +",\"resumedHandshakes\":"+handshakeStats.getResumedHandshakes()
+                +",\"fileMillisP50\":"+format(percentile(latencies, 0.50)/1e6)
+                +",\"fileMillisP99\":"+format(percentile(latencies, 0.99)/1e6)
+                +",\"fileMillisMax\":"+format(percentile(latencies, 1)/1e6)
+                +(message != null ? ",\"message\":\""+message.replace("\\", "\\\\").replace("\"", "\\\"")+"\"" : "")
+                +"}");
+        return stored;
+    }
+
+    /**
+     * Generates the files of the profile in the data directory, one directory per size,
+     * and keeps files of the right size from earlier runs. The content is random, so that
+     * it does not compress, and the same for every run.
+     * @return              {@link File}s of the profile.
+     * @throws IOException  If a file cannot be written.
+     */
+    private List<File> generateFiles() throws IOException {
+        byte[] block = new byte[blockSize];
+        new Random(42).nextBytes(block);
+        List<File> files = new ArrayList<>();
+        for(long[] size : getSizes()) {
+            String name = size[0] >= 1024*1024 ? size[0]/(1024*1024)+"MB" : size[0]/1024+"KB";
+            File directory = new File(dataDirectory, name);
+            if(!directory.isDirectory() && !directory.mkdirs()) {
+                throw new IOException("Could not create "+directory.getPath()+".");
+            }
+            long count = Math.max(1, Math.round(size[1]*scale));
+            int generated = 0;
+            for(int i = 0; i < count; i++) {
+                File file = new File(directory, String.format("%s-%05d.bin", name, i));
+                if(file.length() != size[0]) {
+                    writeFile(file, size[0], block, i);
+                    generated++;
+                }
+                files.add(file);
+            }
+            System.err.println(count+" files of "+name+" in "+directory.getPath()+", "+generated+" generated.");
+        }
+        return files;
+    }
+
+    /**
+     * Writes a file from the random block, starting at an offset into it that differs per file.
+     * @param file          {@link File} to write.
+     * @param size          Size of the file in bytes.
+     * @param block         Random bytes.
+     * @param index         Index of the file.
+     * @throws IOException  If the file cannot be written.
+     */
+    private static void writeFile(File file, long size, byte[] block, int index) throws IOException {
+        RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
+        try {
+            randomAccessFile.setLength(0);
+            int offset = (index*4099)%block.length;
+            long written = 0;
+            while(written < size) {
+                int length = (int) Math.min(block.length-offset, size-written);
+                randomAccessFile.write(block, offset, length);
+                written += length;
+                offset = 0;
+            }
+        } finally {
+            randomAccessFile.close();
+        }
+    }
+
+    /**
+     * Returns the nearest-rank percentile of sorted values.
+     * @param sorted    Sorted values.
+     * @param fraction  Percentile as a fraction, such as 0.99.
+     * @return          Value at the percentile, or 0 if there are none.
+     */
+    private static long percentile(long[] sorted, double fraction) {
+        if(sorted.length == 0) {
+            return 0;
+        }
+        int rank = (int) Math.ceil(fraction*sorted.length);
+        return sorted[Math.max(0, Math.min(sorted.length, rank)-1)];
+    }
+
+    /**
+     * Formats a number for JSON with three decimals, whatever the default locale is.
+     * @param value Number to format.
+     * @return      {@link String} of the number.
+     */
+    private static String format(double value) {
+        return String.format(Locale.ROOT, "%.3f", value);
+    }
+
+    /**
+     * Deletes a directory and everything in it.
+     * @param file  {@link File} or directory to delete.
+     */
+    private static void delete(File file) {
+        File[] children = file.listFiles();
+        if(children != null) {
+            for(File child : children) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+
+    /**
+     * {@link UploadListener} that times every attempt to upload a file, from fileStarted(File)
+     * to fileFinished(FileResult), which are called on the same connection thread.
+     */
+    private static class LatencyListener implements UploadListener {
+        private final Map<File, Long> started;
+        private final List<Long> latencies;
+
+        /**
+         * Constructor for {@link LatencyListener}.
+         */
+        private LatencyListener() {
+            this.started = new ConcurrentHashMap<>();
+            this.latencies = Collections.synchronizedList(new ArrayList<>());
+        }
+
+        @Override
+        public void fileStarted(File file) {
+            started.put(file, System.nanoTime());
+        }
+
+        @Override
+        public void fileFinished(FileResult result) {
+            Long start = started.remove(result.getFile());
+            if(start != null) {
+                latencies.add(System.nanoTime()-start);
+            }
+        }
+
+        @Override
+        public void progressChanged(long bytesUploaded, long bytesTotal) {
+        }
+
+        @Override
+        public void throughputChanged(double bytesPerSecond, long secondsRemaining) {
+        }
+
+        /**
+         * Returns the times of all attempts, sorted.
+         * @return  Sorted times in nanoseconds.
+         */
+        private long[] getLatencies() {
+            long[] sorted;
+            synchronized(latencies) {
+                sorted = new long[latencies.size()];
+                for(int i = 0; i < sorted.length; i++) {
+                    sorted[i] = latencies.get(i);
+                }
+            }
+            Arrays.sort(sorted);
+            return sorted;
+        }
+    }
+}
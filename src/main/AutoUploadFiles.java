@@ -3,6 +3,7 @@ package main;
 import javafx.application.Application;
 import javafx.concurrent.WorkerStateEvent;
 import javafx.scene.control.Alert;
+import javafx.scene.control.TextArea;
 import javafx.scene.image.Image;
 import javafx.stage.Stage;
 import org.apache.commons.lang3.SystemUtils;
@@ -32,8 +33,13 @@ public class AutoUploadFiles extends Application {
     public static int textFieldWidth = 25;
     public Image icon = new Image(getClass().getResourceAsStream("icon.png"));
     private UploaderTask uploaderTask;
+    private FtpsSessionPool sessionPool;
+    private BandwidthLimiter bandwidthLimiter;
+    private JobJournal jobJournal;
+    private UploadMetrics metrics;
+    private MetricsExporter metricsExporter;
     private Properties properties;
-    private File propertiesFile = new File(".autoUploadFiles.properties");
+    private File propertiesFile = new File(UploadSettings.fileName);
 
     public static void main(String[] args) {
         launch(args);
@@ -53,6 +59,33 @@ public class AutoUploadFiles extends Application {
             properties.load(inputStream);
             inputStream.close();
         }
+        UploadSettings settings = new UploadSettings(properties);
+        long idleSeconds = settings.getLong("sessionIdleSeconds", FtpsSessionPool.defaultIdleSeconds);
+        if(idleSeconds > 0) {
+            sessionPool = new FtpsSessionPool(idleSeconds,
+                    settings.getLong("sessionKeepaliveSeconds", FtpsSessionPool.defaultKeepaliveSeconds));
+        }
+        bandwidthLimiter = new BandwidthLimiter(settings.getLong("bandwidthLimitKBps", 0)*1024,
+                settings.getBoolean("bandwidthFair", false));
+        if(settings.getBoolean("jobJournal", true)) {
+            try {
+                jobJournal = new JobJournal(new File(JobJournal.fileName),
+                        settings.getLong("jobJournalSyncMillis", JobJournal.defaultSyncMillis));
+            } catch(IOException e) {
+                e.printStackTrace();
+            }
+        }
+        metrics = new UploadMetrics();
+        String metricsFile = settings.getString("metricsFile", "");
+        metricsExporter = new MetricsExporter(metrics, metricsFile.isEmpty() ? null : new File(metricsFile));
+        int metricsPort = settings.getInt("metricsPort", 0);
+        if(metricsPort > 0) {
+            try {
+                metricsExporter.start(metricsPort);
+            } catch(IOException e) {
+                e.printStackTrace();
+            }
+        }
         MainWindow mainWindow = new MainWindow(this, primaryStage);
         mainWindow.run();
     }
@@ -67,13 +100,14 @@ public class AutoUploadFiles extends Application {
      * @param password      Password for the FTP server login.
      * @param uploadPath    Path on FTP server to upload to.
      * @param files         {@link File}(s) to upload to the FTP server.
+     * @param connections   Number of connections to upload the {@link File}(s) over at the same time.
      */
     public void startUploaderTask(String hostname, int port, String username,
-                                  String password, String uploadPath, List<File> files) {
-        uploaderTask = new UploaderTask(this, hostname, port, username, password, uploadPath, files);
+                                  String password, String uploadPath, List<File> files, int connections) {
+        uploaderTask = new UploaderTask(this, hostname, port, username, password, uploadPath, files, connections);
         uploaderTask.addEventHandler(WorkerStateEvent.WORKER_STATE_SUCCEEDED, e -> {
             UploaderTaskResult result = uploaderTask.getValue();
-            showAlert(result.getMessage(), result.getAlertType());
+            showAlert(result.getMessage(), result.getAlertType(), result.getDetails());
         });
         UploaderWindow uploaderWindow = new UploaderWindow(this);
         uploaderWindow.run();
@@ -99,7 +133,10 @@ public class AutoUploadFiles extends Application {
     }
 
     /**
-     * Saves settings if checkbox is checked and exits program.
+     * Saves settings if checkbox is checked, logs out the open connections
+     * of the {@link FtpsSessionPool}, closes the {@link JobJournal}, stops serving
+     * the {@link UploadMetrics}, and exits program.
+     * A batch still uploading stays unfinished in the journal for the next run.
      * If OS is Windows, sets "hidden" DOS attribute.
      * @param saveSettings  Saves settings if checkbox is checked.
      */
@@ -119,6 +156,13 @@ public class AutoUploadFiles extends Application {
                 e.printStackTrace();
             }
         }
+        if(sessionPool != null) {
+            sessionPool.close();
+        }
+        if(jobJournal != null) {
+            jobJournal.close();
+        }
+        metricsExporter.stop();
         System.exit(0);
     }
 
@@ -137,6 +181,17 @@ public class AutoUploadFiles extends Application {
      * @param alertType The icon shown in the {@link Alert} to designate success/failure/error.
      */
     public void showAlert(String message, Alert.AlertType alertType) {
+        showAlert(message, alertType, null);
+    }
+
+    /**
+     * Creates an {@link Alert} showing the message and the icon AlertType,
+     * with details in a read-only {@link TextArea} that is shown when the alert is expanded.
+     * @param message   The text of the message shown in the {@link Alert}.
+     * @param alertType The icon shown in the {@link Alert} to designate success/failure/error.
+     * @param details   The text shown when the {@link Alert} is expanded, or null for none.
+     */
+    public void showAlert(String message, Alert.AlertType alertType, String details) {
         Alert alert = new Alert(alertType);
         alert.setTitle(dialogTitle);
         Stage stage = (Stage) alert.getDialogPane().getScene().getWindow();
@@ -144,6 +199,12 @@ public class AutoUploadFiles extends Application {
         //stage.initModality(Modality.APPLICATION_MODAL);
         alert.setHeaderText(null);
         alert.setContentText(message);
+        if(details != null) {
+            TextArea detailsArea = new TextArea(details);
+            detailsArea.setEditable(false);
+            detailsArea.setWrapText(false);
+            alert.getDialogPane().setExpandableContent(detailsArea);
+        }
         alert.showAndWait();
     }
 
@@ -155,6 +216,46 @@ public class AutoUploadFiles extends Application {
         return uploaderTask;
     }
 
+    /**
+     * Returns the {@link FtpsSessionPool} that keeps connections open between uploads.
+     * @return  {@link FtpsSessionPool} of the program, or null if connections are not kept open.
+     */
+    public FtpsSessionPool getSessionPool() {
+        return sessionPool;
+    }
+
+    /**
+     * Returns the {@link BandwidthLimiter} that all uploads of the program share.
+     * Its rate can be changed in the {@link UploaderWindow} while uploading.
+     * @return  {@link BandwidthLimiter} of the program.
+     */
+    public BandwidthLimiter getBandwidthLimiter() {
+        return bandwidthLimiter;
+    }
+
+    /**
+     * Returns the {@link JobJournal} that the batches of the program are recorded in.
+     * @return  {@link JobJournal} of the program, or null if the jobJournal setting is off or it cannot be opened.
+     */
+    public JobJournal getJobJournal() {
+        return jobJournal;
+    }
+
+    /**
+     * Returns the {@link UploadMetrics} that all uploads of the program are recorded in.
+     * @return  {@link UploadMetrics} of the program.
+     */
+    public UploadMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Writes the {@link UploadMetrics} to the metricsFile, if the setting is set.
+     */
+    public void exportMetrics() {
+        metricsExporter.writeFile();
+    }
+
     /**
      * Returns the current instance of {@link Properties} in use.
      * @return  Current instance of {@link Properties}.
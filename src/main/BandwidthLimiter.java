@@ -0,0 +1,259 @@
+package main;
+
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Token bucket that limits the upload rate of all connections together.
+ * Every transfer opens a {@link Transfer} and takes tokens for each block it sends,
+ * not for each byte. The bucket is refilled from the time passed whenever tokens are taken,
+ * there is no refill thread. A transfer that takes more tokens than the bucket holds
+ * reserves them and parks until they are refilled, so waiting does not spin, and
+ * transfers are served in the order they asked.
+ * Blocks are taken in pieces of at most a twentieth of a second of the rate,
+ * so a rate changed while uploading takes effect almost at once.
+ * In fair mode, each transfer also has its own bucket of an equal share of the rate,
+ * so a connection sending large blocks cannot crowd out the others.
+ * The rate can be changed at any time, 0 means unlimited, which costs one volatile read per block.
+ */
+public class BandwidthLimiter {
+    private static final long nanosPerSecond = 1000000000L;
+    private static final int minPiece = 1024;
+    private volatile long bytesPerSecond;
+    private volatile boolean fair;
+    private final Bucket bucket;
+    private int transfers;
+
+    /**
+     * Constructor for {@link BandwidthLimiter}.
+     * @param bytesPerSecond    Maximum rate of all connections together in bytes per second, 0 for unlimited.
+     * @param fair              True to give every transfer an equal share of the rate.
+     */
+    public BandwidthLimiter(long bytesPerSecond, boolean fair) {
+        this.bytesPerSecond = Math.max(0, bytesPerSecond);
+        this.fair = fair;
+        this.bucket = new Bucket();
+        this.transfers = 0;
+    }
+
+    /**
+     * Changes the maximum rate. Transfers that are running take the new rate from their next piece.
+     * @param bytesPerSecond    Maximum rate in bytes per second, 0 for unlimited.
+     */
+    public void setRate(long bytesPerSecond) {
+        this.bytesPerSecond = Math.max(0, bytesPerSecond);
+    }
+
+    /**
+     * Returns the maximum rate.
+     * @return  Maximum rate in bytes per second, 0 for unlimited.
+     */
+    public long getRate() {
+        return bytesPerSecond;
+    }
+
+    /**
+     * Turns per-transfer fairness on or off.
+     * @param fair  True to give every transfer an equal share of the rate.
+     */
+    public void setFair(boolean fair) {
+        this.fair = fair;
+    }
+
+    /**
+     * Returns whether every transfer gets an equal share of the rate.
+     * @return  True if fair mode is on.
+     */
+    public boolean isFair() {
+        return fair;
+    }
+
+    /**
+     * Returns whether a rate is set.
+     * @return  True if uploads are limited.
+     */
+    public boolean isLimited() {
+        return bytesPerSecond > 0;
+    }
+
+    /**
+     * Starts a transfer that takes its tokens from this limiter. The transfer must be closed when done.
+     * @return  New {@link Transfer}.
+     */
+    public Transfer open() {
+        synchronized(this) {
+            transfers++;
+        }
+        return new Transfer();
+    }
+
+    /**
+     * Returns the number of open transfers.
+     * @return  Number of transfers sharing the rate.
+     */
+    private synchronized int getTransfers() {
+        return Math.max(1, transfers);
+    }
+
+    /**
+     * Parks the calling thread for the given time. Parking again after an early wake-up
+     * waits only for the rest of the time.
+     * @param nanos Time to wait in nanoseconds.
+     * @throws IOException  If the thread is interrupted, such as by a cancelled upload.
+     */
+    private static void park(long nanos) throws IOException {
+        long deadline = System.nanoTime()+nanos;
+        long remaining = nanos;
+        while(remaining > 0) {
+            LockSupport.parkNanos(remaining);
+            if(Thread.interrupted()) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Waiting for bandwidth was interrupted.");
+            }
+            remaining = deadline-System.nanoTime();
+        }
+    }
+
+    /**
+     * Bucket of tokens, one per byte, that holds at most a twentieth of a second of its rate.
+     * Tokens may go below zero when a transfer reserves more than there are.
+     */
+    private static class Bucket {
+        private double tokens;
+        private long refilledNanos;
+        private long lastRate;
+
+        /**
+         * Constructor for an empty {@link Bucket}.
+         */
+        private Bucket() {
+            this.tokens = 0;
+            this.refilledNanos = System.nanoTime();
+            this.lastRate = 0;
+        }
+
+        /**
+         * Refills the bucket for the time passed and takes the tokens.
+         * @param bytes Number of tokens to take.
+         * @param rate  Rate of the bucket in bytes per second.
+         * @return      Nanoseconds to wait until the taken tokens are refilled, 0 if they were there.
+         */
+        private synchronized long take(long bytes, long rate) {
+            long now = System.nanoTime();
+            if(rate != lastRate) {
+                tokens = Math.max(0, tokens);
+                lastRate = rate;
+            }
+            double capacity = Math.max(minPiece, rate/20.0);
+            tokens = Math.min(capacity, tokens+(now-refilledNanos)*(double) rate/nanosPerSecond);
+            refilledNanos = now;
+            tokens -= bytes;
+            return tokens >= 0 ? 0 : (long) (-tokens*nanosPerSecond/rate);
+        }
+    }
+
+    /**
+     * One transfer over one data connection, taking tokens from the {@link BandwidthLimiter}
+     * for every block it sends. Used by one thread at a time.
+     */
+    public class Transfer {
+        private final Bucket share;
+        private boolean closed;
+
+        /**
+         * Constructor for {@link Transfer}, see open().
+         */
+        private Transfer() {
+            this.share = new Bucket();
+            this.closed = false;
+        }
+
+        /**
+         * Takes tokens for a number of bytes, waiting until they are available.
+         * Returns at once if no rate is set.
+         * @param bytes         Number of bytes about to be sent, or just sent.
+         * @throws IOException  If the thread is interrupted while waiting.
+         */
+        public void acquire(long bytes) throws IOException {
+            while(bytes > 0) {
+                long rate = bytesPerSecond;
+                if(rate <= 0) {
+                    return;
+                }
+                long piece = Math.min(bytes, Math.max(minPiece, rate/20));
+                long wait = 0;
+                if(fair) {
+                    wait = share.take(piece, Math.max(1, rate/getTransfers()));
+                }
+                park(wait);
+                park(bucket.take(piece, rate));
+                bytes -= piece;
+            }
+        }
+
+        /**
+         * Wraps the output stream of a data connection so that every write takes its tokens first.
+         * @param output    {@link OutputStream} of the data connection.
+         * @return          {@link OutputStream} limited by this transfer.
+         */
+        public OutputStream wrap(OutputStream output) {
+            return new FilterOutputStream(output) {
+                @Override
+                public void write(int b) throws IOException {
+                    acquire(1);
+                    out.write(b);
+                }
+
+                @Override
+                public void write(byte[] array, int offset, int length) throws IOException {
+                    acquire(length);
+                    out.write(array, offset, length);
+                }
+            };
+        }
+
+        /**
+         * Wraps the input stream of a file so that every read takes tokens for the bytes read,
+         * for when the library copies the stream to the data connection.
+         * @param input {@link InputStream} of the file.
+         * @return      {@link InputStream} limited by this transfer.
+         */
+        public InputStream wrap(InputStream input) {
+            return new FilterInputStream(input) {
+                @Override
+                public int read() throws IOException {
+                    int value = in.read();
+                    if(value >= 0) {
+                        acquire(1);
+                    }
+                    return value;
+                }
+
+                @Override
+                public int read(byte[] array, int offset, int length) throws IOException {
+                    int read = in.read(array, offset, length);
+                    if(read > 0) {
+                        acquire(read);
+                    }
+                    return read;
+                }
+            };
+        }
+
+        /**
+         * Ends the transfer, so it no longer counts for the fair shares.
+         */
+        public void close() {
+            synchronized(BandwidthLimiter.this) {
+                if(!closed) {
+                    closed = true;
+                    transfers--;
+                }
+            }
+        }
+    }
+}
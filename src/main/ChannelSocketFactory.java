@@ -0,0 +1,88 @@
+package main;
+
+import javax.net.SocketFactory;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.channels.SocketChannel;
+
+/**
+ * {@link SocketFactory} that creates sockets backed by a {@link SocketChannel}.
+ * Set on a client for plain (PROT C) data connections, so that the
+ * {@link ChannelTransfer} can send a file with FileChannel.transferTo()
+ * straight to the socket, without copying it through the heap.
+ */
+public class ChannelSocketFactory extends SocketFactory {
+
+    /**
+     * Returns an unconnected {@link Socket} of a new {@link SocketChannel}.
+     * @return              Unconnected {@link Socket}.
+     * @throws IOException  If the channel cannot be opened.
+     */
+    @Override
+    public Socket createSocket() throws IOException {
+        return SocketChannel.open().socket();
+    }
+
+    /**
+     * Returns a {@link Socket} of a new {@link SocketChannel} connected to the host and port.
+     * @param host          Hostname to connect to.
+     * @param port          Port to connect to.
+     * @return              Connected {@link Socket}.
+     * @throws IOException  If the channel cannot be opened or connected.
+     */
+    @Override
+    public Socket createSocket(String host, int port) throws IOException {
+        return SocketChannel.open(new InetSocketAddress(host, port)).socket();
+    }
+
+    /**
+     * Returns a {@link Socket} of a new {@link SocketChannel} connected to the host and port,
+     * bound to the local address and port.
+     * @param host          Hostname to connect to.
+     * @param port          Port to connect to.
+     * @param localHost     Local address to bind to.
+     * @param localPort     Local port to bind to.
+     * @return              Connected {@link Socket}.
+     * @throws IOException  If the channel cannot be opened, bound, or connected.
+     */
+    @Override
+    public Socket createSocket(String host, int port, InetAddress localHost, int localPort) throws IOException {
+        Socket socket = createSocket();
+        socket.bind(new InetSocketAddress(localHost, localPort));
+        socket.connect(new InetSocketAddress(host, port));
+        return socket;
+    }
+
+    /**
+     * Returns a {@link Socket} of a new {@link SocketChannel} connected to the address and port.
+     * @param host          Address to connect to.
+     * @param port          Port to connect to.
+     * @return              Connected {@link Socket}.
+     * @throws IOException  If the channel cannot be opened or connected.
+     */
+    @Override
+    public Socket createSocket(InetAddress host, int port) throws IOException {
+        return SocketChannel.open(new InetSocketAddress(host, port)).socket();
+    }
+
+    /**
+     * Returns a {@link Socket} of a new {@link SocketChannel} connected to the address and port,
+     * bound to the local address and port.
+     * @param address       Address to connect to.
+     * @param port          Port to connect to.
+     * @param localAddress  Local address to bind to.
+     * @param localPort     Local port to bind to.
+     * @return              Connected {@link Socket}.
+     * @throws IOException  If the channel cannot be opened, bound, or connected.
+     */
+    @Override
+    public Socket createSocket(InetAddress address, int port, InetAddress localAddress, int localPort)
+            throws IOException {
+        Socket socket = createSocket();
+        socket.bind(new InetSocketAddress(localAddress, localPort));
+        socket.connect(new InetSocketAddress(address, port));
+        return socket;
+    }
+}
@@ -0,0 +1,285 @@
+package main;
+
+import javax.net.ssl.SSLSocket;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+import java.util.function.LongConsumer;
+
+/**
+ * Transfer path that reads files through a {@link FileChannel} instead of handing
+ * a {@link FileInputStream} to storeFile().
+ * On plain (PROT C) data connections created by a {@link ChannelSocketFactory},
+ * the file is sent with FileChannel.transferTo() straight to the socket channel,
+ * so the bytes never pass through the heap.
+ * On SSL data connections the bytes must go through the SSL engine, so the file is read
+ * into a reusable direct {@link ByteBuffer} and written in large blocks from a reusable array.
+ * Each thread keeps its own buffers, so no buffer is allocated per file.
+ * If a {@link ChecksumVerifier.Checksum} is given, each block is hashed on a helper thread
+ * while it is written, and transferTo() is not used, since its bytes cannot be seen.
+ * Compressible files can be sent in the deflate transfer mode through a {@link DeflatePipeline}.
+ * Every transfer takes its bandwidth from a {@link BandwidthLimiter}; while a rate is set,
+ * transferTo() sends blocks of the buffer size instead of large chunks.
+ * The next file of a thread can be prefetched while the server finishes the transfer before:
+ * it is opened and its first block is read into the buffer of the thread, and the next
+ * transfer of that file starts with them.
+ */
+public class ChannelTransfer {
+    public static final int defaultBufferSize = 64*1024;
+    private static final long transferChunk = 1024*1024;
+    private final int bufferSize;
+    private final LongConsumer progress;
+    private final BandwidthLimiter bandwidthLimiter;
+    private final ThreadLocal<ByteBuffer> directBuffers;
+    private final ThreadLocal<byte[]> arrayBuffers;
+    private final ThreadLocal<Prefetch> prefetches;
+
+    /**
+     * Constructor for {@link ChannelTransfer}.
+     * @param bufferSize        Size in bytes of the buffers files are read into.
+     * @param progress          {@link LongConsumer} the number of bytes of every write is passed to.
+     * @param bandwidthLimiter  {@link BandwidthLimiter} the transfers are limited by.
+     */
+    public ChannelTransfer(int bufferSize, LongConsumer progress, BandwidthLimiter bandwidthLimiter) {
+        this.bufferSize = bufferSize > 0 ? bufferSize : defaultBufferSize;
+        this.progress = progress;
+        this.bandwidthLimiter = bandwidthLimiter;
+        this.directBuffers = ThreadLocal.withInitial(() -> ByteBuffer.allocateDirect(this.bufferSize));
+        this.arrayBuffers = ThreadLocal.withInitial(() -> new byte[this.bufferSize]);
+        this.prefetches = new ThreadLocal<>();
+    }
+
+    /**
+     * Opens a file and reads its first block into the direct buffer of this thread,
+     * for the next transfer of this thread. A file prefetched before and not sent is closed.
+     * If the file cannot be read, nothing is prefetched, and the transfer reports the error.
+     * @param file  {@link File} to upload next.
+     */
+    public void prefetch(File file) {
+        clearPrefetch();
+        FileInputStream fileStream = null;
+        try {
+            fileStream = new FileInputStream(file);
+            ByteBuffer buffer = directBuffers.get();
+            buffer.clear();
+            int read = fileStream.getChannel().read(buffer, 0);
+            prefetches.set(new Prefetch(file, fileStream, read));
+        } catch(IOException e) {
+            if(fileStream != null) {
+                try {
+                    fileStream.close();
+                } catch(IOException closeException) {
+                    // Nothing was prefetched either way.
+                }
+            }
+        }
+    }
+
+    /**
+     * Closes the file prefetched by this thread, if it was not sent.
+     */
+    public void clearPrefetch() {
+        Prefetch prefetch = prefetches.get();
+        if(prefetch != null) {
+            prefetches.remove();
+            try {
+                prefetch.fileStream.close();
+            } catch(IOException e) {
+                // The file was only read.
+            }
+        }
+    }
+
+    /**
+     * Takes the file prefetched by this thread if it is the given one, otherwise opens it.
+     * @param file          {@link File} to upload.
+     * @return              {@link Prefetch} of the file, with no bytes read if it was not prefetched.
+     * @throws IOException  If the file cannot be opened.
+     */
+    private Prefetch open(File file) throws IOException {
+        Prefetch prefetch = prefetches.get();
+        if(prefetch != null && prefetch.file.equals(file)) {
+            prefetches.remove();
+            return prefetch;
+        }
+        clearPrefetch();
+        return new Prefetch(file, new FileInputStream(file), 0);
+    }
+
+    /**
+     * Uploads a file, or its remainder from an offset, over a new data connection.
+     * @param ftp           Logged-in and configured {@link UploaderFtpsClient}.
+     * @param file          {@link File} to upload.
+     * @param offset        Offset to start at: sent as "REST" before "STOR", or the size
+     *                      already on the server for "APPE".
+     * @param command       "STOR" or "APPE".
+     * @param checksum      {@link ChecksumVerifier.Checksum} to add the sent bytes to, or null.
+     * @return              True if the server confirmed the transfer.
+     * @throws IOException  If reading the file or writing to the data connection fails.
+     */
+    public boolean storeFile(UploaderFtpsClient ftp, File file, long offset, String command,
+                             ChecksumVerifier.Checksum checksum) throws IOException {
+        Prefetch prefetch = open(file);
+        FileInputStream fileStream = prefetch.fileStream;
+        try {
+            ftp.setDeflate(false);
+            FileChannel fileChannel = fileStream.getChannel();
+            if(offset > 0 && command.equals("STOR")) {
+                ftp.setRestartOffset(offset);
+            }
+            Socket socket = ftp.openDataConnection(command, file.getName());
+            if(socket == null) {
+                return false;
+            }
+            BandwidthLimiter.Transfer transfer = bandwidthLimiter.open();
+            try {
+                SocketChannel socketChannel = socket instanceof SSLSocket ? null : socket.getChannel();
+                if(socketChannel != null && checksum == null) {
+                    transferTo(fileChannel, offset, socketChannel, transfer);
+                } else {
+                    copy(fileChannel, offset, offset == 0 ? prefetch.read : 0,
+                            transfer.wrap(socket.getOutputStream()), checksum);
+                }
+            } finally {
+                transfer.close();
+                socket.close();
+            }
+        } finally {
+            fileStream.close();
+        }
+        return ftp.completePendingCommand();
+    }
+
+    /**
+     * Uploads a whole file compressed, over a new data connection in the deflate transfer mode.
+     * @param ftp           Logged-in and configured {@link UploaderFtpsClient}.
+     * @param file          {@link File} to upload.
+     * @param pipeline      {@link DeflatePipeline} that compresses the file.
+     * @param checksum      {@link ChecksumVerifier.Checksum} to add the file bytes to, or null.
+     * @return              True if the server confirmed the transfer.
+     * @throws IOException  If reading the file or writing to the data connection fails.
+     */
+    public boolean storeCompressed(UploaderFtpsClient ftp, File file, DeflatePipeline pipeline,
+                                   ChecksumVerifier.Checksum checksum) throws IOException {
+        FileInputStream fileStream = open(file).fileStream;
+        try {
+            ftp.setDeflate(true);
+            Socket socket = ftp.openDataConnection("STOR", file.getName());
+            if(socket == null) {
+                return false;
+            }
+            BandwidthLimiter.Transfer transfer = bandwidthLimiter.open();
+            try {
+                pipeline.send(fileStream.getChannel(), transfer.wrap(socket.getOutputStream()), progress, checksum);
+            } finally {
+                transfer.close();
+                socket.close();
+            }
+        } finally {
+            fileStream.close();
+        }
+        return ftp.completePendingCommand();
+    }
+
+    /**
+     * Returns whether a file is worth sending compressed, judged by its first block.
+     * @param pipeline      {@link DeflatePipeline} that would compress the file.
+     * @param file          {@link File} to upload.
+     * @return              True if the first block compresses well enough.
+     * @throws IOException  If the file cannot be read.
+     */
+    public boolean isCompressible(DeflatePipeline pipeline, File file) throws IOException {
+        FileInputStream fileStream = new FileInputStream(file);
+        try {
+            return pipeline.isCompressible(fileStream.getChannel());
+        } finally {
+            fileStream.close();
+        }
+    }
+
+    /**
+     * Sends the file from the offset straight to the socket channel, in chunks
+     * so that progress is reported while the file is sent.
+     * @param fileChannel   {@link FileChannel} of the file.
+     * @param offset        Offset of the first byte to send.
+     * @param socketChannel {@link SocketChannel} of the data connection.
+     * @param transfer      {@link BandwidthLimiter.Transfer} that takes the tokens for the sent bytes.
+     * @throws IOException  If reading the file or writing to the socket fails.
+     */
+    private void transferTo(FileChannel fileChannel, long offset, SocketChannel socketChannel,
+                            BandwidthLimiter.Transfer transfer) throws IOException {
+        long size = fileChannel.size();
+        long position = offset;
+        while(position < size) {
+            long chunk = bandwidthLimiter.isLimited() ? bufferSize : transferChunk;
+            long sent = fileChannel.transferTo(position, Math.min(chunk, size-position), socketChannel);
+            position += sent;
+            progress.accept(sent);
+            transfer.acquire(sent);
+        }
+    }
+
+    /**
+     * Reads the file from the offset into the direct buffer of this thread
+     * and writes it to the output stream of the data connection.
+     * @param fileChannel   {@link FileChannel} of the file.
+     * @param offset        Offset of the first byte to send.
+     * @param prefetched    Number of bytes from the offset already in the direct buffer, or 0 for none.
+     * @param output        {@link OutputStream} of the data connection.
+     * @param checksum      {@link ChecksumVerifier.Checksum} to add the sent bytes to, or null.
+     * @throws IOException  If reading the file or writing to the stream fails.
+     */
+    private void copy(FileChannel fileChannel, long offset, int prefetched, OutputStream output,
+                      ChecksumVerifier.Checksum checksum) throws IOException {
+        ByteBuffer buffer = directBuffers.get();
+        byte[] array = arrayBuffers.get();
+        long position = offset;
+        int read = prefetched;
+        if(read <= 0) {
+            buffer.clear();
+            read = fileChannel.read(buffer, position);
+        }
+        for(; read != -1; read = fileChannel.read(buffer, position)) {
+            buffer.flip();
+            buffer.get(array, 0, read);
+            buffer.clear();
+            if(checksum != null) {
+                checksum.updateInBackground(array, 0, read);
+            }
+            output.write(array, 0, read);
+            if(checksum != null) {
+                checksum.await();
+            }
+            position += read;
+            progress.accept(read);
+        }
+        output.flush();
+    }
+
+    /**
+     * File opened for a transfer, and the number of its first bytes already read
+     * into the direct buffer of the thread that opened it.
+     */
+    private static class Prefetch {
+        private final File file;
+        private final FileInputStream fileStream;
+        private final int read;
+
+        /**
+         * Constructor for {@link Prefetch}.
+         * @param file          {@link File} that was opened.
+         * @param fileStream    {@link FileInputStream} of the file.
+         * @param read          Number of bytes read from the start of the file, or -1 if it is empty.
+         */
+        private Prefetch(File file, FileInputStream fileStream, int read) {
+            this.file = file;
+            this.fileStream = fileStream;
+            this.read = read;
+        }
+    }
+}
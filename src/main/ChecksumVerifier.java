@@ -0,0 +1,368 @@
+package main;
+
+import org.apache.commons.net.ftp.FTPReply;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+
+/**
+ * Verifies uploaded files against a checksum the FTP server computes of the stored file.
+ * The local checksum is computed by a {@link Checksum} from the bytes as they are sent,
+ * so the file is not read a second time.
+ * The hash command is chosen once per upload: "HASH" if the server advertises it in its
+ * "FEAT" reply, otherwise the first of "XSHA256", "XMD5", "MD5" and "XCRC" the server
+ * advertises too, or does not reject as unknown when asked for a file that does not exist.
+ * With "auto", MD5 is preferred, it detects corrupted transfers as well as SHA-256
+ * at a fraction of the cost, then SHA-256, then CRC32.
+ * Blocks sent through the {@link ChannelTransfer} are hashed on a helper thread while the
+ * same block is written to the data connection, so hashing only slows the transfer down
+ * where it is slower than the connection. The time the transfers waited for hashing
+ * is measured against the time of the transfers, so the overhead on throughput
+ * can be printed after the upload.
+ */
+public class ChecksumVerifier {
+    private static final List<String> autoAlgorithms = Arrays.asList("MD5", "SHA-256", "CRC32");
+    private static final String[][] commands = {{"XSHA256", "SHA-256"}, {"XMD5", "MD5"}, {"MD5", "MD5"}, {"XCRC", "CRC32"}};
+    private static final String probeName = ".autoUploadFiles.probe";
+    private static final ExecutorService hashExecutor = Executors.newCachedThreadPool(runnable -> {
+        Thread thread = new Thread(runnable, "ChecksumVerifier");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private final List<String> algorithms;
+    private final Set<UploaderFtpsClient> hashSelected;
+    private final AtomicLong checksumNanos;
+    private final AtomicLong waitNanos;
+    private final AtomicLong transferNanos;
+    private final AtomicLong bytes;
+    private String command;
+    private String algorithm;
+
+    /**
+     * Constructor for {@link ChecksumVerifier}.
+     * @param algorithm "auto", "MD5", "SHA-256" or "CRC32".
+     */
+    public ChecksumVerifier(String algorithm) {
+        this.algorithms = algorithm.equalsIgnoreCase("auto") ? autoAlgorithms
+                : Collections.singletonList(algorithm.toUpperCase());
+        this.hashSelected = Collections.synchronizedSet(Collections.newSetFromMap(new WeakHashMap<>()));
+        this.checksumNanos = new AtomicLong(0);
+        this.waitNanos = new AtomicLong(0);
+        this.transferNanos = new AtomicLong(0);
+        this.bytes = new AtomicLong(0);
+        this.command = null;
+        this.algorithm = null;
+    }
+
+    /**
+     * Chooses the hash command and algorithm supported by the FTP server.
+     * @param ftp           Logged-in and configured {@link UploaderFtpsClient} in the upload path.
+     * @return              True if the server supports one of the algorithms.
+     * @throws IOException  If thrown by FTP client command functions.
+     */
+    public synchronized boolean select(UploaderFtpsClient ftp) throws IOException {
+        String[] hashValues = ftp.featureValues("HASH");
+        if(hashValues != null) {
+            List<String> offered = new ArrayList<>();
+            for(String value : hashValues) {
+                for(String name : value.split(";")) {
+                    offered.add(name.replace("*", "").trim().toUpperCase());
+                }
+            }
+            for(String name : algorithms) {
+                if(offered.contains(name)) {
+                    command = "HASH";
+                    algorithm = name;
+                    System.out.println("Verifying uploads with HASH "+algorithm+".");
+                    return true;
+                }
+            }
+        }
+        for(String[] candidate : commands) {
+            if(algorithms.contains(candidate[1]) && isRecognized(ftp, candidate[0])) {
+                command = candidate[0];
+                algorithm = candidate[1];
+                System.out.println("Verifying uploads with "+command+".");
+                return true;
+            }
+        }
+        System.out.println("FTP server does not support "+String.join(", ", algorithms)+" checksums, uploads are not verified.");
+        return false;
+    }
+
+    /**
+     * Returns a new {@link Checksum} of the chosen algorithm for one file.
+     * @return  {@link Checksum} with no bytes added.
+     */
+    public Checksum newChecksum() {
+        return new Checksum(algorithm);
+    }
+
+    /**
+     * Asks the FTP server for the checksum of a stored file and compares it with the local one.
+     * If the server cannot compute it, the file is counted as verified, there is nothing
+     * a new upload would change.
+     * @param ftp           Logged-in and configured {@link UploaderFtpsClient} the file was stored with.
+     * @param remote        Name of the file on the FTP server.
+     * @param checksum      {@link Checksum} of the bytes that were sent.
+     * @return              False if the server's checksum differs from the local one.
+     * @throws IOException  If thrown by FTP client command functions.
+     */
+    public boolean verify(UploaderFtpsClient ftp, String remote, Checksum checksum) throws IOException {
+        checksum.await();
+        checksumNanos.addAndGet(checksum.nanos);
+        waitNanos.addAndGet(checksum.waitNanos);
+        transferNanos.addAndGet(System.nanoTime()-checksum.createdNanos);
+        bytes.addAndGet(checksum.bytes);
+        if(command.equals("HASH") && !hashSelected.contains(ftp)) {
+            ftp.sendCommand("OPTS", "HASH "+algorithm);
+            hashSelected.add(ftp);
+        }
+        if(!FTPReply.isPositiveCompletion(ftp.sendCommand(command, remote))) {
+            System.out.println("FTP server could not compute the checksum of \""+remote+"\": "+ftp.getReplyString().trim());
+            return true;
+        }
+        String local = checksum.toHex();
+        boolean found = false;
+        for(String line : ftp.getReplyStrings()) {
+            String[] tokens = line.trim().split("\\s+");
+            for(int i = 1; i < tokens.length; i++) {
+                if(matches(tokens[i], local)) {
+                    return true;
+                }
+                found |= isChecksum(tokens[i], local);
+            }
+        }
+        if(!found) {
+            System.out.println("FTP server replied to "+command+" without a checksum: "+ftp.getReplyString().trim());
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Returns the name of the chosen algorithm.
+     * @return  "MD5", "SHA-256" or "CRC32", or null before select(UploaderFtpsClient).
+     */
+    public synchronized String getAlgorithm() {
+        return algorithm;
+    }
+
+    /**
+     * Returns a summary of the bytes checksummed, the time it took, and the time the transfers waited for it.
+     * @return  {@link String} like "MD5 checksums: 50.0 MB in 80 ms, transfers waited 2 ms, 0.1% of transfer time."
+     */
+    @Override
+    public String toString() {
+        double percent = transferNanos.get() > 0 ? 100.0*waitNanos.get()/transferNanos.get() : 0;
+        return String.format("%s checksums: %.1f MB in %d ms, transfers waited %d ms, %.1f%% of transfer time.",
+                getAlgorithm(), bytes.get()/(1024.0*1024), checksumNanos.get()/1000000, waitNanos.get()/1000000, percent);
+    }
+
+    /**
+     * Checks whether the server knows a hash command: if it is not advertised in the "FEAT" reply,
+     * it is sent for a file that does not exist. Servers reply 504 for a file they cannot hash,
+     * so only 500, 502 and 202 count as an unknown command.
+     * @param ftp           Logged-in {@link UploaderFtpsClient}.
+     * @param command       Hash command to check.
+     * @return              True unless the server replied that the command is unknown or not implemented.
+     * @throws IOException  If thrown by FTP client command functions.
+     */
+    private boolean isRecognized(UploaderFtpsClient ftp, String command) throws IOException {
+        if(ftp.hasFeature(command)) {
+            return true;
+        }
+        int reply = ftp.sendCommand(command, probeName);
+        return reply != FTPReply.UNRECOGNIZED_COMMAND && reply != FTPReply.COMMAND_NOT_IMPLEMENTED
+                && reply != FTPReply.COMMAND_IS_SUPERFLUOUS;
+    }
+
+    /**
+     * Compares a token of a reply with the local checksum. CRC32 values are compared
+     * as numbers, since some servers leave out leading zeros.
+     * @param token Token of the reply.
+     * @param local Local checksum in hexadecimal.
+     * @return      True if the token is the local checksum.
+     */
+    private boolean matches(String token, String local) {
+        if(local.length() == 8 && token.length() <= 8 && isHex(token)) {
+            return Long.parseLong(token, 16) == Long.parseLong(local, 16);
+        }
+        return token.equalsIgnoreCase(local);
+    }
+
+    /**
+     * Returns whether a token of a reply is a checksum of the same kind as the local one,
+     * whether it matches or not. CRC32 values count with up to 8 digits, like in
+     * matches(String, String), so that one that lost its leading zeros and differs is not missed.
+     * @param token Token of the reply.
+     * @param local Local checksum in hexadecimal.
+     * @return      True if the token is a checksum.
+     */
+    private static boolean isChecksum(String token, String local) {
+        if(local.length() == 8) {
+            return token.length() <= 8 && isHex(token);
+        }
+        return token.length() == local.length() && isHex(token);
+    }
+
+    /**
+     * Returns whether a token consists only of hexadecimal digits.
+     * @param token Token of a reply.
+     * @return      True if the token is a hexadecimal number.
+     */
+    private static boolean isHex(String token) {
+        if(token.isEmpty()) {
+            return false;
+        }
+        for(int i = 0; i < token.length(); i++) {
+            if(Character.digit(token.charAt(i), 16) < 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Running checksum of the bytes of one file as they are sent, either a {@link MessageDigest}
+     * or a {@link CRC32}. Measures the time spent in its updates, and the time the sending thread
+     * waited for them. Used by one sending thread at a time.
+     */
+    public static class Checksum {
+        private final MessageDigest digest;
+        private final CRC32 crc;
+        private final long createdNanos;
+        private long nanos;
+        private long waitNanos;
+        private long bytes;
+        private Future<?> pending;
+
+        /**
+         * Constructor for {@link Checksum}.
+         * @param algorithm "MD5", "SHA-256" or "CRC32".
+         */
+        private Checksum(String algorithm) {
+            try {
+                this.digest = algorithm.equals("CRC32") ? null : MessageDigest.getInstance(algorithm);
+            } catch(NoSuchAlgorithmException e) {
+                throw new IllegalStateException(e);
+            }
+            this.crc = algorithm.equals("CRC32") ? new CRC32() : null;
+            this.createdNanos = System.nanoTime();
+            this.nanos = 0;
+            this.waitNanos = 0;
+            this.bytes = 0;
+            this.pending = null;
+        }
+
+        /**
+         * Adds bytes of an array to the checksum.
+         * @param array     Array holding the bytes.
+         * @param offset    Offset of the first byte.
+         * @param length    Number of bytes.
+         */
+        public void update(byte[] array, int offset, int length) {
+            long start = System.nanoTime();
+            if(digest != null) {
+                digest.update(array, offset, length);
+            } else {
+                crc.update(array, offset, length);
+            }
+            nanos += System.nanoTime()-start;
+            bytes += length;
+        }
+
+        /**
+         * Starts adding bytes of an array to the checksum on a helper thread.
+         * The array must not change until await() returns.
+         * @param array     Array holding the bytes.
+         * @param offset    Offset of the first byte.
+         * @param length    Number of bytes.
+         */
+        public void updateInBackground(byte[] array, int offset, int length) {
+            await();
+            pending = hashExecutor.submit(() -> update(array, offset, length));
+        }
+
+        /**
+         * Waits until the update started by updateInBackground(byte[], int, int) is done.
+         */
+        public void await() {
+            if(pending == null) {
+                return;
+            }
+            long start = System.nanoTime();
+            try {
+                pending.get();
+            } catch(InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch(ExecutionException e) {
+                throw new IllegalStateException(e.getCause());
+            } finally {
+                pending = null;
+                waitNanos += System.nanoTime()-start;
+            }
+        }
+
+        /**
+         * Wraps an input stream so that every byte read from it is added to the checksum.
+         * @param input {@link InputStream} of the file.
+         * @return      {@link InputStream} that updates the checksum.
+         */
+        public InputStream wrap(InputStream input) {
+            return new FilterInputStream(input) {
+                @Override
+                public int read() throws IOException {
+                    int value = in.read();
+                    if(value >= 0) {
+                        update(new byte[] {(byte) value}, 0, 1);
+                        waitNanos = nanos;
+                    }
+                    return value;
+                }
+
+                @Override
+                public int read(byte[] array, int offset, int length) throws IOException {
+                    int read = in.read(array, offset, length);
+                    if(read > 0) {
+                        update(array, offset, read);
+                        waitNanos = nanos;
+                    }
+                    return read;
+                }
+            };
+        }
+
+        /**
+         * Returns the checksum in lowercase hexadecimal, CRC32 padded to 8 digits.
+         * @return  {@link String} of the checksum.
+         */
+        public String toHex() {
+            await();
+            if(digest == null) {
+                return String.format("%08x", crc.getValue());
+            }
+            StringBuilder hex = new StringBuilder();
+            for(byte b : digest.digest()) {
+                hex.append(String.format("%02x", b));
+            }
+            return hex.toString();
+        }
+    }
+}
@@ -0,0 +1,186 @@
+package main;
+
+import java.io.IOException;
+import java.util.Locale;
+
+/**
+ * Tunes the number of connections of the {@link UploadEngine} from the throughput it observes,
+ * in the additive increase, multiplicative decrease (AIMD) way of TCP congestion control.
+ * The throughput is measured over windows of a fixed length. While adding a connection raises
+ * the throughput by at least a twentieth, one more is added after every window, up to the
+ * connections setting. If it does not, the connection is taken away again and the number held
+ * for a few windows before the next one is tried. A 421 or 425 reply, or an additional
+ * connection the server does not let open, halves the number of connections and caps it below
+ * where the server refused. A throughput that falls well below the one measured before at the
+ * same number of connections takes one away.
+ * The number of connections with the highest throughput is remembered for the host in the
+ * "concurrency.&lt;host&gt;" setting, and the next upload to the host starts with it.
+ */
+public class ConcurrencyController {
+    public static final long defaultWindowMillis = 2000;
+    private static final double improvement = 1.05;
+    private static final double fall = 0.7;
+    private static final int holdWindows = 5;
+    private static final int minimumWindows = 3;
+    private final UploadSettings settings;
+    private final String key;
+    private final long windowMillis;
+    private int maxConnections;
+    private int target;
+    private int ceiling;
+    private int hold;
+    private boolean probing;
+    private double rateBeforeProbe;
+    private double rateAtTarget;
+    private double bestRate;
+    private int bestConnections;
+    private int windows;
+    private long lastNanos;
+    private long lastBytes;
+    private boolean congested;
+
+    /**
+     * Constructor for {@link ConcurrencyController}.
+     * @param settings      {@link UploadSettings} the best number of connections is read from and saved in.
+     * @param hostname      Hostname of the FTP server.
+     * @param windowMillis  Length in milliseconds of the windows the throughput is measured over.
+     */
+    public ConcurrencyController(UploadSettings settings, String hostname, long windowMillis) {
+        this.settings = settings;
+        this.key = "concurrency."+hostname.toLowerCase(Locale.ROOT);
+        this.windowMillis = windowMillis > 0 ? windowMillis : defaultWindowMillis;
+        this.maxConnections = 1;
+        this.target = 1;
+        this.ceiling = 1;
+        this.hold = 0;
+        this.probing = false;
+        this.rateBeforeProbe = 0;
+        this.rateAtTarget = 0;
+        this.bestRate = 0;
+        this.bestConnections = 1;
+        this.windows = 0;
+        this.lastNanos = 0;
+        this.lastBytes = 0;
+        this.congested = false;
+    }
+
+    /**
+     * Starts measuring a batch, with the number of connections remembered for the host,
+     * or one if none is remembered.
+     * @param maxConnections    Maximum number of connections of the batch.
+     * @param bytesUploaded     Bytes uploaded so far.
+     * @return                  Number of connections to start with.
+     */
+    public synchronized int start(int maxConnections, long bytesUploaded) {
+        this.maxConnections = Math.max(1, maxConnections);
+        this.ceiling = this.maxConnections;
+        this.target = Math.max(1, Math.min(this.maxConnections, settings.getInt(key, 1)));
+        this.bestConnections = target;
+        this.lastNanos = System.nanoTime();
+        this.lastBytes = bytesUploaded;
+        return target;
+    }
+
+    /**
+     * Returns the number of connections to upload over.
+     * @return  Number of connections, at least 1.
+     */
+    public synchronized int getTarget() {
+        return target;
+    }
+
+    /**
+     * Returns the length of the windows the throughput is measured over.
+     * @return  Length of a window in milliseconds.
+     */
+    public long getWindowMillis() {
+        return windowMillis;
+    }
+
+    /**
+     * Records that the server refused a connection or a data connection, such as with a 421 or 425 reply.
+     * The number of connections is halved at the end of the window.
+     */
+    public synchronized void congested() {
+        congested = true;
+    }
+
+    /**
+     * Ends a window and returns the number of connections for the next one.
+     * If too few files are left to keep every connection busy, such as at the end of a batch,
+     * the throughput of the window is not judged, as it falls whatever the number of connections.
+     * @param bytesUploaded     Bytes uploaded so far.
+     * @param enoughFiles       True if at least as many files are left as there are connections.
+     * @return                  Number of connections to upload over.
+     */
+    public synchronized int adjust(long bytesUploaded, boolean enoughFiles) {
+        long now = System.nanoTime();
+        double seconds = (now-lastNanos)/1e9;
+        double rate = seconds > 0 ? (bytesUploaded-lastBytes)/seconds : 0;
+        lastNanos = now;
+        lastBytes = bytesUploaded;
+        int previous = target;
+        if(congested) {
+            congested = false;
+            ceiling = Math.max(1, target-1);
+            target = Math.max(1, target/2);
+            bestConnections = Math.min(bestConnections, ceiling);
+            probing = false;
+            rateAtTarget = 0;
+            hold = holdWindows;
+        } else if(enoughFiles) {
+            windows++;
+            if(rate > bestRate) {
+                bestRate = rate;
+                bestConnections = target;
+            }
+            if(probing) {
+                probing = false;
+                if(rate < rateBeforeProbe*improvement) {
+                    target--;
+                    rateAtTarget = rateBeforeProbe;
+                    hold = holdWindows;
+                } else {
+                    rateAtTarget = rate;
+                }
+            } else if(rateAtTarget > 0 && rate < rateAtTarget*fall && target > 1) {
+                target--;
+                rateAtTarget = 0;
+                hold = holdWindows;
+            } else if(hold > 0) {
+                hold--;
+                rateAtTarget = rateAtTarget > 0 ? Math.max(rateAtTarget, rate) : rate;
+            } else if(target < Math.min(ceiling, maxConnections)) {
+                rateBeforeProbe = rate;
+                probing = true;
+                target++;
+            } else {
+                rateAtTarget = rateAtTarget > 0 ? Math.max(rateAtTarget, rate) : rate;
+            }
+        }
+        if(target != previous) {
+            System.out.println(String.format(Locale.ROOT, "Uploading over %d connection(s) instead of %d at %.0f KB/s.",
+                    target, previous, rate/1024));
+        }
+        return target;
+    }
+
+    /**
+     * Saves the number of connections with the highest throughput for the host,
+     * if enough windows were measured to judge it.
+     */
+    public synchronized void remember() {
+        if(windows < minimumWindows) {
+            return;
+        }
+        if(bestConnections == settings.getInt(key, 0)) {
+            return;
+        }
+        try {
+            settings.save(key, String.valueOf(bestConnections));
+            System.out.println("Best throughput with "+bestConnections+" connection(s), remembered as "+key+".");
+        } catch(IOException e) {
+            System.out.println("Number of connections could not be remembered: "+e.getMessage());
+        }
+    }
+}
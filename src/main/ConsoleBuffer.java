@@ -0,0 +1,137 @@
+package main;
+
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Lock-free ring buffer of console output, written to by the upload threads
+ * and drained in bulk by the thread that shows the console.
+ * Writing copies the bytes into the ring without allocating or locking.
+ * The first write after a drain runs the drain scheduler once, so the console
+ * is updated at most once per scheduled drain, no matter how many writes came in between.
+ * Bytes are decoded as UTF-8 on draining; a character split between two drains
+ * is kept until its remaining bytes arrive.
+ * Writes must come from one thread at a time, such as through a single {@link java.io.PrintStream},
+ * which locks itself around every write. If the ring is full because the console
+ * is not being drained, new bytes are dropped and counted instead of blocking the upload.
+ */
+public class ConsoleBuffer extends OutputStream {
+    private final byte[] ring;
+    private final int mask;
+    private final AtomicLong head;
+    private final AtomicLong tail;
+    private final AtomicLong dropped;
+    private final AtomicBoolean drainScheduled;
+    private final Runnable drainScheduler;
+    private final CharsetDecoder decoder;
+    private final ByteBuffer pendingBytes;
+    private final CharBuffer decodedChars;
+
+    /**
+     * Constructor for {@link ConsoleBuffer}.
+     * @param capacity          Capacity of the ring in bytes, rounded up to a power of two.
+     * @param drainScheduler    {@link Runnable} run by a writing thread when new bytes
+     *                          are waiting, to schedule a call to drain() on the console thread.
+     */
+    public ConsoleBuffer(int capacity, Runnable drainScheduler) {
+        int size = Integer.highestOneBit(Math.max(capacity, 2)-1) << 1;
+        this.ring = new byte[size];
+        this.mask = size-1;
+        this.head = new AtomicLong(0);
+        this.tail = new AtomicLong(0);
+        this.dropped = new AtomicLong(0);
+        this.drainScheduled = new AtomicBoolean(false);
+        this.drainScheduler = drainScheduler;
+        this.decoder = StandardCharsets.UTF_8.newDecoder()
+                .onMalformedInput(CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE);
+        this.pendingBytes = ByteBuffer.allocate(size+8);
+        this.decodedChars = CharBuffer.allocate(size+8);
+    }
+
+    /**
+     * Writes one byte into the ring.
+     * @param b The byte to write.
+     */
+    @Override
+    public void write(int b) {
+        long position = tail.get();
+        if(position-head.get() >= ring.length) {
+            dropped.incrementAndGet();
+            return;
+        }
+        ring[(int) position & mask] = (byte) b;
+        tail.lazySet(position+1);
+        scheduleDrain();
+    }
+
+    /**
+     * Writes an array of bytes into the ring, wrapping around its end if needed.
+     * @param b     The bytes to write.
+     * @param off   Offset of the first byte to write.
+     * @param len   Number of bytes to write.
+     */
+    @Override
+    public void write(byte[] b, int off, int len) {
+        long position = tail.get();
+        int free = ring.length-(int) (position-head.get());
+        if(len > free) {
+            dropped.addAndGet(len-free);
+            len = free;
+        }
+        if(len <= 0) {
+            return;
+        }
+        int start = (int) position & mask;
+        int first = Math.min(len, ring.length-start);
+        System.arraycopy(b, off, ring, start, first);
+        System.arraycopy(b, off+first, ring, 0, len-first);
+        tail.lazySet(position+len);
+        scheduleDrain();
+    }
+
+    /**
+     * Runs the drain scheduler if no drain is scheduled yet.
+     */
+    private void scheduleDrain() {
+        if(drainScheduler != null && drainScheduled.compareAndSet(false, true)) {
+            drainScheduler.run();
+        }
+    }
+
+    /**
+     * Takes every byte written since the last drain out of the ring and decodes it.
+     * Called by the thread showing the console, one thread at a time.
+     * @return  Decoded text, or an empty {@link String} if nothing was written.
+     */
+    public synchronized String drain() {
+        drainScheduled.set(false);
+        long start = head.get();
+        long end = tail.get();
+        int length = (int) (end-start);
+        int offset = (int) start & mask;
+        int first = Math.min(length, ring.length-offset);
+        pendingBytes.put(ring, offset, first);
+        pendingBytes.put(ring, 0, length-first);
+        head.lazySet(end);
+
+        pendingBytes.flip();
+        decoder.decode(pendingBytes, decodedChars, false);
+        pendingBytes.compact();
+        decodedChars.flip();
+        String text = decodedChars.toString();
+        decodedChars.clear();
+
+        long droppedBytes = dropped.getAndSet(0);
+        if(droppedBytes > 0) {
+            text += System.lineSeparator()+"[Console fell behind, "+droppedBytes+" bytes were not shown.]"+System.lineSeparator();
+        }
+        return text;
+    }
+}
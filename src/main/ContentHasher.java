@@ -0,0 +1,84 @@
+package main;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Computes SHA-256 hashes of file contents on a few daemon threads, ahead of the
+ * connections that upload the files, so that hashing runs in parallel with uploading
+ * and a connection rarely has to wait for the hash of its next file.
+ * Each thread reads files through its own reusable direct {@link ByteBuffer}.
+ * Files are read with reads rather than memory-mapped, so they are not locked
+ * against changes on Windows while the mapping is alive.
+ */
+public class ContentHasher {
+    private static final int bufferSize = 1024*1024;
+    private final ExecutorService executor;
+    private final ThreadLocal<ByteBuffer> buffers;
+
+    /**
+     * Constructor for {@link ContentHasher}.
+     * @param threads   Number of threads hashing at the same time.
+     */
+    public ContentHasher(int threads) {
+        this.executor = Executors.newFixedThreadPool(Math.max(1, threads), runnable -> {
+            Thread thread = new Thread(runnable, "ContentHasher");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.buffers = ThreadLocal.withInitial(() -> ByteBuffer.allocateDirect(bufferSize));
+    }
+
+    /**
+     * Queues a file to be hashed.
+     * @param file  {@link File} to hash.
+     * @return      {@link Future} of the SHA-256 hash of the content of the file.
+     */
+    public Future<byte[]> submit(File file) {
+        return executor.submit(() -> hash(file));
+    }
+
+    /**
+     * Stops hashing. Files queued but not hashed yet are dropped.
+     */
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+
+    /**
+     * Computes the SHA-256 hash of the content of a file.
+     * @param file          {@link File} to hash.
+     * @return              SHA-256 hash, 32 bytes.
+     * @throws IOException  If the file cannot be read.
+     */
+    private byte[] hash(File file) throws IOException {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch(NoSuchAlgorithmException e) {
+            throw new IOException(e);
+        }
+        ByteBuffer buffer = buffers.get();
+        FileInputStream fileStream = new FileInputStream(file);
+        try {
+            FileChannel fileChannel = fileStream.getChannel();
+            buffer.clear();
+            while(fileChannel.read(buffer) != -1) {
+                buffer.flip();
+                digest.update(buffer);
+                buffer.clear();
+            }
+        } finally {
+            fileStream.close();
+        }
+        return digest.digest();
+    }
+}
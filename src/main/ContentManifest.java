@@ -0,0 +1,256 @@
+package main;
+
+import org.apache.commons.lang3.SystemUtils;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Manifest of the file contents that were uploaded to each destination, keyed by
+ * the SHA-256 hash of the content, so that a file whose content was already uploaded,
+ * under another name or from another folder, can be skipped.
+ * Kept in a hidden binary .manifest file next to the .properties file of the program:
+ * an 8 byte header followed by fixed 48 byte records of the content hash,
+ * an id of the destination, and the size of the file.
+ * The file is memory-mapped to load it, and the records are kept in an open-addressing
+ * table of longs, so loading and looking up does not create an object per record.
+ * New records are appended to the file as files finish uploading.
+ */
+public class ContentManifest {
+    public static final String fileName = ".autoUploadFiles.manifest";
+    private static final int magic = 0x4155464D;
+    private static final int version = 1;
+    private static final int headerSize = 8;
+    private static final int recordSize = 48;
+    private static final int keyLongs = 5;
+    private final File manifestFile;
+    private FileChannel channel;
+    private long[] keys;
+    private long[] sizes;
+    private int count;
+
+    /**
+     * Constructor for {@link ContentManifest}. Opens the manifest file, creating it if it does not exist,
+     * and loads its records. A record cut off by an earlier crash is dropped.
+     * @param manifestFile  {@link File} the manifest is kept in.
+     * @throws IOException  If the file cannot be opened or is not a manifest.
+     */
+    public ContentManifest(File manifestFile) throws IOException {
+        this.manifestFile = manifestFile;
+        this.keys = new long[keyLongs*1024];
+        this.sizes = new long[1024];
+        this.count = 0;
+        boolean created = !manifestFile.exists();
+        this.channel = FileChannel.open(manifestFile.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.READ, StandardOpenOption.WRITE);
+        try {
+            if(created || channel.size() < headerSize) {
+                writeHeader();
+            } else {
+                load();
+            }
+        } catch(IOException e) {
+            channel.close();
+            throw e;
+        }
+        if(created && SystemUtils.IS_OS_WINDOWS) {
+            Files.setAttribute(manifestFile.toPath(), "dos:hidden", true);
+        }
+    }
+
+    /**
+     * Returns whether content with the hash and size was uploaded to the destination.
+     * @param hash          SHA-256 hash of the content.
+     * @param destination   Server and path the file is uploaded to.
+     * @param size          Size of the content in bytes.
+     * @return              True if the content is in the manifest.
+     */
+    public synchronized boolean contains(byte[] hash, String destination, long size) {
+        long[] key = getKey(hash, destination);
+        return sizes[findSlot(keys, sizes, key)] == size;
+    }
+
+    /**
+     * Records that content with the hash and size was uploaded to the destination,
+     * and appends the record to the manifest file.
+     * Empty files are not recorded, there is nothing to save by skipping them.
+     * @param hash          SHA-256 hash of the content.
+     * @param destination   Server and path the file was uploaded to.
+     * @param size          Size of the content in bytes.
+     * @throws IOException  If the record cannot be written.
+     */
+    public synchronized void add(byte[] hash, String destination, long size) throws IOException {
+        long[] key = getKey(hash, destination);
+        if(size <= 0 || !insert(key, size)) {
+            return;
+        }
+        ByteBuffer record = ByteBuffer.allocate(recordSize);
+        for(long part : key) {
+            record.putLong(part);
+        }
+        record.putLong(size);
+        record.flip();
+        long position = channel.size();
+        while(record.hasRemaining()) {
+            position += channel.write(record, position);
+        }
+    }
+
+    /**
+     * Returns the number of records in the manifest.
+     * @return  Number of records.
+     */
+    public synchronized int size() {
+        return count;
+    }
+
+    /**
+     * Closes the manifest file.
+     */
+    public synchronized void close() {
+        try {
+            channel.close();
+        } catch(IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Writes the header of a new, empty manifest file.
+     * @throws IOException  If the header cannot be written.
+     */
+    private void writeHeader() throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(headerSize);
+        header.putInt(magic).putInt(version).flip();
+        channel.truncate(0);
+        while(header.hasRemaining()) {
+            channel.write(header, headerSize-header.remaining());
+        }
+    }
+
+    /**
+     * Maps the manifest file and loads its records into the table.
+     * @throws IOException  If the file cannot be read or is not a manifest.
+     */
+    private void load() throws IOException {
+        long length = channel.size();
+        long records = (length-headerSize)/recordSize;
+        if(length != headerSize+records*recordSize) {
+            channel.truncate(headerSize+records*recordSize);
+        }
+        MappedByteBuffer map = channel.map(FileChannel.MapMode.READ_ONLY, 0, headerSize+records*recordSize);
+        if(map.getInt() != magic || map.getInt() != version) {
+            throw new IOException("\""+manifestFile.getName()+"\" is not a manifest of this version.");
+        }
+        long[] key = new long[keyLongs];
+        for(long i = 0; i < records; i++) {
+            for(int j = 0; j < keyLongs; j++) {
+                key[j] = map.getLong();
+            }
+            insert(key, map.getLong());
+        }
+    }
+
+    /**
+     * Inserts a record into the table, growing it once it is half full.
+     * @param key   Hash and destination id of the record.
+     * @param size  Size of the content, greater than 0.
+     * @return      True if the record was new.
+     */
+    private boolean insert(long[] key, long size) {
+        if((count+1)*2 > sizes.length) {
+            grow();
+        }
+        int slot = findSlot(keys, sizes, key);
+        if(sizes[slot] != 0) {
+            return false;
+        }
+        System.arraycopy(key, 0, keys, slot*keyLongs, keyLongs);
+        sizes[slot] = size;
+        count++;
+        return true;
+    }
+
+    /**
+     * Doubles the capacity of the table and inserts every record again.
+     */
+    private void grow() {
+        long[] newKeys = new long[keys.length*2];
+        long[] newSizes = new long[sizes.length*2];
+        long[] key = new long[keyLongs];
+        for(int slot = 0; slot < sizes.length; slot++) {
+            if(sizes[slot] != 0) {
+                System.arraycopy(keys, slot*keyLongs, key, 0, keyLongs);
+                int newSlot = findSlot(newKeys, newSizes, key);
+                System.arraycopy(key, 0, newKeys, newSlot*keyLongs, keyLongs);
+                newSizes[newSlot] = sizes[slot];
+            }
+        }
+        keys = newKeys;
+        sizes = newSizes;
+    }
+
+    /**
+     * Finds the slot of a key in a table with linear probing.
+     * The hash is already uniformly distributed, so its first long picks the first slot.
+     * @param keys  Keys of the table, {@link #keyLongs} longs per slot.
+     * @param sizes Sizes of the table, 0 for an empty slot.
+     * @param key   Hash and destination id to find.
+     * @return      Slot of the key, or the empty slot it would be inserted in.
+     */
+    private static int findSlot(long[] keys, long[] sizes, long[] key) {
+        int mask = sizes.length-1;
+        int slot = (int) (key[0]^key[4]) & mask;
+        while(sizes[slot] != 0 && !matches(keys, slot, key)) {
+            slot = (slot+1) & mask;
+        }
+        return slot;
+    }
+
+    /**
+     * Checks whether the key in a slot equals the given key.
+     * @param keys  Keys of the table.
+     * @param slot  Slot to compare.
+     * @param key   Hash and destination id to compare with.
+     * @return      True if the keys are equal.
+     */
+    private static boolean matches(long[] keys, int slot, long[] key) {
+        int offset = slot*keyLongs;
+        for(int i = 0; i < keyLongs; i++) {
+            if(keys[offset+i] != key[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Returns the key of a record: the four longs of the hash and the id of the destination,
+     * which is the first long of the SHA-256 hash of the destination.
+     * @param hash          SHA-256 hash of the content.
+     * @param destination   Server and path of the upload.
+     * @return              Key of {@link #keyLongs} longs.
+     */
+    private static long[] getKey(byte[] hash, String destination) {
+        ByteBuffer hashBuffer = ByteBuffer.wrap(hash);
+        long[] key = new long[keyLongs];
+        for(int i = 0; i < 4; i++) {
+            key[i] = hashBuffer.getLong();
+        }
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            key[4] = ByteBuffer.wrap(digest.digest(destination.getBytes(StandardCharsets.UTF_8))).getLong();
+        } catch(NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+        return key;
+    }
+}
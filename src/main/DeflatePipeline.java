@@ -0,0 +1,210 @@
+package main;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongConsumer;
+import java.util.zip.Deflater;
+
+/**
+ * Compresses files for the deflate transfer mode ("MODE Z"), in which the data connection
+ * carries a zlib stream of the file.
+ * Whether a file is worth compressing is decided from its first block: if deflating
+ * the block does not save at least a tenth of it, such as for images, video and archives,
+ * the file is sent as it is.
+ * A file is compressed on a helper thread into a few reusable blocks that are handed
+ * to the sending thread, so compressing the next block runs while the previous one
+ * is written to the data connection.
+ */
+public class DeflatePipeline {
+    public static final int defaultLevel = 6;
+    private static final double maxRatio = 0.9;
+    private static final int blocks = 4;
+    private static final ExecutorService deflateExecutor = Executors.newCachedThreadPool(runnable -> {
+        Thread thread = new Thread(runnable, "DeflatePipeline");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private final int level;
+    private final int blockSize;
+    private final AtomicLong fileBytes;
+    private final AtomicLong sentBytes;
+
+    /**
+     * Constructor for {@link DeflatePipeline}.
+     * @param level     Compression level from 1, fastest, to 9, smallest.
+     * @param blockSize Size in bytes of the blocks the file is read and compressed in.
+     */
+    public DeflatePipeline(int level, int blockSize) {
+        this.level = Math.max(Deflater.BEST_SPEED, Math.min(Deflater.BEST_COMPRESSION, level));
+        this.blockSize = blockSize;
+        this.fileBytes = new AtomicLong(0);
+        this.sentBytes = new AtomicLong(0);
+    }
+
+    /**
+     * Deflates the first block of a file to check whether compressing it saves enough.
+     * @param fileChannel   {@link FileChannel} of the file.
+     * @return              True if the first block deflates to at most 90% of its size.
+     * @throws IOException  If the file cannot be read.
+     */
+    public boolean isCompressible(FileChannel fileChannel) throws IOException {
+        ByteBuffer sample = ByteBuffer.allocate((int) Math.min(blockSize, fileChannel.size()));
+        while(sample.hasRemaining() && fileChannel.read(sample, sample.position()) != -1) {
+            // Reads until the sample is full.
+        }
+        if(sample.position() == 0) {
+            return false;
+        }
+        Deflater deflater = new Deflater(level);
+        try {
+            deflater.setInput(sample.array(), 0, sample.position());
+            deflater.finish();
+            byte[] output = new byte[sample.position()];
+            int compressed = 0;
+            while(!deflater.finished() && compressed < output.length) {
+                compressed += deflater.deflate(output, compressed, output.length-compressed);
+            }
+            return deflater.finished() && compressed <= sample.position()*maxRatio;
+        } finally {
+            deflater.end();
+        }
+    }
+
+    /**
+     * Sends a file as a zlib stream. The file is read and compressed on a helper thread,
+     * while this thread writes the compressed blocks to the output.
+     * If compressing fails, the blocks compressed before are sent and the error is thrown here.
+     * @param fileChannel   {@link FileChannel} of the file, read from the start.
+     * @param output        {@link OutputStream} of the data connection.
+     * @param progress      {@link LongConsumer} the number of file bytes of every written block is passed to.
+     * @param checksum      {@link ChecksumVerifier.Checksum} to add the file bytes to, or null.
+     * @throws IOException  If reading the file or writing to the stream fails.
+     */
+    public void send(FileChannel fileChannel, OutputStream output, LongConsumer progress,
+                     ChecksumVerifier.Checksum checksum) throws IOException {
+        BlockingQueue<Block> free = new ArrayBlockingQueue<>(blocks);
+        BlockingQueue<Block> full = new ArrayBlockingQueue<>(blocks+1);
+        for(int i = 0; i < blocks; i++) {
+            free.add(new Block(blockSize));
+        }
+        Future<Void> compressor = deflateExecutor.submit(() -> {
+            compress(fileChannel, free, full, checksum);
+            return null;
+        });
+        try {
+            Block block;
+            while((block = full.take()).length >= 0) {
+                output.write(block.data, 0, block.length);
+                progress.accept(block.fileBytes);
+                fileBytes.addAndGet(block.fileBytes);
+                sentBytes.addAndGet(block.length);
+                free.put(block);
+            }
+            compressor.get();
+        } catch(InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Compressed transfer was interrupted.", e);
+        } catch(ExecutionException e) {
+            if(e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException(e.getCause());
+        } finally {
+            compressor.cancel(true);
+        }
+        output.flush();
+    }
+
+    /**
+     * Returns a summary of the bytes of the files sent compressed and the bytes sent for them.
+     * @return  {@link String} like "Compressed 50.0 MB to 8.0 MB (16%) at level 6."
+     */
+    @Override
+    public String toString() {
+        long file = fileBytes.get();
+        return String.format("Compressed %.1f MB to %.1f MB (%d%%) at level %d.", file/(1024.0*1024),
+                sentBytes.get()/(1024.0*1024), file > 0 ? Math.round(100.0*sentBytes.get()/file) : 100, level);
+    }
+
+    /**
+     * Reads the file and deflates it into free blocks, and queues every filled block for sending.
+     * Queues a block with a length of -1 once the file is done, or if compressing fails,
+     * so that the sending thread never waits for a block that does not come.
+     * The queue of blocks to send has room for it on top of the other blocks.
+     * @param fileChannel           {@link FileChannel} of the file.
+     * @param free                  Blocks that can be filled.
+     * @param full                  Blocks to send.
+     * @param checksum              {@link ChecksumVerifier.Checksum} to add the file bytes to, or null.
+     * @throws IOException          If the file cannot be read.
+     * @throws InterruptedException If the sending thread gave up on the transfer.
+     */
+    private void compress(FileChannel fileChannel, BlockingQueue<Block> free, BlockingQueue<Block> full,
+                          ChecksumVerifier.Checksum checksum) throws IOException, InterruptedException {
+        Deflater deflater = new Deflater(level);
+        try {
+            ByteBuffer input = ByteBuffer.allocate(blockSize);
+            long position = 0;
+            long reported = 0;
+            Block block = free.take();
+            block.length = 0;
+            boolean endOfFile = false;
+            while(!deflater.finished()) {
+                if(!endOfFile && deflater.needsInput()) {
+                    input.clear();
+                    int read = fileChannel.read(input, position);
+                    if(read > 0) {
+                        position += read;
+                        if(checksum != null) {
+                            checksum.update(input.array(), 0, read);
+                        }
+                        deflater.setInput(input.array(), 0, read);
+                    } else if(read < 0) {
+                        endOfFile = true;
+                        deflater.finish();
+                    }
+                }
+                block.length += deflater.deflate(block.data, block.length, block.data.length-block.length);
+                if(block.length == block.data.length || deflater.finished()) {
+                    block.fileBytes = deflater.getBytesRead()-reported;
+                    reported = deflater.getBytesRead();
+                    full.put(block);
+                    block = free.take();
+                    block.length = 0;
+                }
+            }
+        } finally {
+            deflater.end();
+            Block end = new Block(0);
+            end.length = -1;
+            full.add(end);
+        }
+    }
+
+    /**
+     * Block of compressed bytes handed from the compressing thread to the sending thread.
+     */
+    private static class Block {
+        private final byte[] data;
+        private int length;
+        private long fileBytes;
+
+        /**
+         * Constructor for an empty {@link Block}.
+         * @param size  Capacity of the block in bytes.
+         */
+        private Block(int size) {
+            this.data = new byte[size];
+            this.length = 0;
+            this.fileBytes = 0;
+        }
+    }
+}
@@ -0,0 +1,234 @@
+package main;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Watches local directories for new and changed files and hands them out in batches
+ * once they stopped changing, for an {@link UploadEngine} to upload.
+ * A single daemon thread receives the events of a {@link WatchService} for all directories
+ * and checks the size and modification time of the pending files at a fixed interval.
+ * A file is ready once neither changed for the quiet time, so files still being
+ * written or copied are not uploaded half done.
+ * Ready files are queued, and takeBatch(int) returns all files that became ready
+ * since the previous batch, so a burst of files is uploaded as a few large batches
+ * instead of one upload per file.
+ * Hidden files, whose names start with ".", are ignored, such as the
+ * .properties file and the {@link TransferJournal} of the program.
+ */
+public class DirectoryWatcher {
+    public static final long defaultQuietMillis = 2000;
+    private final List<Path> directories;
+    private final long quietMillis;
+    private final BlockingQueue<File> ready;
+    private final Map<Path, PendingFile> pending;
+    private WatchService watchService;
+    private Thread thread;
+    private volatile boolean stopped;
+    private long lastCheckMillis;
+
+    /**
+     * Constructor for {@link DirectoryWatcher}.
+     * @param directories   Directories to watch. Subdirectories are not watched.
+     * @param quietMillis   Milliseconds a file must stay unchanged before it is ready.
+     */
+    public DirectoryWatcher(List<Path> directories, long quietMillis) {
+        this.directories = directories;
+        this.quietMillis = quietMillis;
+        this.ready = new LinkedBlockingQueue<>();
+        this.pending = new HashMap<>();
+        this.watchService = null;
+        this.thread = null;
+        this.stopped = false;
+        this.lastCheckMillis = System.currentTimeMillis();
+    }
+
+    /**
+     * Registers the directories and starts the watcher thread.
+     * Files that exist before the start are not uploaded.
+     * @throws IOException  If a directory cannot be watched.
+     */
+    public void start() throws IOException {
+        watchService = FileSystems.getDefault().newWatchService();
+        for(Path directory : directories) {
+            directory.register(watchService, StandardWatchEventKinds.ENTRY_CREATE,
+                    StandardWatchEventKinds.ENTRY_MODIFY);
+        }
+        thread = new Thread(this::watch, "DirectoryWatcher");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Stops the watcher thread. Files not handed out yet are dropped.
+     */
+    public void stop() {
+        stopped = true;
+        try {
+            watchService.close();
+        } catch(IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Waits until at least one file is ready, then returns it together with
+     * every other file that is ready, up to the maximum number of files.
+     * @param maxFiles              Maximum number of files in the batch.
+     * @return                      {@link List} of ready {@link File}s, never empty.
+     * @throws InterruptedException If the waiting thread is interrupted.
+     */
+    public List<File> takeBatch(int maxFiles) throws InterruptedException {
+        List<File> batch = new ArrayList<>();
+        batch.add(ready.take());
+        ready.drainTo(batch, Math.max(0, maxFiles-1));
+        return batch;
+    }
+
+    /**
+     * Returns the files that are ready without waiting, up to the maximum number of files.
+     * @param maxFiles  Maximum number of files to return.
+     * @return          {@link List} of ready {@link File}s, empty if none is ready.
+     */
+    public List<File> pollBatch(int maxFiles) {
+        List<File> batch = new ArrayList<>();
+        ready.drainTo(batch, Math.max(0, maxFiles));
+        return batch;
+    }
+
+    /**
+     * Loop of the watcher thread: takes the events of the {@link WatchService}
+     * and checks the pending files between them.
+     */
+    private void watch() {
+        long interval = Math.max(50, quietMillis/4);
+        try {
+            while(!stopped) {
+                WatchKey key = watchService.poll(interval, TimeUnit.MILLISECONDS);
+                while(key != null) {
+                    handleEvents(key);
+                    key = watchService.poll();
+                }
+                checkPending();
+            }
+        } catch(ClosedWatchServiceException e) {
+            // The watcher was stopped.
+        } catch(InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Adds the files of the events of a directory to the pending files.
+     * If events were lost because too many came at once, the directory is scanned instead.
+     * @param key   {@link WatchKey} of the directory with events.
+     */
+    private void handleEvents(WatchKey key) {
+        Path directory = (Path) key.watchable();
+        for(WatchEvent<?> event : key.pollEvents()) {
+            if(event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                scan(directory);
+            } else {
+                addPending(directory.resolve((Path) event.context()));
+            }
+        }
+        if(!key.reset()) {
+            System.out.println("Directory \""+directory+"\" is no longer watched.");
+        }
+    }
+
+    /**
+     * Adds every file of a directory that changed since shortly before the last check to the pending files.
+     * @param directory Directory that lost events.
+     */
+    private void scan(Path directory) {
+        long since = lastCheckMillis-quietMillis;
+        try(DirectoryStream<Path> stream = Files.newDirectoryStream(directory)) {
+            for(Path path : stream) {
+                if(Files.getLastModifiedTime(path).toMillis() >= since) {
+                    addPending(path);
+                }
+            }
+        } catch(IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Adds a file to the pending files, unless it is hidden or already pending.
+     * @param path  {@link Path} of the file.
+     */
+    private void addPending(Path path) {
+        if(!path.getFileName().toString().startsWith(".") && !pending.containsKey(path)) {
+            pending.put(path, new PendingFile());
+        }
+    }
+
+    /**
+     * Reads the size and modification time of every pending file. Files that changed
+     * start their quiet time again, files unchanged for the quiet time are queued as ready,
+     * and files that were deleted or are not regular files are dropped.
+     */
+    private void checkPending() {
+        long now = System.currentTimeMillis();
+        lastCheckMillis = now;
+        Iterator<Map.Entry<Path, PendingFile>> iterator = pending.entrySet().iterator();
+        while(iterator.hasNext()) {
+            Map.Entry<Path, PendingFile> entry = iterator.next();
+            PendingFile file = entry.getValue();
+            BasicFileAttributes attributes;
+            try {
+                attributes = Files.readAttributes(entry.getKey(), BasicFileAttributes.class);
+            } catch(IOException e) {
+                iterator.remove();
+                continue;
+            }
+            if(!attributes.isRegularFile()) {
+                iterator.remove();
+            } else if(attributes.size() != file.size || attributes.lastModifiedTime().toMillis() != file.modified) {
+                file.size = attributes.size();
+                file.modified = attributes.lastModifiedTime().toMillis();
+                file.unchangedSince = now;
+            } else if(now-file.unchangedSince >= quietMillis) {
+                iterator.remove();
+                ready.add(entry.getKey().toFile());
+            }
+        }
+    }
+
+    /**
+     * Size and modification time of a pending file when it was last seen to change.
+     */
+    private static class PendingFile {
+        private long size;
+        private long modified;
+        private long unchangedSince;
+
+        /**
+         * Constructor for {@link PendingFile} that has not been checked yet.
+         */
+        private PendingFile() {
+            this.size = -1;
+            this.modified = -1;
+            this.unchangedSince = System.currentTimeMillis();
+        }
+    }
+}
@@ -0,0 +1,471 @@
+package main;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.LongConsumer;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * Sends many small files as one zip or tar archive over a single data connection,
+ * so that they cost one "PASV", one TLS handshake and one transfer reply together
+ * instead of one each. The archive is written to the data connection while the files
+ * are read, without a temporary file.
+ * Once the archive is stored, a manifest is stored next to it under its name with ".manifest"
+ * appended. Its first line is "bundle", the archive name, the format and the number of entries;
+ * every further line is the CRC-32, size, modification time in milliseconds and name of an entry,
+ * separated by tabs, with backslashes, tabs and line breaks in names escaped.
+ * As it is stored last, a manifest on the server means that its archive is complete.
+ */
+public class FileBundler {
+    public static final long defaultThresholdKB = 64;
+    public static final long defaultMaxMB = 64;
+    private static final int tarBlock = 512;
+    private final Format format;
+    private final int level;
+    private final int bufferSize;
+    private final LongConsumer progress;
+    private final BandwidthLimiter bandwidthLimiter;
+    private final String namePrefix;
+    private final AtomicInteger bundleCount;
+
+    /**
+     * Format of the archive.
+     */
+    public enum Format {
+        ZIP, TAR;
+
+        /**
+         * Returns the format named by the bundle setting.
+         * @param value Value of the setting, "zip" or "tar".
+         * @return      {@link Format}, or null if the value is "off" or unknown.
+         */
+        public static Format parse(String value) {
+            for(Format format : values()) {
+                if(format.name().equalsIgnoreCase(value.trim())) {
+                    return format;
+                }
+            }
+            return null;
+        }
+
+        /**
+         * Returns the file name extension of the format.
+         * @return  ".zip" or ".tar".
+         */
+        public String extension() {
+            return "."+name().toLowerCase();
+        }
+    }
+
+    /**
+     * Constructor for {@link FileBundler}.
+     * @param format            {@link Format} of the archives.
+     * @param level             Deflate level of zip entries from 1, fastest, to 9, smallest.
+     * @param bufferSize        Size in bytes of the buffer the archive is written through.
+     * @param progress          {@link LongConsumer} the number of file bytes read is passed to.
+     * @param bandwidthLimiter  {@link BandwidthLimiter} the transfers are limited by.
+     */
+    public FileBundler(Format format, int level, int bufferSize, LongConsumer progress,
+                       BandwidthLimiter bandwidthLimiter) {
+        this.format = format;
+        this.level = Math.max(1, Math.min(9, level));
+        this.bufferSize = bufferSize > 0 ? bufferSize : ChannelTransfer.defaultBufferSize;
+        this.progress = progress;
+        this.bandwidthLimiter = bandwidthLimiter;
+        this.namePrefix = "bundle-"+new SimpleDateFormat("yyyyMMdd-HHmmss-SSS").format(new Date());
+        this.bundleCount = new AtomicInteger(0);
+    }
+
+    /**
+     * Groups the files at or below the threshold into bundles of at most the maximum size.
+     * The bundles are made no larger than needed to give every connection one, so that
+     * a folder of small files still uploads over all connections.
+     * Two files of the same name never share a bundle, and a bundle holds at least two files;
+     * files that are not bundled are left out of the returned bundles.
+     * @param files         {@link File}s of the batch, in the order of the batch.
+     * @param sizes         Size in bytes of every file.
+     * @param threshold     Largest size in bytes of a file that is bundled.
+     * @param maxBytes      Largest sum of file sizes in bytes of one bundle.
+     * @param connections   Number of connections the batch is uploaded over.
+     * @return              New {@link List} of {@link Bundle}s.
+     */
+    public List<Bundle> group(List<File> files, Map<File, Long> sizes, long threshold, long maxBytes, int connections) {
+        long smallBytes = 0;
+        for(File file : files) {
+            if(sizes.get(file) <= threshold) {
+                smallBytes += sizes.get(file);
+            }
+        }
+        long bundleBytes = Math.max(1, Math.min(maxBytes, (smallBytes+connections-1)/Math.max(1, connections)));
+        List<Bundle> bundles = new ArrayList<>();
+        List<File> members = new ArrayList<>();
+        Set<String> names = new HashSet<>();
+        long bytes = 0;
+        for(File file : files) {
+            long size = sizes.get(file);
+            if(size > threshold) {
+                continue;
+            }
+            if(!members.isEmpty() && (bytes+size > bundleBytes || names.contains(file.getName()))) {
+                addBundle(bundles, members, bytes);
+                members = new ArrayList<>();
+                names.clear();
+                bytes = 0;
+            }
+            members.add(file);
+            names.add(file.getName());
+            bytes += size;
+        }
+        addBundle(bundles, members, bytes);
+        return bundles;
+    }
+
+    /**
+     * Adds a bundle of the given files, if there are at least two, under the next archive name.
+     * @param bundles   {@link List} to add the {@link Bundle} to.
+     * @param members   {@link File}s of the bundle.
+     * @param bytes     Sum of the sizes of the files.
+     */
+    private void addBundle(List<Bundle> bundles, List<File> members, long bytes) {
+        if(members.size() < 2) {
+            return;
+        }
+        String name = String.format("%s-%03d%s", namePrefix, bundleCount.incrementAndGet(), format.extension());
+        bundles.add(new Bundle(new File(name), members, bytes));
+    }
+
+    /**
+     * Writes a bundle as an archive over a new data connection with "STOR", and keeps
+     * the manifest of what was written in the bundle to be stored by storeManifest(UploaderFtpsClient, Bundle).
+     * @param ftp           Logged-in and configured {@link UploaderFtpsClient}.
+     * @param bundle        {@link Bundle} to send.
+     * @param checksum      {@link ChecksumVerifier.Checksum} to add the archive bytes to, or null.
+     * @return              True if the server confirmed the transfer.
+     * @throws IOException  If reading a file or writing to the data connection fails.
+     */
+    public boolean storeArchive(UploaderFtpsClient ftp, Bundle bundle, ChecksumVerifier.Checksum checksum)
+            throws IOException {
+        ftp.setDeflate(false);
+        Socket socket = ftp.openDataConnection("STOR", bundle.getFile().getName());
+        if(socket == null) {
+            return false;
+        }
+        StringBuilder manifest = new StringBuilder();
+        manifest.append("bundle\t").append(escape(bundle.getFile().getName())).append('\t')
+                .append(format.name().toLowerCase()).append('\t').append(bundle.getFiles().size()).append('\n');
+        BandwidthLimiter.Transfer transfer = bandwidthLimiter.open();
+        try {
+            OutputStream output = transfer.wrap(socket.getOutputStream());
+            if(checksum != null) {
+                output = new ChecksumOutputStream(output, checksum);
+            }
+            output = new BufferedOutputStream(output, bufferSize);
+            if(format == Format.ZIP) {
+                writeZip(bundle, output, manifest);
+            } else {
+                writeTar(bundle, output, manifest);
+            }
+            output.flush();
+        } finally {
+            transfer.close();
+            socket.close();
+        }
+        bundle.manifest = manifest.toString();
+        return ftp.completePendingCommand();
+    }
+
+    /**
+     * Stores the manifest of the archive last written for a bundle over a new data connection.
+     * @param ftp           Logged-in and configured {@link UploaderFtpsClient}.
+     * @param bundle        {@link Bundle} whose archive was stored.
+     * @return              True if the server confirmed the transfer.
+     * @throws IOException  If writing to the data connection fails.
+     */
+    public boolean storeManifest(UploaderFtpsClient ftp, Bundle bundle) throws IOException {
+        Socket socket = ftp.openDataConnection("STOR", bundle.getFile().getName()+".manifest");
+        if(socket == null) {
+            return false;
+        }
+        try {
+            OutputStream output = socket.getOutputStream();
+            output.write(bundle.manifest.getBytes(StandardCharsets.UTF_8));
+            output.flush();
+        } finally {
+            socket.close();
+        }
+        return ftp.completePendingCommand();
+    }
+
+    /**
+     * Writes the files of a bundle as a zip archive, each entry deflated.
+     * @param bundle        {@link Bundle} to write.
+     * @param output        {@link OutputStream} of the data connection.
+     * @param manifest      {@link StringBuilder} to add a line per entry to.
+     * @throws IOException  If reading a file or writing to the stream fails.
+     */
+    private void writeZip(Bundle bundle, OutputStream output, StringBuilder manifest) throws IOException {
+        ZipOutputStream zip = new ZipOutputStream(output, StandardCharsets.UTF_8);
+        zip.setLevel(level);
+        byte[] buffer = new byte[bufferSize];
+        for(File file : bundle.getFiles()) {
+            FileInputStream fileStream = new FileInputStream(file);
+            try {
+                long modified = file.lastModified();
+                ZipEntry entry = new ZipEntry(file.getName());
+                entry.setTime(modified);
+                zip.putNextEntry(entry);
+                CRC32 crc = new CRC32();
+                long size = copy(fileStream, zip, buffer, Long.MAX_VALUE, crc);
+                zip.closeEntry();
+                addEntry(manifest, file, size, modified, crc);
+            } finally {
+                fileStream.close();
+            }
+        }
+        zip.finish();
+    }
+
+    /**
+     * Writes the files of a bundle as a POSIX tar archive. The size of each file is taken
+     * when it is opened; bytes appended while it is read are left out.
+     * Names longer than 100 bytes are written in a PAX extended header.
+     * @param bundle        {@link Bundle} to write.
+     * @param output        {@link OutputStream} of the data connection.
+     * @param manifest      {@link StringBuilder} to add a line per entry to.
+     * @throws IOException  If reading a file or writing to the stream fails.
+     */
+    private void writeTar(Bundle bundle, OutputStream output, StringBuilder manifest) throws IOException {
+        byte[] buffer = new byte[bufferSize];
+        for(File file : bundle.getFiles()) {
+            FileInputStream fileStream = new FileInputStream(file);
+            try {
+                long size = fileStream.getChannel().size();
+                long modified = file.lastModified();
+                byte[] name = file.getName().getBytes(StandardCharsets.UTF_8);
+                if(name.length > 100) {
+                    byte[] record = paxRecord("path", file.getName());
+                    output.write(tarHeader("././@PaxHeader".getBytes(StandardCharsets.US_ASCII), record.length, modified, 'x'));
+                    output.write(record);
+                    output.write(new byte[padding(record.length)]);
+                }
+                output.write(tarHeader(name, size, modified, '0'));
+                CRC32 crc = new CRC32();
+                long read = copy(fileStream, output, buffer, size, crc);
+                if(read < size) {
+                    throw new IOException("\""+file.getName()+"\" became shorter while it was bundled.");
+                }
+                output.write(new byte[padding(size)]);
+                addEntry(manifest, file, size, modified, crc);
+            } finally {
+                fileStream.close();
+            }
+        }
+        output.write(new byte[2*tarBlock]);
+    }
+
+    /**
+     * Copies at most the given number of bytes of a file to the archive, adding them to the CRC-32 and the progress.
+     * @param input         {@link FileInputStream} of the file.
+     * @param output        {@link OutputStream} of the archive.
+     * @param buffer        Buffer to copy through.
+     * @param limit         Largest number of bytes to copy.
+     * @param crc           {@link CRC32} of the entry.
+     * @return              Number of bytes copied.
+     * @throws IOException  If reading the file or writing to the stream fails.
+     */
+    private long copy(FileInputStream input, OutputStream output, byte[] buffer, long limit, CRC32 crc)
+            throws IOException {
+        long copied = 0;
+        int read;
+        while(copied < limit && (read = input.read(buffer, 0, (int) Math.min(buffer.length, limit-copied))) != -1) {
+            output.write(buffer, 0, read);
+            crc.update(buffer, 0, read);
+            copied += read;
+            progress.accept(read);
+        }
+        return copied;
+    }
+
+    /**
+     * Returns a ustar header block.
+     * @param name      Name of the entry in UTF-8, cut off after 100 bytes.
+     * @param size      Size of the entry in bytes.
+     * @param modified  Modification time in milliseconds.
+     * @param type      Type flag, '0' for a file or 'x' for a PAX extended header.
+     * @return          Header block of 512 bytes.
+     */
+    private static byte[] tarHeader(byte[] name, long size, long modified, char type) {
+        byte[] header = new byte[tarBlock];
+        System.arraycopy(name, 0, header, 0, Math.min(name.length, 100));
+        putOctal(header, 100, 8, 0644);
+        putOctal(header, 108, 8, 0);
+        putOctal(header, 116, 8, 0);
+        putOctal(header, 124, 12, size);
+        putOctal(header, 136, 12, Math.max(0, modified/1000));
+        header[156] = (byte) type;
+        System.arraycopy("ustar\00000".getBytes(StandardCharsets.US_ASCII), 0, header, 257, 8);
+        for(int i = 148; i < 156; i++) {
+            header[i] = ' ';
+        }
+        long sum = 0;
+        for(byte b : header) {
+            sum += b & 0xff;
+        }
+        putOctal(header, 148, 7, sum);
+        return header;
+    }
+
+    /**
+     * Writes a number as zero-padded octal digits followed by a NUL into a header field.
+     * @param header    Header block.
+     * @param offset    Offset of the field.
+     * @param length    Length of the field, including the NUL.
+     * @param value     Number to write.
+     */
+    private static void putOctal(byte[] header, int offset, int length, long value) {
+        String octal = Long.toOctalString(value);
+        for(int i = 0; i < length-1; i++) {
+            int digit = octal.length()-(length-1)+i;
+            header[offset+i] = (byte) (digit >= 0 ? octal.charAt(digit) : '0');
+        }
+        header[offset+length-1] = 0;
+    }
+
+    /**
+     * Returns a PAX extended header record, "length key=value\n", where the length counts the whole record.
+     * @param key   Key of the record, such as "path".
+     * @param value Value of the record.
+     * @return      Record in UTF-8.
+     */
+    private static byte[] paxRecord(String key, String value) {
+        int length = (" "+key+"="+value+"\n").getBytes(StandardCharsets.UTF_8).length;
+        int total = length+Integer.toString(length).length();
+        if(Integer.toString(total).length() > Integer.toString(length).length()) {
+            total++;
+        }
+        return (total+" "+key+"="+value+"\n").getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Returns the number of zero bytes that fill an entry up to a whole block.
+     * @param size  Size of the entry in bytes.
+     * @return      Number of padding bytes.
+     */
+    private static int padding(long size) {
+        return (int) ((tarBlock-size%tarBlock)%tarBlock);
+    }
+
+    /**
+     * Adds the line of an entry to the manifest.
+     * @param manifest  {@link StringBuilder} of the manifest.
+     * @param file      {@link File} of the entry.
+     * @param size      Size of the entry in bytes.
+     * @param modified  Modification time in milliseconds.
+     * @param crc       {@link CRC32} of the entry.
+     */
+    private static void addEntry(StringBuilder manifest, File file, long size, long modified, CRC32 crc) {
+        manifest.append(String.format("%08x", crc.getValue())).append('\t').append(size).append('\t')
+                .append(modified).append('\t').append(escape(file.getName())).append('\n');
+    }
+
+    /**
+     * Escapes backslashes, tabs and line breaks, so a name fits in one field of a line.
+     * @param value {@link String} to escape.
+     * @return      Escaped {@link String}.
+     */
+    private static String escape(String value) {
+        return value.replace("\\", "\\\\").replace("\t", "\\t").replace("\n", "\\n").replace("\r", "\\r");
+    }
+
+    /**
+     * Small files sent together as one archive. The {@link File} of a bundle is only its name
+     * on the FTP server; it stands in for its files in the {@link UploadQueue}.
+     */
+    public static class Bundle {
+        private final File file;
+        private final List<File> files;
+        private final long size;
+        private String manifest;
+
+        /**
+         * Constructor for {@link Bundle}.
+         * @param file  {@link File} named like the archive on the FTP server.
+         * @param files {@link File}s in the bundle.
+         * @param size  Sum of the sizes of the files in bytes.
+         */
+        private Bundle(File file, List<File> files, long size) {
+            this.file = file;
+            this.files = files;
+            this.size = size;
+            this.manifest = null;
+        }
+
+        /**
+         * Returns the {@link File} that stands in for the bundle, named like the archive.
+         * @return  {@link File} of the archive name.
+         */
+        public File getFile() {
+            return file;
+        }
+
+        /**
+         * Returns the files in the bundle.
+         * @return  {@link List} of {@link File}s.
+         */
+        public List<File> getFiles() {
+            return files;
+        }
+
+        /**
+         * Returns the sum of the sizes of the files in the bundle.
+         * @return  Size in bytes.
+         */
+        public long getSize() {
+            return size;
+        }
+    }
+
+    /**
+     * Output stream that adds every byte written through it to a checksum.
+     */
+    private static class ChecksumOutputStream extends FilterOutputStream {
+        private final ChecksumVerifier.Checksum checksum;
+
+        /**
+         * Constructor for {@link ChecksumOutputStream}.
+         * @param output    {@link OutputStream} to write to.
+         * @param checksum  {@link ChecksumVerifier.Checksum} to add the bytes to.
+         */
+        private ChecksumOutputStream(OutputStream output, ChecksumVerifier.Checksum checksum) {
+            super(output);
+            this.checksum = checksum;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[] {(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] array, int offset, int length) throws IOException {
+            checksum.update(array, offset, length);
+            out.write(array, offset, length);
+        }
+    }
+}
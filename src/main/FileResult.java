@@ -0,0 +1,85 @@
+package main;
+
+import java.io.File;
+
+/**
+ * Result of one file of a batch uploaded by the {@link UploadEngine}:
+ * whether it was stored, skipped, failed or not uploaded at all,
+ * the number of attempts, and the error of the last failed attempt.
+ */
+public class FileResult {
+    private final File file;
+    private final Status status;
+    private final int attempts;
+    private final String message;
+
+    /**
+     * Outcome of the upload of a file.
+     */
+    public enum Status {
+        /** Stored on the FTP server. */
+        STORED,
+        /** Skipped because its content was already uploaded. */
+        SKIPPED,
+        /** Failed permanently, or transiently more times than it is tried again. */
+        FAILED,
+        /** Not uploaded because the batch was cancelled or no connection was left. */
+        NOT_UPLOADED
+    }
+
+    /**
+     * Constructor for {@link FileResult}.
+     * @param file      {@link File} of the batch.
+     * @param status    {@link Status} of the upload.
+     * @param attempts  Number of times the file was uploaded.
+     * @param message   Error of the last failed attempt, or null if there was none.
+     */
+    public FileResult(File file, Status status, int attempts, String message) {
+        this.file = file;
+        this.status = status;
+        this.attempts = attempts;
+        this.message = message;
+    }
+
+    /**
+     * Returns the file of the result.
+     * @return  {@link File} of the batch.
+     */
+    public File getFile() {
+        return file;
+    }
+
+    /**
+     * Returns the outcome of the upload.
+     * @return  {@link Status} of the upload.
+     */
+    public Status getStatus() {
+        return status;
+    }
+
+    /**
+     * Returns the number of times the file was uploaded.
+     * @return  Number of attempts, 0 if it was never uploaded.
+     */
+    public int getAttempts() {
+        return attempts;
+    }
+
+    /**
+     * Returns the error of the last failed attempt.
+     * @return  Error message, or null if no attempt failed.
+     */
+    public String getMessage() {
+        return message;
+    }
+
+    /**
+     * Returns the result as one line, such as "report.csv: FAILED after 4 attempt(s), 550 Permission denied."
+     * @return  {@link String} of the result.
+     */
+    @Override
+    public String toString() {
+        return file.getName()+": "+status+(attempts > 1 || status == Status.FAILED ? " after "+attempts+" attempt(s)" : "")
+                +(message != null ? ", "+message : "")+".";
+    }
+}
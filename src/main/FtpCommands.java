@@ -0,0 +1,55 @@
+package main;
+
+import org.apache.commons.net.ftp.FTPClient;
+import org.apache.commons.net.ftp.FTPReply;
+
+import java.io.IOException;
+
+/**
+ * Static helpers for FTP commands that the Apache Commons Net library
+ * sends but does not parse the reply of.
+ */
+public final class FtpCommands {
+    private FtpCommands() {
+    }
+
+    /**
+     * Sends the "SIZE" command and returns the size of the file on the FTP server.
+     * @param ftp           Logged-in {@link FTPClient}.
+     * @param remote        Name of the file on the FTP server.
+     * @return              Size of the file in bytes, or -1 if the file does not exist
+     *                      or the server does not support the command.
+     * @throws IOException  If thrown by FTP client command functions.
+     */
+    public static long getSize(FTPClient ftp, String remote) throws IOException {
+        if(!FTPReply.isPositiveCompletion(ftp.sendCommand("SIZE", remote))) {
+            return -1;
+        }
+        try {
+            return Long.parseLong(ftp.getReplyStrings()[0].substring(4).trim());
+        } catch(NumberFormatException | IndexOutOfBoundsException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * Returns whether the FTP server supports "REST" before "STOR",
+     * which stores a file starting at an offset.
+     * @param ftp           Logged-in {@link FTPClient}.
+     * @return              True if the server advertises "REST STREAM" in its "FEAT" reply.
+     * @throws IOException  If thrown by FTP client command functions.
+     */
+    public static boolean supportsRestStream(FTPClient ftp) throws IOException {
+        return ftp.hasFeature("REST", "STREAM");
+    }
+
+    /**
+     * Returns whether the FTP server supports the deflate transfer mode.
+     * @param ftp           Logged-in {@link FTPClient}.
+     * @return              True if the server advertises "MODE Z" in its "FEAT" reply.
+     * @throws IOException  If thrown by FTP client command functions.
+     */
+    public static boolean supportsModeZ(FTPClient ftp) throws IOException {
+        return ftp.hasFeature("MODE", "Z");
+    }
+}
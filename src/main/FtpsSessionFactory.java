@@ -0,0 +1,408 @@
+package main;
+
+import org.apache.commons.net.PrintCommandListener;
+import org.apache.commons.net.ftp.FTP;
+import org.apache.commons.net.ftp.FTPReply;
+import org.apache.commons.net.ftp.FTPSClient;
+import org.apache.commons.net.io.CopyStreamListener;
+import org.apache.commons.net.util.SSLContextUtils;
+import org.apache.commons.net.util.TrustManagerUtils;
+
+import javax.net.ssl.SSLContext;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintStream;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.Properties;
+
+/**
+ * Creates and configures {@link FTPSClient} sessions for one FTP server.
+ * Holds the connection and login information so that additional logged-in
+ * sessions can be opened for the same server, such as the extra connections
+ * of a parallel upload in {@link UploadEngine}.
+ * Every client created is attached to the same console {@link PrintStream}
+ * and {@link CopyStreamListener}.
+ * All clients of the program share one {@link SSLContext}, so that the control and data
+ * connections to a server resume the TLS session negotiated by the first connection.
+ * If a {@link FtpsSessionPool} is set, sessions are borrowed from it and
+ * returned to it instead of being opened and closed every time.
+ * The transfers of all sessions take their bandwidth from one {@link BandwidthLimiter},
+ * and their phases are timed in one {@link UploadMetrics}.
+ */
+public class FtpsSessionFactory {
+    private static SSLContext sslContext;
+    private String hostname;
+    private int port;
+    private String username;
+    private String password;
+    private String uploadPath;
+    private PrintStream printStream;
+    private CopyStreamListener copyStreamListener;
+    private UploadSettings settings;
+    private FtpsSessionPool sessionPool;
+    private HandshakeStats handshakeStats;
+    private BandwidthLimiter bandwidthLimiter;
+    private UploadMetrics metrics;
+
+    /**
+     * Constructor for {@link FtpsSessionFactory} with the FTP values of the server.
+     * @param hostname      Hostname of the FTP server.
+     * @param port          Port of the FTP server.
+     * @param username      Username for the FTP server login.
+     * @param password      Password for the FTP server login.
+     * @param uploadPath    Path on FTP server to upload the file(s) to.
+     */
+    public FtpsSessionFactory(String hostname, int port, String username, String password, String uploadPath) {
+        this.hostname = hostname;
+        this.port = port;
+        this.username = username;
+        this.password = password;
+        this.uploadPath = uploadPath;
+        this.printStream = null;
+        this.copyStreamListener = null;
+        this.settings = new UploadSettings(new Properties());
+        this.sessionPool = null;
+        this.handshakeStats = new HandshakeStats();
+        this.bandwidthLimiter = new BandwidthLimiter(0, false);
+        this.metrics = new UploadMetrics();
+    }
+
+    /**
+     * Returns a new, unconnected {@link UploaderFtpsClient} attached to the
+     * console {@link PrintStream} and {@link CopyStreamListener} of this factory.
+     * @return              Unconnected {@link UploaderFtpsClient}.
+     * @throws IOException  If the {@link SSLContext} cannot be created.
+     */
+    public UploaderFtpsClient newClient() throws IOException {
+        UploaderFtpsClient ftp = new UploaderFtpsClient(false, getSslContext());
+        attach(ftp);
+        return ftp;
+    }
+
+    /**
+     * Returns the {@link SSLContext} shared by all clients, creating it on first use.
+     * Server certificates are checked for validity like the default of {@link FTPSClient}.
+     * @return              Shared {@link SSLContext}.
+     * @throws IOException  If the {@link SSLContext} cannot be created.
+     */
+    private static synchronized SSLContext getSslContext() throws IOException {
+        if(sslContext == null) {
+            sslContext = SSLContextUtils.createSSLContext("TLS", null,
+                    TrustManagerUtils.getValidateServerCertificateTrustManager());
+        }
+        return sslContext;
+    }
+
+    /**
+     * Attaches a client to the console {@link PrintStream}, {@link CopyStreamListener},
+     * {@link HandshakeStats} and {@link UploadMetrics} of this factory,
+     * replacing the ones it was attached to before.
+     * @param ftp   {@link UploaderFtpsClient} to attach.
+     */
+    public void attach(UploaderFtpsClient ftp) {
+        ftp.setCommandListener(printStream == null ? null : new PrintCommandListener(
+                new PrintWriter(new OutputStreamWriter(printStream, StandardCharsets.UTF_8)), true));
+        ftp.setCopyStreamListener(copyStreamListener);
+        ftp.setHandshakeStats(handshakeStats);
+        ftp.setMetrics(metrics);
+    }
+
+    /**
+     * Detaches a client from the console and progress listener of this factory,
+     * so that an idle session does not print into the console of a finished run.
+     * @param ftp   {@link UploaderFtpsClient} to detach.
+     */
+    public void detach(UploaderFtpsClient ftp) {
+        ftp.setCommandListener(null);
+        ftp.setCopyStreamListener(null);
+        ftp.setHandshakeStats(null);
+        ftp.setMetrics(null);
+    }
+
+    /**
+     * Prepares a pooled session for this factory: attaches it, switches it back to stream mode,
+     * and configures it again if it was configured with other settings or another upload path.
+     * @param ftp           Logged-in {@link UploaderFtpsClient} taken from the {@link FtpsSessionPool}.
+     * @throws IOException  If thrown by FTP client command functions.
+     */
+    public void prepare(UploaderFtpsClient ftp) throws IOException {
+        attach(ftp);
+        ftp.setDeflate(false);
+        if(!getConfiguration().equals(ftp.getConfiguration())) {
+            configure(ftp);
+        }
+    }
+
+    /**
+     * Returns a logged-in and configured session from the {@link FtpsSessionPool}.
+     * @return  Pooled {@link UploaderFtpsClient}, or null if there is no pool or no idle session.
+     */
+    public UploaderFtpsClient borrowSession() {
+        return sessionPool == null ? null : sessionPool.borrow(this);
+    }
+
+    /**
+     * Returns a session to the {@link FtpsSessionPool} if it can be reused,
+     * otherwise logs out and disconnects it.
+     * @param ftp       {@link UploaderFtpsClient} that is no longer used.
+     * @param reusable  False if the session may be left in the middle of a command,
+     *                  such as after an aborted or failed transfer.
+     */
+    public void releaseSession(UploaderFtpsClient ftp, boolean reusable) {
+        if(sessionPool != null && reusable) {
+            sessionPool.release(this, ftp);
+        } else {
+            closeSession(ftp);
+        }
+    }
+
+    /**
+     * Opens a session: borrows an idle one from the {@link FtpsSessionPool}, or else
+     * connects to the FTP server, logs in, and configures the connection.
+     * @return              Logged-in and configured {@link UploaderFtpsClient}.
+     * @throws IOException  If the server cannot be reached, the login is refused,
+     *                      or thrown by FTP client command functions.
+     */
+    public UploaderFtpsClient openSession() throws IOException {
+        UploaderFtpsClient ftp = borrowSession();
+        if(ftp != null) {
+            return ftp;
+        }
+        ftp = newClient();
+        ftp.connect(hostname, port);
+        if(!FTPReply.isPositiveCompletion(ftp.getReplyCode())) {
+            ftp.disconnect();
+            throw new IOException("Could not connect to FTP server.");
+        }
+        if(!ftp.login(username, password)) {
+            ftp.disconnect();
+            throw new IOException("Incorrect username/password.");
+        }
+        configure(ftp);
+        return ftp;
+    }
+
+    /**
+     * Configures a logged-in session for binary, passive transfers
+     * and changes to the upload path.
+     * Data connections are private (PROT P) unless the dataProtection setting is "C",
+     * in which case they are plain and backed by socket channels for the {@link ChannelTransfer}.
+     * Buffer sizes are taken from the bufferSizeKB and socketBufferSizeKB settings.
+     * @param ftp           Logged-in {@link UploaderFtpsClient} to configure.
+     * @throws IOException  If thrown by FTP client command functions.
+     */
+    public void configure(UploaderFtpsClient ftp) throws IOException {
+        long start = System.nanoTime();
+        int bufferSizeKB = settings.getInt("bufferSizeKB", ChannelTransfer.defaultBufferSize/1024);
+        int socketBufferSizeKB = settings.getInt("socketBufferSizeKB", 0);
+        ftp.setFileType(FTP.BINARY_FILE_TYPE);
+        ftp.setFileTransferMode(FTP.BINARY_FILE_TYPE);
+        if(bufferSizeKB > 0) {
+            ftp.setBufferSize(bufferSizeKB*1024);
+        }
+        if(socketBufferSizeKB > 0) {
+            ftp.setSendDataSocketBufferSize(socketBufferSizeKB*1024);
+            ftp.setReceieveDataSocketBufferSize(socketBufferSizeKB*1024);
+        }
+        ftp.execPBSZ(0);
+        if(settings.getString("dataProtection", "P").equalsIgnoreCase("C")) {
+            ftp.execPROT("C");
+            ftp.setSocketFactory(new ChannelSocketFactory());
+        } else {
+            ftp.execPROT("P");
+        }
+        ftp.enterLocalPassiveMode();
+        ftp.changeWorkingDirectory(uploadPath);
+        ftp.setConfiguration(getConfiguration());
+        metrics.record(UploadMetrics.Phase.CONFIGURE, start);
+    }
+
+    /**
+     * Returns the configuration that sessions of this factory are set up with:
+     * the upload path and the settings used by configure(UploaderFtpsClient).
+     * @return  {@link String} of the configuration.
+     */
+    public String getConfiguration() {
+        return uploadPath+"|"+settings.getString("dataProtection", "P").toUpperCase()
+                +"|"+settings.getInt("bufferSizeKB", ChannelTransfer.defaultBufferSize/1024)
+                +"|"+settings.getInt("socketBufferSizeKB", 0);
+    }
+
+    /**
+     * Logs out and disconnects a session opened by this factory.
+     * Errors are printed, as the session is being thrown away.
+     * @param ftp   {@link FTPSClient} to close.
+     */
+    public void closeSession(FTPSClient ftp) {
+        try {
+            if(ftp.isConnected()) {
+                ftp.logout();
+                ftp.disconnect();
+            }
+        } catch(IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Sets the {@link PrintStream} that clients created afterwards print their FTP commands to.
+     * Commands are written to it as UTF-8, whatever the default charset is.
+     * @param printStream   {@link PrintStream} of the console.
+     */
+    public void setPrintStream(PrintStream printStream) {
+        this.printStream = printStream;
+    }
+
+    /**
+     * Sets the {@link CopyStreamListener} that clients created afterwards report transferred bytes to.
+     * @param copyStreamListener    {@link CopyStreamListener} for the progress of the upload.
+     */
+    public void setCopyStreamListener(CopyStreamListener copyStreamListener) {
+        this.copyStreamListener = copyStreamListener;
+    }
+
+    /**
+     * Sets the {@link FtpsSessionPool} that sessions are borrowed from and returned to.
+     * @param sessionPool   {@link FtpsSessionPool} of the program, or null to open and close every session.
+     */
+    public void setSessionPool(FtpsSessionPool sessionPool) {
+        this.sessionPool = sessionPool;
+    }
+
+    /**
+     * Returns the key that idle sessions of this factory are kept under in a {@link FtpsSessionPool}.
+     * @return  {@link String} of the key, such as "user@host:21".
+     */
+    public String getSessionKey() {
+        return username+"@"+hostname+":"+port;
+    }
+
+    /**
+     * Checks whether sessions of another factory are logged in to the same server
+     * with the same username and password as sessions of this factory.
+     * @param other {@link FtpsSessionFactory} to compare to.
+     * @return      True if sessions of either factory can be used for the other.
+     */
+    public boolean isSameLogin(FtpsSessionFactory other) {
+        return hostname.equals(other.hostname) && port == other.port
+                && username.equals(other.username) && password.equals(other.password);
+    }
+
+    /**
+     * Sets the {@link UploadSettings} that sessions are configured with.
+     * @param settings  {@link UploadSettings} of the program.
+     */
+    public void setSettings(UploadSettings settings) {
+        this.settings = settings;
+    }
+
+    /**
+     * Returns the {@link UploadSettings} that sessions are configured with.
+     * @return  {@link UploadSettings} of the program.
+     */
+    public UploadSettings getSettings() {
+        return settings;
+    }
+
+    /**
+     * Returns the {@link CopyStreamListener} that clients of this factory report transferred bytes to.
+     * @return  {@link CopyStreamListener} for the progress of the upload, or null if none is set.
+     */
+    public CopyStreamListener getCopyStreamListener() {
+        return copyStreamListener;
+    }
+
+    /**
+     * Returns the {@link HandshakeStats} that the TLS handshakes of clients of this factory are counted in.
+     * @return  {@link HandshakeStats} of this factory.
+     */
+    public HandshakeStats getHandshakeStats() {
+        return handshakeStats;
+    }
+
+    /**
+     * Sets the {@link BandwidthLimiter} that transfers of sessions of this factory are limited by.
+     * @param bandwidthLimiter  {@link BandwidthLimiter} of the program.
+     */
+    public void setBandwidthLimiter(BandwidthLimiter bandwidthLimiter) {
+        this.bandwidthLimiter = bandwidthLimiter;
+    }
+
+    /**
+     * Returns the {@link BandwidthLimiter} that transfers of sessions of this factory are limited by.
+     * @return  {@link BandwidthLimiter}, unlimited unless one was set.
+     */
+    public BandwidthLimiter getBandwidthLimiter() {
+        return bandwidthLimiter;
+    }
+
+    /**
+     * Sets the {@link UploadMetrics} that clients attached afterwards record their phases in.
+     * @param metrics   {@link UploadMetrics} of the program.
+     */
+    public void setMetrics(UploadMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    /**
+     * Returns the {@link UploadMetrics} that sessions of this factory record their phases in.
+     * @return  {@link UploadMetrics}, a new one unless one was set.
+     */
+    public UploadMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Returns the destination of the uploads as one {@link String}:
+     * username, hostname, port, and upload path.
+     * @return  {@link String} of the destination, such as "user@host:21/path".
+     */
+    public String getDestination() {
+        return toDestination(username, hostname, port, uploadPath);
+    }
+
+    /**
+     * Returns the destination of uploads with the given values, as getDestination() does.
+     * @param username      Username for the FTP server login.
+     * @param hostname      Hostname of the FTP server.
+     * @param port          Port of the FTP server.
+     * @param uploadPath    Path on the FTP server to upload to.
+     * @return              {@link String} of the destination, such as "user@host:21/path".
+     */
+    public static String toDestination(String username, String hostname, int port, String uploadPath) {
+        return username+"@"+hostname+":"+port+(uploadPath.startsWith("/") ? "" : "/")+uploadPath;
+    }
+
+    /**
+     * Returns the hostname of the FTP server.
+     * @return  Hostname of the FTP server.
+     */
+    public String getHostname() {
+        return hostname;
+    }
+
+    /**
+     * Returns the port of the FTP server.
+     * @return  Port of the FTP server.
+     */
+    public int getPort() {
+        return port;
+    }
+
+    /**
+     * Returns the username for the FTP server login.
+     * @return  Username for the FTP server login.
+     */
+    public String getUsername() {
+        return username;
+    }
+
+    /**
+     * Returns the path on the FTP server that files are uploaded to.
+     * @return  Upload path on the FTP server.
+     */
+    public String getUploadPath() {
+        return uploadPath;
+    }
+}
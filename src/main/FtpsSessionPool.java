@@ -0,0 +1,229 @@
+package main;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps logged-in {@link UploaderFtpsClient} sessions open between upload runs,
+ * so that uploading another batch to the same server skips connecting,
+ * the TLS handshake, logging in, and configuring the connection.
+ * Idle sessions are kept per server and login, as "user@host:port".
+ * A daemon thread sends "NOOP" to every idle session at a fixed interval,
+ * so that the server does not close it, and closes sessions that were idle
+ * for too long or did not answer. A session is checked with "NOOP" again
+ * before it is handed out.
+ */
+public class FtpsSessionPool {
+    public static final long defaultIdleSeconds = 300;
+    public static final long defaultKeepaliveSeconds = 60;
+    private static final int maxIdlePerKey = 8;
+    private final long idleMillis;
+    private final Map<String, Deque<IdleSession>> idleSessions;
+    private final ScheduledExecutorService keepalive;
+    private boolean closed;
+
+    /**
+     * Constructor for {@link FtpsSessionPool}. Starts the keepalive thread.
+     * @param idleSeconds       Seconds a session may stay idle before it is closed.
+     * @param keepaliveSeconds  Seconds between "NOOP" commands to idle sessions.
+     */
+    public FtpsSessionPool(long idleSeconds, long keepaliveSeconds) {
+        this.idleMillis = idleSeconds*1000;
+        this.idleSessions = new HashMap<>();
+        this.closed = false;
+        this.keepalive = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "FtpsSessionPool");
+            thread.setDaemon(true);
+            return thread;
+        });
+        long period = Math.max(1, keepaliveSeconds);
+        keepalive.scheduleWithFixedDelay(this::keepAlive, period, period, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Returns an idle session of the same server and login as the factory, after checking
+     * that it still answers. The session is attached to the console and progress listener
+     * of the factory, and configured again if the settings or upload path changed.
+     * @param sessionFactory    {@link FtpsSessionFactory} of the server and login.
+     * @return                  Logged-in and configured {@link UploaderFtpsClient},
+     *                          or null if no healthy idle session is left.
+     */
+    public UploaderFtpsClient borrow(FtpsSessionFactory sessionFactory) {
+        IdleSession session;
+        while((session = pollIdle(sessionFactory)) != null) {
+            if(isHealthy(session.client)) {
+                try {
+                    sessionFactory.prepare(session.client);
+                    return session.client;
+                } catch(IOException e) {
+                    discard(session.client);
+                }
+            } else {
+                discard(session.client);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Returns a session to the pool once its upload is done.
+     * The session is detached from the console and progress listener of the run.
+     * If the pool is closed or already holds enough idle sessions for the server,
+     * the session is logged out instead.
+     * @param sessionFactory    {@link FtpsSessionFactory} the session was opened with.
+     * @param ftp               Logged-in {@link UploaderFtpsClient} that is no longer used.
+     */
+    public void release(FtpsSessionFactory sessionFactory, UploaderFtpsClient ftp) {
+        sessionFactory.detach(ftp);
+        if(!ftp.isConnected()) {
+            return;
+        }
+        synchronized(this) {
+            if(!closed) {
+                Deque<IdleSession> sessions = idleSessions.computeIfAbsent(sessionFactory.getSessionKey(),
+                        key -> new ArrayDeque<>());
+                if(sessions.size() < maxIdlePerKey) {
+                    sessions.addFirst(new IdleSession(sessionFactory, ftp, System.currentTimeMillis()));
+                    return;
+                }
+            }
+        }
+        sessionFactory.closeSession(ftp);
+    }
+
+    /**
+     * Stops the keepalive thread and logs out every idle session.
+     */
+    public void close() {
+        List<IdleSession> sessions = new ArrayList<>();
+        synchronized(this) {
+            closed = true;
+            for(Deque<IdleSession> deque : idleSessions.values()) {
+                sessions.addAll(deque);
+            }
+            idleSessions.clear();
+        }
+        keepalive.shutdownNow();
+        for(IdleSession session : sessions) {
+            session.sessionFactory.closeSession(session.client);
+        }
+    }
+
+    /**
+     * Removes and returns the most recently released idle session with the same login as the factory.
+     * Sessions of the same server and user that were logged in with another password are closed.
+     * @param sessionFactory    {@link FtpsSessionFactory} of the server and login.
+     * @return                  {@link IdleSession}, or null if there is none.
+     */
+    private IdleSession pollIdle(FtpsSessionFactory sessionFactory) {
+        List<IdleSession> stale = new ArrayList<>();
+        IdleSession found = null;
+        synchronized(this) {
+            Deque<IdleSession> sessions = idleSessions.get(sessionFactory.getSessionKey());
+            while(found == null && sessions != null && !sessions.isEmpty()) {
+                IdleSession session = sessions.pollFirst();
+                if(session.sessionFactory.isSameLogin(sessionFactory)) {
+                    found = session;
+                } else {
+                    stale.add(session);
+                }
+            }
+        }
+        for(IdleSession session : stale) {
+            discard(session.client);
+        }
+        return found;
+    }
+
+    /**
+     * Sends "NOOP" to every idle session and closes the ones that were idle for too long or
+     * did not answer. Sessions are taken out of the pool while they are checked,
+     * so they are never used by an upload and the keepalive at the same time.
+     */
+    private void keepAlive() {
+        List<IdleSession> sessions = new ArrayList<>();
+        synchronized(this) {
+            for(Deque<IdleSession> deque : idleSessions.values()) {
+                sessions.addAll(deque);
+                deque.clear();
+            }
+        }
+        long now = System.currentTimeMillis();
+        Iterator<IdleSession> iterator = sessions.iterator();
+        while(iterator.hasNext()) {
+            IdleSession session = iterator.next();
+            if(now-session.idleSince >= idleMillis) {
+                iterator.remove();
+                session.sessionFactory.closeSession(session.client);
+            } else if(!isHealthy(session.client)) {
+                iterator.remove();
+                discard(session.client);
+            }
+        }
+        synchronized(this) {
+            for(IdleSession session : sessions) {
+                if(closed) {
+                    discard(session.client);
+                } else {
+                    idleSessions.computeIfAbsent(session.sessionFactory.getSessionKey(), key -> new ArrayDeque<>())
+                            .addLast(session);
+                }
+            }
+        }
+    }
+
+    /**
+     * Checks that a session is still connected and answers "NOOP".
+     * @param ftp   {@link UploaderFtpsClient} to check.
+     * @return      True if the session can be used.
+     */
+    private boolean isHealthy(UploaderFtpsClient ftp) {
+        try {
+            return ftp.isConnected() && ftp.sendNoOp();
+        } catch(IOException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Disconnects a session that is broken or no longer wanted, without logging out.
+     * @param ftp   {@link UploaderFtpsClient} to disconnect.
+     */
+    private void discard(UploaderFtpsClient ftp) {
+        try {
+            ftp.disconnect();
+        } catch(IOException e) {
+            // The connection is already broken, nothing left to clean up.
+        }
+    }
+
+    /**
+     * Idle session with the factory it was opened with and the time it was released.
+     */
+    private static class IdleSession {
+        private final FtpsSessionFactory sessionFactory;
+        private final UploaderFtpsClient client;
+        private final long idleSince;
+
+        /**
+         * Constructor for {@link IdleSession}.
+         * @param sessionFactory    {@link FtpsSessionFactory} the session was opened with.
+         * @param client            Logged-in {@link UploaderFtpsClient}.
+         * @param idleSince         Time in milliseconds the session was released.
+         */
+        private IdleSession(FtpsSessionFactory sessionFactory, UploaderFtpsClient client, long idleSince) {
+            this.sessionFactory = sessionFactory;
+            this.client = client;
+            this.idleSince = idleSince;
+        }
+    }
+}
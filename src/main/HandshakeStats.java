@@ -0,0 +1,61 @@
+package main;
+
+import javax.net.ssl.SSLSession;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counts the TLS handshakes of the control and data connections of an upload run,
+ * split into full handshakes and resumed sessions.
+ * A handshake resumed a session if the session it ended with was created
+ * before the handshake started.
+ */
+public class HandshakeStats {
+    private final AtomicLong fullHandshakes;
+    private final AtomicLong resumedHandshakes;
+
+    /**
+     * Constructor for {@link HandshakeStats} with both counters at zero.
+     */
+    public HandshakeStats() {
+        this.fullHandshakes = new AtomicLong();
+        this.resumedHandshakes = new AtomicLong();
+    }
+
+    /**
+     * Counts a finished handshake as full or resumed.
+     * @param session       {@link SSLSession} the handshake ended with.
+     * @param startMillis   Time in milliseconds the handshake started.
+     */
+    public void record(SSLSession session, long startMillis) {
+        if(session.getCreationTime() < startMillis) {
+            resumedHandshakes.incrementAndGet();
+        } else {
+            fullHandshakes.incrementAndGet();
+        }
+    }
+
+    /**
+     * Returns the number of handshakes that negotiated a new session.
+     * @return  Number of full handshakes.
+     */
+    public long getFullHandshakes() {
+        return fullHandshakes.get();
+    }
+
+    /**
+     * Returns the number of handshakes that resumed an earlier session.
+     * @return  Number of resumed handshakes.
+     */
+    public long getResumedHandshakes() {
+        return resumedHandshakes.get();
+    }
+
+    /**
+     * Returns the counters as a line for the console.
+     * @return  {@link String} such as "TLS handshakes: 1 full, 12 resumed."
+     */
+    @Override
+    public String toString() {
+        return "TLS handshakes: "+getFullHandshakes()+" full, "+getResumedHandshakes()+" resumed.";
+    }
+}
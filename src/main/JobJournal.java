@@ -0,0 +1,503 @@
+package main;
+
+import org.apache.commons.lang3.SystemUtils;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Write-ahead journal of the batches being uploaded, so that the files of a batch cut off
+ * by the program exiting or dying, such as by System.exit while an upload thread is running,
+ * are known in the next run and uploaded again.
+ * Kept in a hidden append-only .jobs file next to the .properties file of the program,
+ * one line per event: a batch begins with its destination, each of its files is enqueued,
+ * started and completed, and the batch ends.
+ * The enqueued files of a batch are forced to disk before the batch is uploaded.
+ * Start and complete events are written by a helper thread, which forces the file to disk
+ * at most once per sync interval for all events since the last time, so an upload thread
+ * never waits for the disk. A file whose complete event was not on disk yet when the
+ * program died is uploaded again.
+ * When opened, the files of the batches that did not end and that were not completed
+ * are kept as unfinished, and the file is rewritten with only them.
+ * Once no batch is open or unfinished, the file is emptied.
+ */
+public class JobJournal {
+    public static final String fileName = ".autoUploadFiles.jobs";
+    public static final long defaultSyncMillis = 100;
+    private final File journalFile;
+    private final long syncMillis;
+    private final Map<Long, Unfinished> unfinished;
+    private final StringBuilder pending;
+    private final FileChannel channel;
+    private final Thread writer;
+    private long nextBatchId;
+    private int openBatches;
+    private long appended;
+    private long synced;
+    private long position;
+    private boolean syncNow;
+    private boolean truncate;
+    private boolean closed;
+    private boolean failed;
+
+    /**
+     * Constructor for {@link JobJournal}. Reads the journal file if it exists,
+     * rewrites it with only the unfinished files, and starts the thread that writes it.
+     * A line cut off by an earlier crash is dropped.
+     * @param journalFile   {@link File} the journal is kept in.
+     * @param syncMillis    Longest time in milliseconds a start or complete event waits to be forced to disk.
+     * @throws IOException  If the file cannot be read or written.
+     */
+    public JobJournal(File journalFile, long syncMillis) throws IOException {
+        this.journalFile = journalFile;
+        this.syncMillis = Math.max(0, syncMillis);
+        this.unfinished = new LinkedHashMap<>();
+        this.pending = new StringBuilder();
+        this.nextBatchId = 1;
+        this.openBatches = 0;
+        this.appended = 0;
+        this.synced = 0;
+        this.syncNow = false;
+        this.truncate = false;
+        this.closed = false;
+        this.failed = false;
+        if(journalFile.exists()) {
+            load();
+            compact();
+        }
+        this.channel = FileChannel.open(journalFile.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        this.position = channel.size();
+        if(SystemUtils.IS_OS_WINDOWS) {
+            Files.setAttribute(journalFile.toPath(), "dos:hidden", true);
+        }
+        this.writer = new Thread(this::write, "JobJournal");
+        writer.setDaemon(true);
+        writer.start();
+        if(!unfinished.isEmpty()) {
+            System.out.println("Job journal has "+getUnfinishedCount()+" unfinished file(s) of "
+                    +unfinished.size()+" interrupted batch(es).");
+        }
+    }
+
+    /**
+     * Returns the unfinished files of interrupted batches to a destination that still exist.
+     * @param destination   Server and path the files were uploaded to.
+     * @return              New {@link List} of the unfinished {@link File}s, in the order they were enqueued.
+     */
+    public synchronized List<File> getUnfinished(String destination) {
+        Set<File> files = new LinkedHashSet<>();
+        for(Unfinished batch : unfinished.values()) {
+            if(batch.destination.equals(destination)) {
+                for(String path : batch.paths.values()) {
+                    File file = new File(path);
+                    if(file.isFile()) {
+                        files.add(file);
+                    }
+                }
+            }
+        }
+        return new ArrayList<>(files);
+    }
+
+    /**
+     * Begins a batch: writes its destination and files, and waits until they are on disk.
+     * Interrupted batches to the same destination whose unfinished files are all in the batch,
+     * or no longer exist, are taken over by it and ended.
+     * @param destination   Server and path the files are uploaded to.
+     * @param files         {@link File}s of the batch.
+     * @return              {@link Batch} to record the events of the files in, which must be ended when done.
+     */
+    public Batch begin(String destination, List<File> files) {
+        Batch batch;
+        synchronized(this) {
+            batch = new Batch(nextBatchId++, files);
+            openBatches++;
+            append("B\t"+batch.id+"\t"+escape(destination)+"\n");
+            for(int i = 0; i < files.size(); i++) {
+                append("Q\t"+batch.id+"\t"+i+"\t"+escape(files.get(i).getAbsolutePath())+"\n");
+            }
+            for(Iterator<Map.Entry<Long, Unfinished>> it = unfinished.entrySet().iterator(); it.hasNext();) {
+                Map.Entry<Long, Unfinished> entry = it.next();
+                if(entry.getValue().destination.equals(destination) && entry.getValue().isCoveredBy(batch)) {
+                    append("E\t"+entry.getKey()+"\n");
+                    it.remove();
+                }
+            }
+        }
+        sync();
+        return batch;
+    }
+
+    /**
+     * Waits until every event recorded so far is forced to disk.
+     */
+    public void sync() {
+        synchronized(this) {
+            long sequence = appended;
+            syncNow = true;
+            notifyAll();
+            while(synced < sequence && !failed && writer.isAlive()) {
+                try {
+                    wait();
+                } catch(InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * Forces the recorded events to disk, stops the writing thread and closes the file.
+     * Batches still open stay unfinished for the next run. If there are none,
+     * and no unfinished files either, the file is deleted.
+     */
+    public void close() {
+        synchronized(this) {
+            if(closed) {
+                return;
+            }
+            closed = true;
+            notifyAll();
+        }
+        try {
+            writer.join();
+        } catch(InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        try {
+            channel.close();
+            synchronized(this) {
+                if(openBatches == 0 && unfinished.isEmpty() && !failed) {
+                    Files.deleteIfExists(journalFile.toPath());
+                }
+            }
+        } catch(IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Adds an event to the events waiting to be written. Does nothing once the journal is closed,
+     * or if writing it failed. Must be called while holding the lock of the journal.
+     * @param record    Line of the event.
+     */
+    private void append(String record) {
+        if(closed || failed) {
+            return;
+        }
+        if(pending.length() == 0) {
+            notifyAll();
+        }
+        pending.append(record);
+        appended++;
+    }
+
+    /**
+     * Writes the waiting events to the file and forces it to disk until the journal is closed.
+     * After the first event arrives, waits for more events up to the sync interval,
+     * unless sync() asks for them at once. If writing fails, the error is printed
+     * and the journal records nothing more.
+     */
+    private void write() {
+        while(true) {
+            String records;
+            boolean empty;
+            long sequence;
+            synchronized(this) {
+                try {
+                    while(pending.length() == 0 && !truncate && !closed) {
+                        wait();
+                    }
+                    long deadline = System.nanoTime()+TimeUnit.MILLISECONDS.toNanos(syncMillis);
+                    long remaining;
+                    while(!syncNow && !closed && (remaining = deadline-System.nanoTime()) > 0) {
+                        TimeUnit.NANOSECONDS.timedWait(this, remaining);
+                    }
+                } catch(InterruptedException e) {
+                    return;
+                }
+                if(pending.length() == 0 && !truncate) {
+                    synced = appended;
+                    syncNow = false;
+                    notifyAll();
+                    if(closed) {
+                        return;
+                    }
+                    continue;
+                }
+                records = pending.toString();
+                pending.setLength(0);
+                empty = truncate;
+                truncate = false;
+                syncNow = false;
+                sequence = appended;
+            }
+            try {
+                if(empty) {
+                    channel.truncate(0);
+                    position = 0;
+                }
+                ByteBuffer buffer = StandardCharsets.UTF_8.encode(records);
+                while(buffer.hasRemaining()) {
+                    position += channel.write(buffer, position);
+                }
+                channel.force(false);
+            } catch(IOException e) {
+                System.out.println("Job journal could not be written: "+e.getMessage());
+                synchronized(this) {
+                    failed = true;
+                    pending.setLength(0);
+                }
+            }
+            synchronized(this) {
+                synced = sequence;
+                notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Reads the events of the journal file, and keeps the files of the batches
+     * that did not end and that were not completed. Lines that cannot be read are skipped.
+     * @throws IOException  If the file cannot be read.
+     */
+    private void load() throws IOException {
+        String text = new String(Files.readAllBytes(journalFile.toPath()), StandardCharsets.UTF_8);
+        int end = text.lastIndexOf('\n');
+        if(end < 0) {
+            return;
+        }
+        for(String line : text.substring(0, end).split("\n")) {
+            String[] fields = line.split("\t", -1);
+            try {
+                long id = Long.parseLong(fields[1]);
+                nextBatchId = Math.max(nextBatchId, id+1);
+                Unfinished batch = unfinished.get(id);
+                switch(fields[0]) {
+                    case "B":
+                        unfinished.put(id, new Unfinished(unescape(fields[2])));
+                        break;
+                    case "Q":
+                        batch.paths.put(Integer.parseInt(fields[2]), unescape(fields[3]));
+                        break;
+                    case "S":
+                        batch.started.add(Integer.parseInt(fields[2]));
+                        break;
+                    case "C":
+                        batch.paths.remove(Integer.parseInt(fields[2]));
+                        break;
+                    case "E":
+                        unfinished.remove(id);
+                        break;
+                    default:
+                        break;
+                }
+            } catch(RuntimeException e) {
+                // Skips a damaged line, or an event of a batch that is not in the journal.
+            }
+        }
+        unfinished.values().removeIf(batch -> batch.paths.isEmpty());
+    }
+
+    /**
+     * Rewrites the journal file with only the unfinished files, through a temporary file
+     * that replaces it in one move, so a crash while rewriting loses nothing.
+     * @throws IOException  If the file cannot be written.
+     */
+    private void compact() throws IOException {
+        StringBuilder records = new StringBuilder();
+        for(Map.Entry<Long, Unfinished> entry : unfinished.entrySet()) {
+            Unfinished batch = entry.getValue();
+            records.append("B\t").append(entry.getKey()).append('\t').append(escape(batch.destination)).append('\n');
+            for(Map.Entry<Integer, String> path : batch.paths.entrySet()) {
+                records.append("Q\t").append(entry.getKey()).append('\t').append(path.getKey())
+                        .append('\t').append(escape(path.getValue())).append('\n');
+                if(batch.started.contains(path.getKey())) {
+                    records.append("S\t").append(entry.getKey()).append('\t').append(path.getKey()).append('\n');
+                }
+            }
+        }
+        Path temporary = new File(journalFile.getPath()+".tmp").toPath();
+        FileChannel temporaryChannel = FileChannel.open(temporary, StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+        try {
+            ByteBuffer buffer = StandardCharsets.UTF_8.encode(records.toString());
+            while(buffer.hasRemaining()) {
+                temporaryChannel.write(buffer);
+            }
+            temporaryChannel.force(false);
+        } finally {
+            temporaryChannel.close();
+        }
+        Files.move(temporary, journalFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Returns the number of unfinished files of all interrupted batches.
+     * @return  Number of unfinished files.
+     */
+    private int getUnfinishedCount() {
+        int count = 0;
+        for(Unfinished batch : unfinished.values()) {
+            count += batch.paths.size();
+        }
+        return count;
+    }
+
+    /**
+     * Escapes the backslashes, tabs and line breaks of a path or destination, which separate the events.
+     * @param value {@link String} to escape.
+     * @return      Escaped {@link String}.
+     */
+    private static String escape(String value) {
+        return value.replace("\\", "\\\\").replace("\t", "\\t").replace("\n", "\\n").replace("\r", "\\r");
+    }
+
+    /**
+     * Reverses escape(String).
+     * @param value Escaped {@link String}.
+     * @return      {@link String} as it was before escaping.
+     */
+    private static String unescape(String value) {
+        StringBuilder unescaped = new StringBuilder(value.length());
+        for(int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if(c == '\\' && i+1 < value.length()) {
+                c = value.charAt(++i);
+                unescaped.append(c == 't' ? '\t' : c == 'n' ? '\n' : c == 'r' ? '\r' : c);
+            } else {
+                unescaped.append(c);
+            }
+        }
+        return unescaped.toString();
+    }
+
+    /**
+     * Batch of an earlier run that did not end, with the files that were not completed.
+     */
+    private static class Unfinished {
+        private final String destination;
+        private final Map<Integer, String> paths;
+        private final Set<Integer> started;
+
+        /**
+         * Constructor for an {@link Unfinished} batch without files.
+         * @param destination   Server and path the files were uploaded to.
+         */
+        private Unfinished(String destination) {
+            this.destination = destination;
+            this.paths = new LinkedHashMap<>();
+            this.started = new HashSet<>();
+        }
+
+        /**
+         * Returns whether every unfinished file is in a new batch or no longer exists.
+         * @param batch {@link Batch} that begins.
+         * @return      True if the new batch takes over this one.
+         */
+        private boolean isCoveredBy(Batch batch) {
+            for(String path : paths.values()) {
+                File file = new File(path);
+                if(file.isFile() && !batch.indexes.containsKey(file.getAbsoluteFile())) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    /**
+     * Batch being uploaded, which records the events of its files. Can be used by several threads.
+     */
+    public class Batch {
+        private final long id;
+        private final Map<File, Integer> indexes;
+        private boolean ended;
+
+        /**
+         * Constructor for {@link Batch}, see begin(String, List).
+         * @param id    Id of the batch in the journal.
+         * @param files {@link File}s of the batch.
+         */
+        private Batch(long id, List<File> files) {
+            this.id = id;
+            this.indexes = new HashMap<>();
+            for(int i = 0; i < files.size(); i++) {
+                indexes.put(files.get(i).getAbsoluteFile(), i);
+            }
+            this.ended = false;
+        }
+
+        /**
+         * Records that a file started uploading.
+         * @param file  {@link File} of the batch.
+         */
+        public void started(File file) {
+            record("S", file);
+        }
+
+        /**
+         * Records that a file was uploaded, or skipped, and needs no upload in a later run.
+         * @param file  {@link File} of the batch.
+         */
+        public void completed(File file) {
+            record("C", file);
+        }
+
+        /**
+         * Ends the batch, whether every file was uploaded or not. Once no batch is open
+         * and no files are unfinished, the journal file is emptied.
+         */
+        public void end() {
+            synchronized(JobJournal.this) {
+                if(ended) {
+                    return;
+                }
+                ended = true;
+                openBatches--;
+                if(openBatches == 0 && unfinished.isEmpty() && !closed && !failed) {
+                    pending.setLength(0);
+                    truncate = true;
+                    JobJournal.this.notifyAll();
+                } else {
+                    append("E\t"+id+"\n");
+                }
+            }
+        }
+
+        /**
+         * Adds an event of a file of the batch.
+         * @param type  Letter of the event.
+         * @param file  {@link File} of the batch.
+         */
+        private void record(String type, File file) {
+            Integer index = indexes.get(file.getAbsoluteFile());
+            if(index == null) {
+                return;
+            }
+            synchronized(JobJournal.this) {
+                if(!ended) {
+                    append(type+"\t"+id+"\t"+index+"\n");
+                }
+            }
+        }
+    }
+}
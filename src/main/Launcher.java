@@ -0,0 +1,24 @@
+package main;
+
+import java.util.Arrays;
+
+/**
+ * Entry point of the program jar. Does not extend any JavaFX class,
+ * so that the command-line uploader runs without loading JavaFX.
+ * Runs the {@link UploaderCli} if the first argument is "--cli",
+ * otherwise starts the JavaFX program with {@link AutoUploadFiles}.
+ */
+public class Launcher {
+
+    /**
+     * Starts the command-line uploader or the JavaFX program.
+     * @param args  Command-line arguments.
+     */
+    public static void main(String[] args) {
+        if(args.length > 0 && args[0].equals(UploaderCli.option)) {
+            System.exit(new UploaderCli().run(Arrays.copyOfRange(args, 1, args.length)));
+        } else {
+            AutoUploadFiles.main(args);
+        }
+    }
+}
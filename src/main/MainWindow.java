@@ -13,6 +13,7 @@ import javafx.stage.Stage;
 import java.io.File;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Properties;
 
 /**
  * The first window that is shown at the start of the program.
@@ -30,12 +31,14 @@ public class MainWindow implements Runnable {
     private Label usernameLabel;
     private Label passwordLabel;
     private Label uploadPathLabel;
+    private Label connectionsLabel;
     private Label saveSettingsLabel;
     private TextField hostnameInput;
     private TextField portInput;
     private TextField usernameInput;
     private PasswordField passwordInput;
     private TextField uploadPathInput;
+    private TextField connectionsInput;
     private CheckBox saveSettingsCheckbox;
 
     /**
@@ -49,12 +52,15 @@ public class MainWindow implements Runnable {
         usernameLabel = new Label("Username:");
         passwordLabel = new Label("Password:");
         uploadPathLabel = new Label("Upload Path:");
+        connectionsLabel = new Label("Connections:");
         saveSettingsLabel = new Label("Save Settings:");
         hostnameInput = newTextField("Enter the hostname here...", new Tooltip("Hostname of FTP server"));
         portInput = newTextField("Enter the port here...", new Tooltip("Port of the FTP server"));
         usernameInput = newTextField("Enter the username here...", new Tooltip("Username for the FTP server"));
         uploadPathInput = newTextField("Enter the upload path here...",
                 new Tooltip("Path on the FTP server to upload the file(s) to"));
+        connectionsInput = newTextField("Enter the number of connections here...",
+                new Tooltip("Number of connections to upload the file(s) over at the same time"));
         passwordInput = newPasswordInput();
         saveSettingsCheckbox = newCheckbox(false, new Tooltip(
                 "If checked, current settings will be saved for future use.\n" +
@@ -75,6 +81,8 @@ public class MainWindow implements Runnable {
         portInput.setText(autoUploadFiles.getProperties().getProperty("port"));
         usernameInput.setText(autoUploadFiles.getProperties().getProperty("username"));
         uploadPathInput.setText(autoUploadFiles.getProperties().getProperty("uploadPath"));
+        connectionsInput.setText(autoUploadFiles.getProperties().getProperty("connections", "1"));
+        files = getRecoveredFiles();
     }
 
     /**
@@ -106,15 +114,24 @@ public class MainWindow implements Runnable {
         gridTop.add(usernameLabel, 0, 2);
         gridTop.add(passwordLabel, 0, 3);
         gridTop.add(uploadPathLabel, 0, 4);
+        gridTop.add(connectionsLabel, 0, 5);
         gridTop.add(hostnameInput, 1, 0);
         gridTop.add(portInput, 1, 1);
         gridTop.add(usernameInput, 1, 2);
         gridTop.add(passwordInput, 1, 3);
         gridTop.add(uploadPathInput, 1, 4);
+        gridTop.add(connectionsInput, 1, 5);
         HBox hboxCheckbox = new HBox(6, saveSettingsLabel, saveSettingsCheckbox);
         VBox vboxGridTop = new VBox(10, gridTop, hboxCheckbox);
 
-        VBox vboxFileLabels = new VBox(10, new Label("No file(s) selected."));
+        VBox vboxFileLabels = new VBox(10);
+        if(files != null) {
+            for(File file : files) {
+                vboxFileLabels.getChildren().add(new Label(file.getName()));
+            }
+        } else {
+            vboxFileLabels.getChildren().add(new Label("No file(s) selected."));
+        }
         vboxFileLabels.setAlignment(Pos.CENTER_LEFT);
         Button selectFileButton = newSelectFileButton(vboxFileLabels);
         Button connectButton = newConnectButton();
@@ -135,6 +152,28 @@ public class MainWindow implements Runnable {
 
         window.setScene(new Scene(border));
         window.show();
+        if(files != null) {
+            autoUploadFiles.showAlert(files.size()+" file(s) of an interrupted upload to "+uploadPathInput.getText()
+                    +" were selected again.\nEnter the password and press Connect to upload them.", Alert.AlertType.INFORMATION);
+        }
+    }
+
+    /**
+     * Returns the unfinished files of an interrupted upload to the saved destination,
+     * as recorded in the {@link JobJournal}, so they are selected when the window opens.
+     * @return  {@link List} of the unfinished {@link File}s, or null if there are none.
+     */
+    private List<File> getRecoveredFiles() {
+        JobJournal jobJournal = autoUploadFiles.getJobJournal();
+        Properties properties = autoUploadFiles.getProperties();
+        if(jobJournal == null || properties.getProperty("hostname") == null || properties.getProperty("port") == null
+                || properties.getProperty("username") == null || properties.getProperty("uploadPath") == null) {
+            return null;
+        }
+        List<File> recovered = jobJournal.getUnfinished(FtpsSessionFactory.toDestination(properties.getProperty("username"),
+                properties.getProperty("hostname"), parseInt(properties.getProperty("port")),
+                properties.getProperty("uploadPath")));
+        return recovered.isEmpty() ? null : recovered;
     }
 
     /**
@@ -216,10 +255,11 @@ public class MainWindow implements Runnable {
         connectButton.setOnAction(e -> {
             if(files != null) {
                 String hostname = hostnameInput.getText();
-                int port = portStringToInt(portInput.getText());
+                int port = parseInt(portInput.getText());
                 String username = usernameInput.getText();
                 String password = passwordInput.getText();
                 String uploadPath = uploadPathInput.getText();
+                int connections = parseInt(connectionsInput.getText());
                 if(hostname.equals("")) {
                     autoUploadFiles.showAlert("Please enter the hostname.", Alert.AlertType.WARNING);
                 } else if(port == -1) {
@@ -230,8 +270,11 @@ public class MainWindow implements Runnable {
                     autoUploadFiles.showAlert("Please enter the password.", Alert.AlertType.WARNING);
                 } else if (uploadPath.equals("")) {
                     autoUploadFiles.showAlert("Please enter the upload path.", Alert.AlertType.WARNING);
+                } else if(connections < 1 || connections > UploadEngine.connectionLimit) {
+                    autoUploadFiles.showAlert("Please enter a number of connections from 1 to "
+                            +UploadEngine.connectionLimit+".", Alert.AlertType.WARNING);
                 } else {
-                    autoUploadFiles.startUploaderTask(hostname, port, username, password, uploadPath, files);
+                    autoUploadFiles.startUploaderTask(hostname, port, username, password, uploadPath, files, connections);
                 }
             } else {
                 autoUploadFiles.showAlert("Please select the file(s).", Alert.AlertType.WARNING);
@@ -260,6 +303,9 @@ public class MainWindow implements Runnable {
             if(uploadPathInput.getText() != null) {
                 autoUploadFiles.getProperties().setProperty("uploadPath", uploadPathInput.getText());
             }
+            if(connectionsInput.getText() != null) {
+                autoUploadFiles.getProperties().setProperty("connections", connectionsInput.getText());
+            }
             autoUploadFiles.exit(saveSettingsCheckbox.isSelected());
         });
         cancelButton.setCancelButton(true);
@@ -267,20 +313,20 @@ public class MainWindow implements Runnable {
     }
 
     /**
-     * Attempts to parse the {@link String} portString into an int value.
+     * Attempts to parse the {@link String} text, such as a port or a number of connections, into an int value.
      * If the parse is invalid and throws an exception, it is caught
      * and a value of -1 is returned.
-     * @param portString    {@link String} to be parsed into an int.
-     * @return              The parsed value of the portString, or -1.
+     * @param text  {@link String} to be parsed into an int.
+     * @return      The parsed value of the text, or -1.
      */
-    public int portStringToInt(String portString) {
-        int port = -1;
+    public int parseInt(String text) {
+        int value = -1;
         try {
-            port = Integer.valueOf(portString);
+            value = Integer.valueOf(text);
         } catch (NumberFormatException numFormat) {
             numFormat.printStackTrace();
         } finally {
-            return port;
+            return value;
         }
     }
 }
@@ -0,0 +1,119 @@
+package main;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Exports the {@link UploadMetrics} of the program to a file after every batch,
+ * and serves them over HTTP on the loopback address while the program runs.
+ * The file is written as JSON if its name ends with ".json", otherwise in the
+ * Prometheus text format, such as for the textfile collector of the node exporter.
+ * It is replaced in one move, so a reader never sees half of it.
+ * The HTTP server answers "/metrics" in the Prometheus text format and "/metrics.json" as JSON.
+ */
+public class MetricsExporter {
+    private final UploadMetrics metrics;
+    private final File metricsFile;
+    private HttpServer server;
+    private ExecutorService executor;
+
+    /**
+     * Constructor for {@link MetricsExporter}.
+     * @param metrics       {@link UploadMetrics} to export.
+     * @param metricsFile   {@link File} to write the metrics to, or null to write no file.
+     */
+    public MetricsExporter(UploadMetrics metrics, File metricsFile) {
+        this.metrics = metrics;
+        this.metricsFile = metricsFile;
+        this.server = null;
+        this.executor = null;
+    }
+
+    /**
+     * Starts serving the metrics over HTTP on the loopback address.
+     * @param port          Port to listen on.
+     * @throws IOException  If the port cannot be bound.
+     */
+    public void start(int port) throws IOException {
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+        server.createContext("/metrics", this::respond);
+        executor = Executors.newSingleThreadExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "MetricsExporter");
+            thread.setDaemon(true);
+            return thread;
+        });
+        server.setExecutor(executor);
+        server.start();
+        System.out.println("Serving metrics on http://"+InetAddress.getLoopbackAddress().getHostAddress()+":"
+                +server.getAddress().getPort()+"/metrics");
+    }
+
+    /**
+     * Writes the metrics to the file, if one is set. Errors are printed, as metrics are not worth failing for.
+     */
+    public void writeFile() {
+        if(metricsFile == null) {
+            return;
+        }
+        String text = metricsFile.getName().endsWith(".json") ? metrics.toJson()+"\n" : metrics.toPrometheus();
+        Path temporary = new File(metricsFile.getPath()+".tmp").toPath();
+        try {
+            Files.write(temporary, text.getBytes(StandardCharsets.UTF_8));
+            Files.move(temporary, metricsFile.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+        } catch(IOException e) {
+            System.out.println("Metrics could not be written to "+metricsFile.getPath()+": "+e.getMessage());
+        }
+    }
+
+    /**
+     * Stops the HTTP server, if it was started.
+     */
+    public void stop() {
+        if(server != null) {
+            server.stop(0);
+            executor.shutdownNow();
+            server = null;
+        }
+    }
+
+    /**
+     * Answers a request for "/metrics" or "/metrics.json", and any other path with 404.
+     * @param exchange      {@link HttpExchange} of the request.
+     * @throws IOException  If the response cannot be sent.
+     */
+    private void respond(HttpExchange exchange) throws IOException {
+        try {
+            String path = exchange.getRequestURI().getPath();
+            byte[] body;
+            if(path.equals("/metrics")) {
+                body = metrics.toPrometheus().getBytes(StandardCharsets.UTF_8);
+                exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+            } else if(path.equals("/metrics.json")) {
+                body = metrics.toJson().getBytes(StandardCharsets.UTF_8);
+                exchange.getResponseHeaders().set("Content-Type", "application/json");
+            } else {
+                exchange.sendResponseHeaders(404, -1);
+                return;
+            }
+            exchange.sendResponseHeaders(200, body.length);
+            OutputStream output = exchange.getResponseBody();
+            output.write(body);
+            output.close();
+        } finally {
+            exchange.close();
+        }
+    }
+}
@@ -0,0 +1,114 @@
+package main;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Aggregate progress of a whole batch, sampled at a fixed rate off the upload threads.
+ * The upload threads only add their written bytes to a {@link LongAdder}, which does not
+ * contend between connections. A daemon thread samples the total at a fixed interval
+ * and reports the progress, a smoothed throughput, and the estimated time remaining
+ * to the {@link UploadListener}.
+ * The throughput is an exponentially weighted moving average over a few seconds,
+ * so it does not jump between files.
+ */
+public class ProgressMonitor {
+    public static final long defaultSampleMillis = 250;
+    private static final double smoothingSeconds = 3.0;
+    private final LongAdder bytesUploaded;
+    private final long bytesTotal;
+    private final long sampleMillis;
+    private final UploadListener listener;
+    private ScheduledExecutorService sampler;
+    private long lastSampleNanos;
+    private long lastSampleBytes;
+    private double bytesPerSecond;
+
+    /**
+     * Constructor for {@link ProgressMonitor}.
+     * @param bytesTotal    Total bytes of all files in the batch.
+     * @param sampleMillis  Interval between samples in milliseconds.
+     * @param listener      {@link UploadListener} to report the samples to.
+     */
+    public ProgressMonitor(long bytesTotal, long sampleMillis, UploadListener listener) {
+        this.bytesUploaded = new LongAdder();
+        this.bytesTotal = bytesTotal;
+        this.sampleMillis = sampleMillis;
+        this.listener = listener;
+        this.sampler = null;
+        this.bytesPerSecond = 0;
+    }
+
+    /**
+     * Adds uploaded bytes. Called by the upload threads for every write,
+     * so it does nothing but add to the counter.
+     * @param bytes Number of bytes uploaded.
+     */
+    public void add(long bytes) {
+        bytesUploaded.add(bytes);
+    }
+
+    /**
+     * Reports the starting progress and starts sampling.
+     */
+    public synchronized void start() {
+        lastSampleNanos = System.nanoTime();
+        lastSampleBytes = bytesUploaded.sum();
+        listener.progressChanged(lastSampleBytes, bytesTotal);
+        sampler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "ProgressMonitor");
+            thread.setDaemon(true);
+            return thread;
+        });
+        sampler.scheduleAtFixedRate(this::sample, sampleMillis, sampleMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Stops sampling and reports the final progress.
+     */
+    public synchronized void stop() {
+        if(sampler != null) {
+            sampler.shutdownNow();
+            sampler = null;
+        }
+        sample();
+    }
+
+    /**
+     * Takes one sample: updates the smoothed throughput from the bytes uploaded since
+     * the previous sample and reports progress, throughput, and time remaining.
+     */
+    private synchronized void sample() {
+        long now = System.nanoTime();
+        long bytes = bytesUploaded.sum();
+        double seconds = (now-lastSampleNanos)/1e9;
+        if(seconds > 0) {
+            double rate = (bytes-lastSampleBytes)/seconds;
+            double weight = 1-Math.exp(-seconds/smoothingSeconds);
+            bytesPerSecond += weight*(rate-bytesPerSecond);
+        }
+        lastSampleNanos = now;
+        lastSampleBytes = bytes;
+        long secondsRemaining = bytesPerSecond > 0 ? (long) Math.ceil((bytesTotal-bytes)/bytesPerSecond) : -1;
+        listener.progressChanged(bytes, bytesTotal);
+        listener.throughputChanged(bytesPerSecond, secondsRemaining);
+    }
+
+    /**
+     * Returns the bytes uploaded so far.
+     * @return  Bytes uploaded so far over all connections.
+     */
+    public long getBytesUploaded() {
+        return bytesUploaded.sum();
+    }
+
+    /**
+     * Returns the total bytes of all files in the batch.
+     * @return  Total bytes of the batch.
+     */
+    public long getBytesTotal() {
+        return bytesTotal;
+    }
+}
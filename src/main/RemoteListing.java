@@ -0,0 +1,212 @@
+package main;
+
+import org.apache.commons.lang3.SystemUtils;
+import org.apache.commons.net.ftp.FTPClient;
+import org.apache.commons.net.ftp.FTPFile;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+
+/**
+ * Cached listing of the files in the upload path on the FTP server, used to upload
+ * only the files that are new or changed since they were last uploaded.
+ * The listing is fetched with "MLSD" if the server supports "MLST", otherwise with "LIST".
+ * "LIST" timestamps are not precise enough to compare, so for files listed with "LIST"
+ * the modification time is asked for with "MDTM" when it is needed, and then cached too.
+ * The listing is kept in a hidden .listing file next to the .properties file of the program
+ * and fetched again once it is older than its time to live, so repeated runs against
+ * a large remote directory do not list it every time.
+ * A local file is unchanged if a file of the same name and size is on the server,
+ * and the local file was not modified after the file on the server.
+ */
+public class RemoteListing {
+    public static final String fileName = ".autoUploadFiles.listing";
+    public static final long defaultTtlSeconds = 300;
+    private static final long timeTolerance = 1000;
+    private static final long unknownTime = -1;
+    private File listingFile;
+    private long ttlMillis;
+    private Properties entries;
+
+    /**
+     * Constructor for {@link RemoteListing}. Reads the listing file if it exists.
+     * @param listingFile   {@link File} the listing is cached in.
+     * @param ttlSeconds    Seconds a fetched listing is used before it is fetched again.
+     */
+    public RemoteListing(File listingFile, long ttlSeconds) {
+        this.listingFile = listingFile;
+        this.ttlMillis = ttlSeconds*1000;
+        this.entries = new Properties();
+        if(listingFile.exists()) {
+            try {
+                FileInputStream inputStream = new FileInputStream(listingFile);
+                entries.load(inputStream);
+                inputStream.close();
+            } catch(IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * Returns the files that are new or changed compared to the listing of the destination.
+     * Fetches the listing first if it is not cached or its time to live has passed.
+     * @param ftp           Logged-in and configured {@link FTPClient} in the upload path.
+     * @param destination   Server and path the files are uploaded to.
+     * @param files         Local {@link File}s to upload.
+     * @return              {@link List} of the {@link File}s that need to be uploaded.
+     * @throws IOException  If thrown by FTP client command functions.
+     */
+    public synchronized List<File> changedFiles(FTPClient ftp, String destination, List<File> files) throws IOException {
+        long age = getAge(destination);
+        if(age < 0 || age >= ttlMillis) {
+            fetch(ftp, destination);
+        } else {
+            System.out.println("Using listing of FTP server from "+age/1000+" seconds ago.");
+        }
+        List<File> changed = new ArrayList<>();
+        boolean modified = false;
+        for(File file : files) {
+            String key = getKey(destination, file.getName());
+            long[] entry = parseEntry(entries.getProperty(key));
+            if(entry == null || entry[0] != file.length()) {
+                changed.add(file);
+                continue;
+            }
+            if(entry[1] == unknownTime) {
+                FTPFile remote = ftp.mdtmFile(file.getName());
+                if(remote == null || remote.getTimestamp() == null) {
+                    changed.add(file);
+                    continue;
+                }
+                entry[1] = remote.getTimestamp().getTimeInMillis();
+                entries.setProperty(key, entry[0]+","+entry[1]);
+                modified = true;
+            }
+            if(file.lastModified() > entry[1]+timeTolerance) {
+                changed.add(file);
+            }
+        }
+        if(modified) {
+            save();
+        }
+        return changed;
+    }
+
+    /**
+     * Records files as uploaded to the destination, so that the cached listing stays
+     * current without fetching it again.
+     * @param destination   Server and path the files were uploaded to.
+     * @param files         Local {@link File}s that were uploaded.
+     */
+    public synchronized void uploaded(String destination, List<File> files) {
+        long now = System.currentTimeMillis();
+        for(File file : files) {
+            entries.setProperty(getKey(destination, file.getName()), file.length()+","+now);
+        }
+        save();
+    }
+
+    /**
+     * Drops the cached listing of the destination, so it is fetched again by the next run.
+     * Used when an upload failed and the files on the server are not known.
+     * @param destination   Server and path the files were uploaded to.
+     */
+    public synchronized void invalidate(String destination) {
+        if(entries.remove(destination) != null) {
+            save();
+        }
+    }
+
+    /**
+     * Fetches the listing of the current directory on the FTP server and replaces
+     * the cached entries of the destination with it.
+     * @param ftp           Logged-in and configured {@link FTPClient} in the upload path.
+     * @param destination   Server and path the files are uploaded to.
+     * @throws IOException  If thrown by FTP client command functions.
+     */
+    private void fetch(FTPClient ftp, String destination) throws IOException {
+        boolean mlsd = ftp.hasFeature("MLST");
+        FTPFile[] remoteFiles = mlsd ? ftp.mlistDir() : ftp.listFiles();
+        String prefix = destination+" -> ";
+        entries.keySet().removeIf(key -> ((String) key).startsWith(prefix));
+        int count = 0;
+        for(FTPFile remote : remoteFiles) {
+            if(remote != null && remote.isFile()) {
+                long time = mlsd && remote.getTimestamp() != null ? remote.getTimestamp().getTimeInMillis() : unknownTime;
+                entries.setProperty(prefix+remote.getName(), remote.getSize()+","+time);
+                count++;
+            }
+        }
+        entries.setProperty(destination, String.valueOf(System.currentTimeMillis()));
+        System.out.println("Listed "+count+" file(s) on FTP server with "+(mlsd ? "MLSD" : "LIST")+".");
+        save();
+    }
+
+    /**
+     * Returns how long ago the listing of the destination was fetched.
+     * @param destination   Server and path the files are uploaded to.
+     * @return              Age of the listing in milliseconds, or -1 if it is not cached.
+     */
+    private long getAge(String destination) {
+        String fetched = entries.getProperty(destination);
+        if(fetched == null) {
+            return -1;
+        }
+        try {
+            return Math.max(0, System.currentTimeMillis()-Long.parseLong(fetched));
+        } catch(NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * Writes the listing to its file. If OS is Windows, sets "hidden" DOS attribute,
+     * like the .properties file.
+     */
+    private void save() {
+        try {
+            FileOutputStream outputStream = new FileOutputStream(listingFile);
+            entries.store(outputStream, null);
+            outputStream.close();
+            if(SystemUtils.IS_OS_WINDOWS) {
+                Files.setAttribute(listingFile.toPath(), "dos:hidden", true);
+            }
+        } catch(IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Returns the key of a remote file in the listing.
+     * @param destination   Server and path the file is uploaded to.
+     * @param name          Name of the file on the server.
+     * @return              {@link String} key of the entry.
+     */
+    private String getKey(String destination, String name) {
+        return destination+" -> "+name;
+    }
+
+    /**
+     * Parses the value of an entry: the size and modification time of the remote file.
+     * @param entry {@link String} value of the entry, or null.
+     * @return      {size, modification time}, or null if there is no valid entry.
+     */
+    private long[] parseEntry(String entry) {
+        if(entry == null || entry.indexOf(',') < 0) {
+            return null;
+        }
+        try {
+            return new long[] {Long.parseLong(entry.substring(0, entry.indexOf(','))),
+                    Long.parseLong(entry.substring(entry.indexOf(',')+1))};
+        } catch(NumberFormatException e) {
+            return null;
+        }
+    }
+}
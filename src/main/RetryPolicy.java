@@ -0,0 +1,98 @@
+package main;
+
+import org.apache.commons.net.ftp.FTPConnectionClosedException;
+import org.apache.commons.net.ftp.FTPReply;
+import org.apache.commons.net.io.CopyStreamException;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.util.concurrent.ThreadLocalRandom;
+import javax.net.ssl.SSLException;
+
+/**
+ * Decides whether a failed upload of a file is tried again, and how long to wait before.
+ * A failure is transient if the server replied with a 4xx code, such as 421, 425 or 426,
+ * or the connection timed out, was reset or closed. It is permanent if the server replied
+ * with a 5xx code, such as 550 for a missing permission, or the local file cannot be read.
+ * The wait doubles with every attempt up to a maximum, and a random part of up to half of it
+ * is taken off, so connections that failed together do not all try again at the same moment.
+ */
+public class RetryPolicy {
+    public static final int defaultRetries = 3;
+    public static final long defaultBaseMillis = 1000;
+    public static final long defaultMaxMillis = 30000;
+    private final int retries;
+    private final long baseMillis;
+    private final long maxMillis;
+
+    /**
+     * Constructor for {@link RetryPolicy}.
+     * @param retries       Number of times a file is tried again after a transient failure.
+     * @param baseMillis    Wait in milliseconds before the first new attempt.
+     * @param maxMillis     Longest wait in milliseconds before a new attempt.
+     */
+    public RetryPolicy(int retries, long baseMillis, long maxMillis) {
+        this.retries = Math.max(0, retries);
+        this.baseMillis = Math.max(1, baseMillis);
+        this.maxMillis = Math.max(this.baseMillis, maxMillis);
+    }
+
+    /**
+     * Returns the number of times a file is tried again after a transient failure.
+     * @return  Number of new attempts.
+     */
+    public int getRetries() {
+        return retries;
+    }
+
+    /**
+     * Returns whether a file that failed on its given attempt is tried again.
+     * @param attempt           Number of the attempt that failed, starting at 1.
+     * @param transientFailure  True if the failure was transient.
+     * @return                  True if the file is tried again.
+     */
+    public boolean shouldRetry(int attempt, boolean transientFailure) {
+        return transientFailure && attempt <= retries;
+    }
+
+    /**
+     * Returns whether the reply of a store command that did not succeed is a transient failure.
+     * @param replyCode Reply code of the FTP server.
+     * @return          True for a 4xx reply.
+     */
+    public boolean isTransient(int replyCode) {
+        return FTPReply.isNegativeTransient(replyCode);
+    }
+
+    /**
+     * Returns whether an exception thrown while uploading a file is a transient failure:
+     * a timeout, a reset or closed connection, or a failed TLS handshake.
+     * Other errors, such as a local file that cannot be read, are permanent.
+     * @param e {@link IOException} thrown while uploading.
+     * @return  True if the failure is transient.
+     */
+    public boolean isTransient(IOException e) {
+        if(e instanceof CopyStreamException && ((CopyStreamException) e).getIOException() != null) {
+            return isTransient(((CopyStreamException) e).getIOException());
+        }
+        return e instanceof SocketTimeoutException || e instanceof SocketException
+                || e instanceof FTPConnectionClosedException || e instanceof EOFException
+                || e instanceof SSLException;
+    }
+
+    /**
+     * Returns how long to wait before trying a file again: the base wait doubled for every
+     * earlier attempt, at most the maximum wait, less a random part of up to half of it.
+     * @param attempt   Number of the attempt that failed, starting at 1.
+     * @return          Wait in milliseconds.
+     */
+    public long getBackoffMillis(int attempt) {
+        long backoff = baseMillis << Math.min(Math.max(0, attempt-1), 30);
+        if(backoff <= 0 || backoff > maxMillis) {
+            backoff = maxMillis;
+        }
+        return backoff-ThreadLocalRandom.current().nextLong(backoff/2+1);
+    }
+}
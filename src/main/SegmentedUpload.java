@@ -0,0 +1,208 @@
+package main;
+
+import org.apache.commons.net.ftp.FTPSClient;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.LongConsumer;
+
+/**
+ * Uploads a single large file in byte ranges over several connections at the same time.
+ * The first segment is stored with a plain "STOR" to create the file on the FTP server,
+ * every other segment is stored with "REST" and "STOR" at its offset.
+ * The other segments only start once the server has opened the file for the first one,
+ * so the file is not truncated after they began writing.
+ * Requires the server to advertise "REST STREAM" in its "FEAT" reply,
+ * see {@link FtpCommands#supportsRestStream(org.apache.commons.net.ftp.FTPClient)}.
+ * After every segment is stored, the size of the file on the server is checked
+ * against the local size.
+ */
+public class SegmentedUpload {
+    private static final int defaultBufferSize = 8192;
+    private FtpsSessionFactory sessionFactory;
+    private List<FTPSClient> clients;
+    private int segments;
+
+    /**
+     * Constructor for {@link SegmentedUpload}.
+     * @param sessionFactory    {@link FtpsSessionFactory} used to open the connections of the segments.
+     * @param clients           Synchronized list the opened connections are added to,
+     *                          so that they are aborted if the upload is cancelled.
+     * @param segments          Number of segments, and connections, to upload a file over.
+     */
+    public SegmentedUpload(FtpsSessionFactory sessionFactory, List<FTPSClient> clients, int segments) {
+        this.sessionFactory = sessionFactory;
+        this.clients = clients;
+        this.segments = segments;
+    }
+
+    /**
+     * Uploads the file in segments. The first segment is uploaded over the given connection,
+     * the others over additional connections. If an additional connection cannot be opened,
+     * its segment is uploaded over one of the others once they are done with their own.
+     * @param ftp           Logged-in and configured {@link FTPSClient}.
+     * @param file          {@link File} to upload.
+     * @param length        Size of the file in bytes, as read once for the batch. Only this many bytes
+     *                      are uploaded, and the size on the server is checked against it.
+     * @param progress      {@link LongConsumer} the number of bytes of every write of every segment is passed to,
+     *                      from the thread of the segment.
+     * @return              True if every segment was stored and the size on the server matches.
+     * @throws IOException  If thrown by FTP client command functions.
+     */
+    public boolean upload(FTPSClient ftp, File file, long length, LongConsumer progress) throws IOException {
+        String remote = file.getName();
+        long segmentLength = (length+segments-1)/segments;
+        ConcurrentLinkedQueue<long[]> pending = new ConcurrentLinkedQueue<>();
+        for(long offset = segmentLength; offset < length; offset += segmentLength) {
+            pending.add(new long[] {offset, Math.min(segmentLength, length-offset)});
+        }
+
+        OutputStream firstSegment = ftp.storeFileStream(remote);
+        if(firstSegment == null) {
+            return false;
+        }
+
+        int additionalConnections = pending.size();
+        ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, additionalConnections), runnable -> {
+            Thread thread = new Thread(runnable, "SegmentedUpload-"+remote);
+            thread.setDaemon(true);
+            return thread;
+        });
+        List<Future<Boolean>> futures = new ArrayList<>();
+        for(int i = 0; i < additionalConnections; i++) {
+            futures.add(executor.submit(() -> uploadPending(file, pending, progress)));
+        }
+        boolean stored;
+        try {
+            stored = copyRange(file, 0, Math.min(segmentLength, length), firstSegment, ftp, progress);
+            stored &= storePending(ftp, file, pending, progress);
+            for(Future<Boolean> future : futures) {
+                stored &= future.get();
+            }
+        } catch(InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Segmented upload of \""+remote+"\" was interrupted.", e);
+        } catch(ExecutionException e) {
+            if(e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException(e.getCause());
+        } finally {
+            executor.shutdown();
+        }
+
+        if(stored) {
+            long remoteSize = FtpCommands.getSize(ftp, remote);
+            if(remoteSize != length) {
+                System.out.println("Size of \""+remote+"\" on FTP server is "+remoteSize+", expected "+length+".");
+                stored = false;
+            }
+        }
+        return stored;
+    }
+
+    /**
+     * Opens an additional connection and stores pending segments over it.
+     * If the connection cannot be opened, the error is printed and the
+     * segments are left to the other connections.
+     * @param file          {@link File} being uploaded.
+     * @param pending       Segments not yet taken, as {offset, length} pairs.
+     * @param progress      {@link LongConsumer} the number of bytes of every write is passed to.
+     * @return              True if every segment taken by this connection was stored.
+     * @throws IOException  If thrown by FTP client command functions.
+     */
+    private boolean uploadPending(File file, ConcurrentLinkedQueue<long[]> pending, LongConsumer progress)
+            throws IOException {
+        if(pending.isEmpty()) {
+            return true;
+        }
+        UploaderFtpsClient ftp;
+        try {
+            ftp = sessionFactory.openSession();
+        } catch(IOException e) {
+            System.out.println("Segment connection could not be opened: "+e.getMessage());
+            return true;
+        }
+        clients.add(ftp);
+        boolean reusable = false;
+        try {
+            boolean stored = storePending(ftp, file, pending, progress);
+            reusable = true;
+            return stored;
+        } finally {
+            clients.remove(ftp);
+            sessionFactory.releaseSession(ftp, reusable);
+        }
+    }
+
+    /**
+     * Stores pending segments over one connection until none are left.
+     * @param ftp           Logged-in and configured {@link FTPSClient}.
+     * @param file          {@link File} being uploaded.
+     * @param pending       Segments not yet taken, as {offset, length} pairs.
+     * @param progress      {@link LongConsumer} the number of bytes of every write is passed to.
+     * @return              True if every segment taken was stored.
+     * @throws IOException  If thrown by FTP client command functions.
+     */
+    private boolean storePending(FTPSClient ftp, File file, ConcurrentLinkedQueue<long[]> pending,
+                                 LongConsumer progress) throws IOException {
+        boolean stored = true;
+        long[] segment;
+        while(stored && (segment = pending.poll()) != null) {
+            ftp.setRestartOffset(segment[0]);
+            OutputStream output = ftp.storeFileStream(file.getName());
+            stored = output != null && copyRange(file, segment[0], segment[1], output, ftp, progress);
+        }
+        return stored;
+    }
+
+    /**
+     * Copies a byte range of the file to the data connection of a pending "STOR",
+     * closes it, and waits for the server to confirm the transfer.
+     * Passes the written bytes to the progress, and is limited by the {@link BandwidthLimiter}
+     * of the {@link FtpsSessionFactory}.
+     * @param file          {@link File} being uploaded.
+     * @param offset        Offset of the first byte of the range.
+     * @param length        Number of bytes in the range.
+     * @param output        {@link OutputStream} of the data connection.
+     * @param ftp           {@link FTPSClient} the "STOR" was sent on.
+     * @param progress      {@link LongConsumer} the number of bytes of every write is passed to.
+     * @return              True if the server confirmed the transfer.
+     * @throws IOException  If reading the file or writing to the data connection fails.
+     */
+    private boolean copyRange(File file, long offset, long length, OutputStream output, FTPSClient ftp,
+                              LongConsumer progress) throws IOException {
+        int bufferSize = ftp.getBufferSize() > 0 ? ftp.getBufferSize() : defaultBufferSize;
+        byte[] buffer = new byte[bufferSize];
+        FileInputStream input = new FileInputStream(file);
+        BandwidthLimiter.Transfer transfer = sessionFactory.getBandwidthLimiter().open();
+        OutputStream limited = transfer.wrap(output);
+        try {
+            input.getChannel().position(offset);
+            long copied = 0;
+            while(copied < length) {
+                int read = input.read(buffer, 0, (int) Math.min(buffer.length, length-copied));
+                if(read == -1) {
+                    break;
+                }
+                limited.write(buffer, 0, read);
+                copied += read;
+                progress.accept(read);
+            }
+        } finally {
+            transfer.close();
+            input.close();
+            output.close();
+        }
+        return ftp.completePendingCommand();
+    }
+}
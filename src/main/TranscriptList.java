@@ -0,0 +1,68 @@
+package main;
+
+import javafx.collections.ObservableListBase;
+
+/**
+ * Read-only {@link javafx.collections.ObservableList} of the lines of a {@link TranscriptLog},
+ * to be shown in a {@link javafx.scene.control.ListView}.
+ * The list view only asks for the lines it shows, so lines spilled to the
+ * temporary file are only read back when scrolled to.
+ * Must be used on the JavaFX Application Thread only.
+ */
+public class TranscriptList extends ObservableListBase<String> {
+    private TranscriptLog transcriptLog;
+
+    /**
+     * Constructor for {@link TranscriptList} showing the given {@link TranscriptLog}.
+     * @param transcriptLog {@link TranscriptLog} holding the lines.
+     */
+    public TranscriptList(TranscriptLog transcriptLog) {
+        this.transcriptLog = transcriptLog;
+    }
+
+    /**
+     * Appends text to the {@link TranscriptLog} and notifies listeners of the
+     * new lines, and of the previous last line if it was unfinished and has changed.
+     * @param text  Text to append.
+     */
+    public void append(String text) {
+        int oldSize = transcriptLog.size();
+        String oldLastLine = transcriptLog.hasPartialLine() ? transcriptLog.getLine(oldSize-1) : null;
+        transcriptLog.append(text);
+        int newSize = transcriptLog.size();
+        beginChange();
+        if(oldLastLine != null && newSize >= oldSize) {
+            nextSet(oldSize-1, oldLastLine);
+        }
+        if(newSize > oldSize) {
+            nextAdd(oldSize, newSize);
+        }
+        endChange();
+    }
+
+    /**
+     * Returns a line of the transcript.
+     * @param index Index of the line.
+     * @return      Text of the line.
+     */
+    @Override
+    public String get(int index) {
+        return transcriptLog.getLine(index);
+    }
+
+    /**
+     * Returns the number of lines of the transcript.
+     * @return  Number of lines.
+     */
+    @Override
+    public int size() {
+        return transcriptLog.size();
+    }
+
+    /**
+     * Closes the {@link TranscriptLog}, deleting its temporary file.
+     */
+    public void close() {
+        transcriptLog.close();
+    }
+}
@@ -0,0 +1,252 @@
+package main;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Line-based store of the console transcript with a fixed number of lines in memory.
+ * The newest lines are kept in a ring of lines; once the ring is full, the oldest
+ * lines spill to a temporary file and are read back a page at a time when asked for.
+ * Only the file offset of every page and a few recently read pages are kept in memory,
+ * so memory stays flat however long the transcript grows.
+ * Not thread-safe: used by the thread that shows the console only.
+ */
+public class TranscriptLog {
+    public static final int defaultLineCap = 5000;
+    private static final int pageLines = 256;
+    private static final int cachedPages = 8;
+    private final String[] lines;
+    private int firstLine;
+    private int lineCount;
+    private StringBuilder partialLine;
+    private File spillFile;
+    private RandomAccessFile spill;
+    private long spillLength;
+    private int spilledLines;
+    private long[] pageOffsets;
+    private Map<Integer, String[]> pageCache;
+    private boolean closed;
+
+    /**
+     * Constructor for {@link TranscriptLog}.
+     * @param lineCap   Maximum number of lines kept in memory.
+     */
+    public TranscriptLog(int lineCap) {
+        this.lines = new String[Math.max(lineCap, pageLines)];
+        this.firstLine = 0;
+        this.lineCount = 0;
+        this.partialLine = new StringBuilder();
+        this.spillFile = null;
+        this.spill = null;
+        this.spillLength = 0;
+        this.spilledLines = 0;
+        this.pageOffsets = new long[16];
+        this.closed = false;
+        this.pageCache = new LinkedHashMap<Integer, String[]>(cachedPages, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Integer, String[]> eldest) {
+                return size() > cachedPages;
+            }
+        };
+    }
+
+    /**
+     * Appends text to the transcript. Text after the last line break is kept
+     * as the last, unfinished line until its line break arrives.
+     * Lines pushed out of memory are written to the spill file in one write.
+     * @param text  Text to append, with "\n" or "\r\n" line breaks.
+     */
+    public void append(String text) {
+        ByteArrayOutputStream spilled = null;
+        int start = 0;
+        int lineBreak;
+        while((lineBreak = text.indexOf('\n', start)) != -1) {
+            partialLine.append(text, start, lineBreak);
+            int length = partialLine.length();
+            if(length > 0 && partialLine.charAt(length-1) == '\r') {
+                partialLine.setLength(length-1);
+            }
+            String evicted = addLine(partialLine.toString());
+            if(evicted != null) {
+                if(spilled == null) {
+                    spilled = new ByteArrayOutputStream();
+                }
+                spillLine(evicted, spilled);
+            }
+            partialLine.setLength(0);
+            start = lineBreak+1;
+        }
+        partialLine.append(text, start, text.length());
+        if(spilled != null) {
+            writeSpill(spilled);
+        }
+    }
+
+    /**
+     * Adds a finished line to the ring of lines in memory.
+     * @param line  The line to add.
+     * @return      The oldest line if it was pushed out of the ring, otherwise null.
+     */
+    private String addLine(String line) {
+        String evicted = null;
+        if(lineCount == lines.length) {
+            evicted = lines[firstLine];
+            lines[firstLine] = line;
+            firstLine = (firstLine+1)%lines.length;
+        } else {
+            lines[(firstLine+lineCount)%lines.length] = line;
+            lineCount++;
+        }
+        return evicted;
+    }
+
+    /**
+     * Adds a line pushed out of memory to the bytes to write to the spill file,
+     * recording the file offset if it begins a new page.
+     * @param line      The line pushed out of memory.
+     * @param spilled   Bytes to write to the spill file.
+     */
+    private void spillLine(String line, ByteArrayOutputStream spilled) {
+        if(spilledLines%pageLines == 0) {
+            int page = spilledLines/pageLines;
+            if(page == pageOffsets.length) {
+                pageOffsets = Arrays.copyOf(pageOffsets, pageOffsets.length*2);
+            }
+            pageOffsets[page] = spillLength+spilled.size();
+        }
+        byte[] bytes = line.getBytes(StandardCharsets.UTF_8);
+        spilled.write(bytes, 0, bytes.length);
+        spilled.write('\n');
+        pageCache.remove(spilledLines/pageLines);
+        spilledLines++;
+    }
+
+    /**
+     * Writes the spilled lines to the end of the spill file, creating it on first use.
+     * If the file cannot be written, the error is printed with printError(IOException).
+     * @param spilled   Bytes to write to the spill file.
+     */
+    private void writeSpill(ByteArrayOutputStream spilled) {
+        if(closed) {
+            spillLength += spilled.size();
+            return;
+        }
+        try {
+            if(spill == null) {
+                spillFile = File.createTempFile("autoUploadFiles", ".log");
+                spillFile.deleteOnExit();
+                spill = new RandomAccessFile(spillFile, "rw");
+            }
+            spill.seek(spillLength);
+            spill.write(spilled.toByteArray());
+            spillLength += spilled.size();
+        } catch(IOException e) {
+            printError(e);
+        }
+    }
+
+    /**
+     * Returns the number of lines in the transcript, including spilled lines
+     * and the unfinished last line, if any.
+     * @return  Number of lines in the transcript.
+     */
+    public int size() {
+        return spilledLines+lineCount+(partialLine.length() > 0 ? 1 : 0);
+    }
+
+    /**
+     * Returns a line of the transcript, reading its page from the spill file if it is not in memory.
+     * @param index Index of the line, 0 being the first line of the transcript.
+     * @return      Text of the line, without its line break.
+     */
+    public String getLine(int index) {
+        if(index < 0 || index >= size()) {
+            throw new IndexOutOfBoundsException("Line "+index+" of "+size());
+        }
+        if(index < spilledLines) {
+            String[] page = readPage(index/pageLines);
+            return page[index%pageLines];
+        }
+        index -= spilledLines;
+        if(index < lineCount) {
+            return lines[(firstLine+index)%lines.length];
+        }
+        return partialLine.toString();
+    }
+
+    /**
+     * Prints an error of the spill file to the error stream the JVM started with,
+     * as {@link System}.err may be redirected into this transcript.
+     * @param e {@link IOException} of the spill file.
+     */
+    private static void printError(IOException e) {
+        e.printStackTrace(new PrintStream(new FileOutputStream(FileDescriptor.err)));
+    }
+
+    /**
+     * Returns a page of spilled lines, from the page cache or read from the spill file.
+     * Returns empty lines once the spill file is closed.
+     * @param page  Index of the page.
+     * @return      Lines of the page.
+     */
+    private String[] readPage(int page) {
+        String[] cached = pageCache.get(page);
+        if(cached != null) {
+            return cached;
+        }
+        String[] pageText = new String[pageLines];
+        Arrays.fill(pageText, "");
+        if(spill == null) {
+            return pageText;
+        }
+        try {
+            long start = pageOffsets[page];
+            long end = (page+1)*pageLines < spilledLines ? pageOffsets[page+1] : spillLength;
+            byte[] bytes = new byte[(int) (end-start)];
+            spill.seek(start);
+            spill.readFully(bytes);
+            String[] split = new String(bytes, StandardCharsets.UTF_8).split("\n", -1);
+            System.arraycopy(split, 0, pageText, 0, Math.min(pageLines, split.length));
+        } catch(IOException e) {
+            printError(e);
+        }
+        pageCache.put(page, pageText);
+        return pageText;
+    }
+
+    /**
+     * Returns whether the last line of the transcript is unfinished.
+     * @return  True if text was appended after the last line break.
+     */
+    public boolean hasPartialLine() {
+        return partialLine.length() > 0;
+    }
+
+    /**
+     * Closes and deletes the spill file. Lines spilled before are read as empty lines,
+     * and lines spilled afterwards are dropped.
+     */
+    public void close() {
+        try {
+            if(spill != null) {
+                spill.close();
+                spillFile.delete();
+            }
+        } catch(IOException e) {
+            printError(e);
+        }
+        spill = null;
+        spillFile = null;
+        closed = true;
+        pageCache.clear();
+    }
+}
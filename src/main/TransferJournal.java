@@ -0,0 +1,114 @@
+package main;
+
+import org.apache.commons.lang3.SystemUtils;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Properties;
+
+/**
+ * Journal of the files whose upload has started but not yet finished.
+ * Kept in a hidden .journal file next to the .properties file of the program,
+ * so that a transfer that broke off can be continued from the size already
+ * on the FTP server instead of being sent again from the first byte.
+ * An entry also records the size and modification time of the local file,
+ * so a file that changed since is uploaded again in full.
+ */
+public class TransferJournal {
+    public static final String fileName = ".autoUploadFiles.journal";
+    private File journalFile;
+    private Properties entries;
+
+    /**
+     * Constructor for {@link TransferJournal}. Reads the journal file if it exists.
+     * @param journalFile   {@link File} the journal is kept in.
+     */
+    public TransferJournal(File journalFile) {
+        this.journalFile = journalFile;
+        this.entries = new Properties();
+        if(journalFile.exists()) {
+            try {
+                FileInputStream inputStream = new FileInputStream(journalFile);
+                entries.load(inputStream);
+                inputStream.close();
+            } catch(IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * Returns whether an earlier upload of the file to the destination was started
+     * and did not finish, while the local file stayed the same.
+     * @param destination   Server and path the file is uploaded to.
+     * @param file          Local {@link File} being uploaded.
+     * @return              True if the upload can be continued.
+     */
+    public synchronized boolean isUnfinished(String destination, File file) {
+        return getEntry(file).equals(entries.getProperty(getKey(destination, file)));
+    }
+
+    /**
+     * Records that the upload of the file to the destination has started.
+     * @param destination   Server and path the file is uploaded to.
+     * @param file          Local {@link File} being uploaded.
+     */
+    public synchronized void started(String destination, File file) {
+        entries.setProperty(getKey(destination, file), getEntry(file));
+        save();
+    }
+
+    /**
+     * Removes the file from the journal once its upload has finished.
+     * @param destination   Server and path the file was uploaded to.
+     * @param file          Local {@link File} that was uploaded.
+     */
+    public synchronized void finished(String destination, File file) {
+        if(entries.remove(getKey(destination, file)) != null) {
+            save();
+        }
+    }
+
+    /**
+     * Writes the journal to its file, or deletes the file once the journal is empty.
+     * If OS is Windows, sets "hidden" DOS attribute, like the .properties file.
+     */
+    private void save() {
+        try {
+            if(entries.isEmpty()) {
+                Files.deleteIfExists(journalFile.toPath());
+                return;
+            }
+            FileOutputStream outputStream = new FileOutputStream(journalFile);
+            entries.store(outputStream, null);
+            outputStream.close();
+            if(SystemUtils.IS_OS_WINDOWS) {
+                Files.setAttribute(journalFile.toPath(), "dos:hidden", true);
+            }
+        } catch(IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Returns the key of a file in the journal.
+     * @param destination   Server and path the file is uploaded to.
+     * @param file          Local {@link File} being uploaded.
+     * @return              {@link String} key of the entry.
+     */
+    private String getKey(String destination, File file) {
+        return file.getAbsolutePath()+" -> "+destination;
+    }
+
+    /**
+     * Returns the value of a file in the journal: its size and modification time.
+     * @param file  Local {@link File} being uploaded.
+     * @return      {@link String} value of the entry.
+     */
+    private String getEntry(File file) {
+        return file.length()+","+file.lastModified();
+    }
+}
@@ -0,0 +1,1263 @@
+package main;
+
+import org.apache.commons.net.ftp.FTPReply;
+import org.apache.commons.net.ftp.FTPSClient;
+import org.apache.commons.net.io.CopyStreamAdapter;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Uploads a batch of files to the FTP server over one or more logged-in connections.
+ * The files are put in one {@link UploadQueue} shared by all connections, which take
+ * the next file in the order of the queuePolicy setting whenever they are done with one,
+ * so all connections stay busy until the whole batch is uploaded.
+ * The queue can be reordered while the batch runs.
+ * The first connection is the one given by the caller, the additional ones are
+ * opened with the {@link FtpsSessionFactory} and released when the batch is done.
+ * If the sync setting is on, files that are unchanged according to the {@link RemoteListing}
+ * of the server are skipped.
+ * If the dedupe setting is on, the contents of the files are hashed by a {@link ContentHasher}
+ * while other files upload, and files whose content the {@link ContentManifest} records as
+ * already uploaded to the destination, or that repeat the content of another file of the batch,
+ * are skipped, or only reported if the setting is "report". A file that repeats another file
+ * of the batch waits until the other one is stored, and is uploaded instead if it failed.
+ * If the verify setting is on, files uploaded in a single stream are checked against
+ * the checksum the server computes of them with a {@link ChecksumVerifier},
+ * and uploaded again if it differs.
+ * If the compression setting is on and the server supports "MODE Z", files uploaded in a single
+ * stream whose first block compresses well are sent compressed through a {@link DeflatePipeline}.
+ * If the bundle setting is on, files at or below the bundle threshold are sent together
+ * as zip or tar archives by a {@link FileBundler}, each archive taking the place of its files
+ * in the queue; a file in a bundle is stored, or fails, with its bundle. Bundling is off while
+ * the sync setting is on, as the {@link RemoteListing} finds files on the server by their names.
+ * Files at or above the segment threshold are uploaded as a {@link SegmentedUpload}
+ * if the server supports it. Files at or above the resume threshold are recorded
+ * in the {@link TransferJournal}, so that an upload that broke off is continued
+ * from the size already on the server in the next run.
+ * If the pipeline setting is on, each connection takes its next file from the queue as soon as
+ * the data of a file is sent, requests the data connection for it before the reply of the
+ * file is read, and opens and reads the start of it while the server finishes the file before,
+ * see {@link UploaderFtpsClient.TransferPipeline}. This is only done after the last transfer
+ * of a file, and only for a next file whose upload starts with its data connection.
+ * If the adaptiveConnections setting is on, the number of connections is tuned while the batch
+ * runs by a {@link ConcurrencyController}, from one or the number remembered for the host up to
+ * the connections setting: additional connections are opened while the throughput rises,
+ * and connections above the number stop after their current file.
+ * If a {@link JobJournal} is set, the batch and the start and completion of each file are
+ * recorded in it, so the files of a batch cut off by the program exiting are uploaded in the next run.
+ * A file that fails transiently, such as on a timeout or a 4xx reply, is put back in the queue
+ * and tried again after a backoff by the {@link RetryPolicy}, over a new connection if the
+ * connection broke, while the other files continue. A file that fails permanently, such as
+ * on a 550 reply, is not tried again, and the batch continues without it.
+ * The {@link FileResult} of every file can be read once the batch is done.
+ * Does not depend on JavaFX, progress is reported through an {@link UploadListener}
+ * by a {@link ProgressMonitor} at a fixed rate, not on every write.
+ */
+public class UploadEngine {
+    public static final int connectionLimit = 32;
+    private static final long duplicateWaitMillis = 200;
+    private FtpsSessionFactory sessionFactory;
+    private List<File> files;
+    private int maxConnections;
+    private int connections;
+    private UploadListener listener;
+    private SegmentedUpload segmentedUpload;
+    private long segmentThreshold;
+    private TransferJournal journal;
+    private long resumeThreshold;
+    private ChannelTransfer channelTransfer;
+    private RemoteListing remoteListing;
+    private int filesSkipped;
+    private String dedupe;
+    private int hashThreads;
+    private ContentManifest contentManifest;
+    private ContentHasher contentHasher;
+    private Map<File, Future<byte[]>> contentHashes;
+    private Map<ByteBuffer, File> batchContents;
+    private AtomicInteger filesDeduplicated;
+    private ChecksumVerifier checksumVerifier;
+    private int verifyRetries;
+    private DeflatePipeline deflatePipeline;
+    private long sampleMillis;
+    private UploadQueue queue;
+    private JobJournal jobJournal;
+    private JobJournal.Batch jobBatch;
+    private boolean jobBatchGiven;
+    private RetryPolicy retryPolicy;
+    private Map<File, Integer> attempts;
+    private Map<File, FileResult> results;
+    private ThreadLocal<AtomicLong> attemptBytes;
+    private final Object retryLock;
+    private FileBundler fileBundler;
+    private long bundleThreshold;
+    private long bundleMaxBytes;
+    private Map<File, FileBundler.Bundle> bundles;
+    private boolean pipeline;
+    private ConcurrencyController concurrencyController;
+    private Set<Integer> runningConnections;
+    private List<FTPSClient> clients;
+    private AtomicInteger filesStored;
+    private Map<File, Long> fileSizes;
+    private ProgressMonitor progressMonitor;
+    private volatile boolean cancelled;
+    private volatile boolean failed;
+
+    /**
+     * Constructor for {@link UploadEngine}. Sizes of the files are read once here
+     * for the progress of the whole batch.
+     * @param sessionFactory    {@link FtpsSessionFactory} used to open the additional connections.
+     * @param files             File(s) to upload to FTP server.
+     * @param connections       Maximum number of connections to upload over at the same time,
+     *                          at most {@link #connectionLimit}.
+     * @param listener          {@link UploadListener} to report status and progress to.
+     * @param settings          {@link UploadSettings} of the program.
+     */
+    public UploadEngine(FtpsSessionFactory sessionFactory, List<File> files,
+                        int connections, UploadListener listener, UploadSettings settings) {
+        this.sessionFactory = sessionFactory;
+        this.maxConnections = Math.min(connections, connectionLimit);
+        this.listener = listener;
+        this.clients = Collections.synchronizedList(new ArrayList<>());
+        this.filesStored = new AtomicInteger(0);
+        this.fileSizes = new HashMap<>();
+        this.cancelled = false;
+        this.failed = false;
+        int segments = settings.getInt("segments", 1);
+        this.segmentedUpload = segments > 1 ? new SegmentedUpload(sessionFactory, clients, segments) : null;
+        this.segmentThreshold = settings.getLong("segmentThresholdMB", 512)*1024*1024;
+        this.journal = settings.getBoolean("resume", true) ? new TransferJournal(new File(TransferJournal.fileName)) : null;
+        this.resumeThreshold = settings.getLong("resumeThresholdMB", 16)*1024*1024;
+        this.channelTransfer = settings.getString("transferPath", "nio").equalsIgnoreCase("stream") ? null
+                : new ChannelTransfer(settings.getInt("bufferSizeKB", ChannelTransfer.defaultBufferSize/1024)*1024, this::addProgress,
+                sessionFactory.getBandwidthLimiter());
+        this.remoteListing = settings.getBoolean("sync", false) ? new RemoteListing(new File(RemoteListing.fileName),
+                settings.getLong("syncListingTtlSeconds", RemoteListing.defaultTtlSeconds)) : null;
+        this.filesSkipped = 0;
+        this.dedupe = settings.getString("dedupe", "off").toLowerCase();
+        this.hashThreads = settings.getInt("hashThreads", 2);
+        this.contentManifest = null;
+        this.contentHasher = null;
+        this.contentHashes = new ConcurrentHashMap<>();
+        this.batchContents = new ConcurrentHashMap<>();
+        this.filesDeduplicated = new AtomicInteger(0);
+        String verify = settings.getString("verify", "off");
+        this.checksumVerifier = verify.equalsIgnoreCase("off") ? null : new ChecksumVerifier(verify);
+        this.verifyRetries = settings.getInt("verifyRetries", 2);
+        this.deflatePipeline = channelTransfer == null || settings.getString("compression", "off").equalsIgnoreCase("off") ? null
+                : new DeflatePipeline(settings.getInt("compressionLevel", DeflatePipeline.defaultLevel),
+                settings.getInt("bufferSizeKB", ChannelTransfer.defaultBufferSize/1024)*1024);
+        this.sampleMillis = settings.getLong("progressSampleMillis", ProgressMonitor.defaultSampleMillis);
+        String priorityPatterns = settings.getString("priorityPatterns", "");
+        this.queue = new UploadQueue(UploadQueue.Policy.parse(settings.getString("queuePolicy", "fifo")),
+                priorityPatterns.trim().isEmpty() ? Collections.emptyList() : Arrays.asList(priorityPatterns.split(",")));
+        this.jobJournal = null;
+        this.jobBatch = null;
+        this.jobBatchGiven = false;
+        this.retryPolicy = new RetryPolicy(settings.getInt("retries", RetryPolicy.defaultRetries),
+                settings.getLong("retryBaseMillis", RetryPolicy.defaultBaseMillis),
+                settings.getLong("retryMaxMillis", RetryPolicy.defaultMaxMillis));
+        this.attempts = new ConcurrentHashMap<>();
+        this.results = new ConcurrentHashMap<>();
+        this.attemptBytes = new ThreadLocal<>();
+        this.retryLock = new Object();
+        FileBundler.Format bundleFormat = FileBundler.Format.parse(settings.getString("bundle", "off"));
+        this.fileBundler = bundleFormat == null || remoteListing != null ? null : new FileBundler(bundleFormat,
+                settings.getInt("compressionLevel", DeflatePipeline.defaultLevel),
+                settings.getInt("bufferSizeKB", ChannelTransfer.defaultBufferSize/1024)*1024, this::addProgress,
+                sessionFactory.getBandwidthLimiter());
+        this.bundleThreshold = settings.getLong("bundleThresholdKB", FileBundler.defaultThresholdKB)*1024;
+        this.bundleMaxBytes = settings.getLong("bundleMaxMB", FileBundler.defaultMaxMB)*1024*1024;
+        this.bundles = new HashMap<>();
+        this.pipeline = settings.getBoolean("pipeline", false);
+        this.concurrencyController = settings.getBoolean("adaptiveConnections", false)
+                ? new ConcurrencyController(settings, sessionFactory.getHostname(),
+                settings.getLong("adaptiveWindowMillis", ConcurrencyController.defaultWindowMillis)) : null;
+        this.runningConnections = ConcurrentHashMap.newKeySet();
+        for(File file : files) {
+            fileSizes.put(file, file.length());
+        }
+        dealFiles(files);
+    }
+
+    /**
+     * Sets the files of the batch, groups the small ones into bundles if bundling is on,
+     * puts the files and bundles in the {@link UploadQueue},
+     * and sets up the progress of the batch for their total size.
+     * @param files File(s) to upload to FTP server.
+     */
+    private void dealFiles(List<File> files) {
+        this.files = files;
+        queue.clear();
+        bundles.clear();
+        Map<File, FileBundler.Bundle> bundled = new HashMap<>();
+        if(fileBundler != null) {
+            for(FileBundler.Bundle bundle : fileBundler.group(files, fileSizes, bundleThreshold, bundleMaxBytes,
+                    Math.max(1, maxConnections))) {
+                bundles.put(bundle.getFile(), bundle);
+                fileSizes.put(bundle.getFile(), bundle.getSize());
+                for(File file : bundle.getFiles()) {
+                    bundled.put(file, bundle);
+                }
+            }
+        }
+        long bytesTotal = 0;
+        int queued = 0;
+        for(File file : files) {
+            FileBundler.Bundle bundle = bundled.get(file);
+            if(bundle == null) {
+                queue.add(file, sizeOf(file));
+                queued++;
+            } else if(bundle.getFiles().get(0) == file) {
+                queue.add(bundle.getFile(), bundle.getSize());
+                queued++;
+            }
+            bytesTotal += sizeOf(file);
+        }
+        if(!bundles.isEmpty()) {
+            System.out.println("Bundling "+bundled.size()+" small file(s) into "+bundles.size()+" archive(s).");
+        }
+        this.connections = Math.max(1, Math.min(maxConnections, queued));
+        this.progressMonitor = new ProgressMonitor(bytesTotal, sampleMillis, listener);
+    }
+
+    /**
+     * Drops the files that are unchanged on the FTP server according to the {@link RemoteListing}.
+     * @param ftp           Logged-in and configured {@link UploaderFtpsClient} in the upload path.
+     * @throws IOException  If thrown by FTP client command functions.
+     */
+    private void skipUnchangedFiles(UploaderFtpsClient ftp) throws IOException {
+        List<File> changed = remoteListing.changedFiles(ftp, sessionFactory.getDestination(), files);
+        filesSkipped = files.size()-changed.size();
+        if(filesSkipped > 0 && jobBatch != null) {
+            Set<File> changedFiles = new HashSet<>(changed);
+            for(File file : files) {
+                if(!changedFiles.contains(file)) {
+                    jobBatch.completed(file);
+                }
+            }
+        }
+        if(filesSkipped > 0) {
+            System.out.println("Skipping "+filesSkipped+" unchanged file(s).");
+            dealFiles(changed);
+        }
+    }
+
+    /**
+     * Opens the {@link ContentManifest} and queues every file of the batch to be hashed,
+     * in the order the connections take them. If the manifest cannot be opened,
+     * the batch is uploaded without deduplication.
+     */
+    private void startHashing() {
+        try {
+            contentManifest = new ContentManifest(new File(ContentManifest.fileName));
+        } catch(IOException e) {
+            System.out.println("Content manifest could not be opened: "+e.getMessage());
+            return;
+        }
+        contentHasher = new ContentHasher(hashThreads);
+        for(File file : queue.snapshot()) {
+            if(!bundles.containsKey(file)) {
+                contentHashes.put(file, contentHasher.submit(file));
+            }
+        }
+    }
+
+    /**
+     * Stops hashing and closes the {@link ContentManifest}.
+     */
+    private void stopHashing() {
+        if(contentHasher != null) {
+            contentHasher.shutdown();
+        }
+        if(contentManifest != null) {
+            contentManifest.close();
+        }
+    }
+
+    /**
+     * Uploads the batch. The first connection runs in the calling thread on the given
+     * client, every additional connection runs in its own daemon thread.
+     * If an additional connection cannot be opened, its files are taken over by the others.
+     * Stops taking new files once the upload is cancelled. A file that fails does not stop the others.
+     * If the sync setting is on, files that are unchanged on the server are skipped first.
+     * If the dedupe setting is on, hashing of the files starts before the upload.
+     * If the verify setting is on, the checksum command of the server is chosen first.
+     * If the compression setting is on, the server is checked for "MODE Z" first.
+     * If a {@link JobJournal} is set, the batch is begun in it before any file is uploaded,
+     * and ended when the upload returns, whether it succeeded or not, unless the caller set a batch it began itself.
+     * When the upload returns, the result of every file and the time of the batch are recorded
+     * in the {@link UploadMetrics} of the {@link FtpsSessionFactory}, and if the number of connections
+     * was tuned, the best one is remembered for the host.
+     * @param ftp           Logged-in and configured {@link UploaderFtpsClient} for the first connection.
+     * @return              True if every file of the batch was stored on the FTP server or skipped.
+     * @throws IOException  If thrown by FTP client command functions of any connection.
+     */
+    public boolean upload(UploaderFtpsClient ftp) throws IOException {
+        long start = System.nanoTime();
+        if(remoteListing != null) {
+            skipUnchangedFiles(ftp);
+        }
+        if(jobJournal != null && !jobBatchGiven) {
+            jobBatch = jobJournal.begin(sessionFactory.getDestination(), files);
+        }
+        if(!dedupe.equals("off")) {
+            startHashing();
+        }
+        if(checksumVerifier != null && !checksumVerifier.select(ftp)) {
+            checksumVerifier = null;
+        }
+        if(deflatePipeline != null && !FtpCommands.supportsModeZ(ftp)) {
+            System.out.println("FTP server does not support MODE Z, files are sent uncompressed.");
+            deflatePipeline = null;
+        }
+        CopyStreamAdapter copyStreamAdapter = newCopyStreamAdapter();
+        sessionFactory.setCopyStreamListener(copyStreamAdapter);
+        ftp.setCopyStreamListener(copyStreamAdapter);
+        clients.add(ftp);
+        progressMonitor.start();
+        boolean stored = false;
+        try {
+            stored = uploadOverConnections(ftp);
+            return stored;
+        } finally {
+            progressMonitor.stop();
+            if(concurrencyController != null) {
+                concurrencyController.remember();
+            }
+            stopHashing();
+            if(jobBatch != null && !jobBatchGiven) {
+                jobBatch.end();
+            }
+            if(checksumVerifier != null) {
+                System.out.println(checksumVerifier);
+            }
+            if(deflatePipeline != null) {
+                System.out.println(deflatePipeline);
+            }
+            recordMetrics(start);
+            if(remoteListing != null) {
+                if(stored) {
+                    remoteListing.uploaded(sessionFactory.getDestination(), files);
+                } else {
+                    remoteListing.invalidate(sessionFactory.getDestination());
+                }
+            }
+        }
+    }
+
+    /**
+     * Runs the first connection in the calling thread and the additional ones in daemon threads,
+     * and waits for all of them to finish. If the number of connections is tuned, starts with
+     * the number of the {@link ConcurrencyController} and adjusts it after every window.
+     * @param ftp           Logged-in and configured {@link UploaderFtpsClient} for the first connection.
+     * @return              True if every file of the batch was stored on the FTP server.
+     * @throws IOException  If thrown by FTP client command functions of any connection.
+     */
+    private boolean uploadOverConnections(UploaderFtpsClient ftp) throws IOException {
+        ExecutorService executor = null;
+        ScheduledExecutorService adjuster = null;
+        List<Future<Void>> futures = Collections.synchronizedList(new ArrayList<>());
+        if(connections > 1) {
+            if(concurrencyController != null) {
+                executor = Executors.newCachedThreadPool(newThreadFactory());
+                startConnections(executor, futures,
+                        concurrencyController.start(connections, progressMonitor.getBytesUploaded()));
+                ExecutorService connectionExecutor = executor;
+                adjuster = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                    Thread thread = new Thread(runnable, "ConcurrencyController");
+                    thread.setDaemon(true);
+                    return thread;
+                });
+                long windowMillis = concurrencyController.getWindowMillis();
+                adjuster.scheduleAtFixedRate(() -> startConnections(connectionExecutor, futures,
+                        concurrencyController.adjust(progressMonitor.getBytesUploaded(),
+                        queue.size() >= concurrencyController.getTarget())),
+                        windowMillis, windowMillis, TimeUnit.MILLISECONDS);
+            } else {
+                executor = Executors.newFixedThreadPool(connections-1, newThreadFactory());
+                startConnections(executor, futures, connections);
+            }
+        }
+        IOException exception = null;
+        try {
+            runConnection(ftp, 0);
+        } catch(IOException e) {
+            failed = true;
+            exception = e;
+        }
+        if(adjuster != null) {
+            adjuster.shutdownNow();
+            try {
+                adjuster.awaitTermination(1, TimeUnit.MINUTES);
+            } catch(InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        for(Future<Void> future : new ArrayList<>(futures)) {
+            try {
+                future.get();
+            } catch(InterruptedException e) {
+                Thread.currentThread().interrupt();
+                failed = true;
+            } catch(ExecutionException e) {
+                failed = true;
+                if(exception == null && e.getCause() instanceof IOException) {
+                    exception = (IOException) e.getCause();
+                }
+            }
+        }
+        if(executor != null) {
+            executor.shutdown();
+        }
+        if(exception != null) {
+            throw exception;
+        }
+        return !failed && filesStored.get()+filesDeduplicated.get() == files.size();
+    }
+
+    /**
+     * Starts the additional connections below the given number that are not running,
+     * unless the upload is done, cancelled or failed.
+     * @param executor      {@link ExecutorService} the connections run in.
+     * @param futures       Synchronized {@link List} the {@link Future}s of the connections are added to.
+     * @param count         Number of connections including the first.
+     */
+    private void startConnections(ExecutorService executor, List<Future<Void>> futures, int count) {
+        for(int i = 1; i < count && !cancelled && !failed && queue.size() > 0; i++) {
+            final int index = i;
+            if(runningConnections.add(index)) {
+                futures.add(executor.submit(() -> {
+                    runAdditionalConnection(index);
+                    return null;
+                }));
+            }
+        }
+    }
+
+    /**
+     * Opens an additional connection and uploads files over it until no file is left,
+     * or until the {@link ConcurrencyController} wants fewer connections.
+     * If the connection cannot be opened, the error is printed and the files
+     * are left to the other connections.
+     * @param index         Index of the connection.
+     * @throws IOException  If thrown by FTP client command functions during the upload.
+     */
+    private void runAdditionalConnection(int index) throws IOException {
+        try {
+            UploaderFtpsClient ftp;
+            try {
+                ftp = sessionFactory.openSession();
+            } catch(IOException e) {
+                System.out.println("Connection "+(index+1)+" could not be opened: "+e.getMessage());
+                if(concurrencyController != null) {
+                    concurrencyController.congested();
+                }
+                return;
+            }
+            clients.add(ftp);
+            boolean reusable = false;
+            try {
+                runConnection(ftp, index);
+                reusable = !cancelled;
+            } finally {
+                clients.remove(ftp);
+                sessionFactory.releaseSession(ftp, reusable);
+            }
+        } finally {
+            runningConnections.remove(index);
+        }
+    }
+
+    /**
+     * Returns whether a connection is still wanted by the {@link ConcurrencyController}.
+     * @param index Index of the connection, 0 for the first.
+     * @return      True if the number of connections is not tuned or is above the index.
+     */
+    private boolean isWanted(int index) {
+        return concurrencyController == null || index < concurrencyController.getTarget();
+    }
+
+    /**
+     * Uploads files over one connection until no file is left or the upload is cancelled.
+     * While only files waiting to be tried again are left, waits for the first of them.
+     * If the connection breaks, uploads over a new one, which is released here when done.
+     * If the pipeline setting is on, the next file is taken while the file before finishes,
+     * and put back in the queue if the connection stops before uploading it.
+     * Stops after the current file once the connection is no longer wanted.
+     * @param first         Logged-in and configured {@link UploaderFtpsClient} of the connection.
+     * @param index         Index of the connection, 0 for the first.
+     * @throws IOException  If thrown by FTP client command functions once the upload is cancelled,
+     *                      or if the content manifest cannot be written.
+     */
+    private void runConnection(UploaderFtpsClient first, int index) throws IOException {
+        UploaderFtpsClient ftp = first;
+        ConnectionPipeline connectionPipeline = pipeline ? new ConnectionPipeline(index) : null;
+        boolean reusable = false;
+        try {
+            while(ftp != null && !cancelled && !failed && isWanted(index)) {
+                ftp.setTransferPipeline(connectionPipeline);
+                File file = connectionPipeline != null ? connectionPipeline.take() : queue.poll();
+                if(file == null) {
+                    if(awaitRetry()) {
+                        continue;
+                    }
+                    break;
+                }
+                byte[] hash = getContentHash(file);
+                if(hash != null && isDuplicate(file, hash) && dedupe.equals("skip")) {
+                    filesDeduplicated.incrementAndGet();
+                    addProgress(sizeOf(file));
+                    results.put(file, new FileResult(file, FileResult.Status.SKIPPED, 0, null));
+                    if(jobBatch != null) {
+                        jobBatch.completed(file);
+                    }
+                    continue;
+                }
+                if(hash != null && dedupe.equals("skip") && isWaiting(file, hash)) {
+                    queue.retryLater(file, sizeOf(file), TimeUnit.MILLISECONDS.toNanos(duplicateWaitMillis));
+                    continue;
+                }
+                ftp = uploadFile(ftp, file, hash);
+            }
+            reusable = !cancelled;
+        } finally {
+            if(connectionPipeline != null) {
+                connectionPipeline.close();
+                first.setTransferPipeline(null);
+                if(ftp != null) {
+                    ftp.setTransferPipeline(null);
+                }
+            }
+            if(ftp != null && ftp != first) {
+                clients.remove(ftp);
+                sessionFactory.releaseSession(ftp, reusable);
+            }
+        }
+    }
+
+    /**
+     * Makes one attempt to upload a file. If it fails transiently and may be tried again,
+     * puts it back in the queue to be taken after the backoff of the {@link RetryPolicy},
+     * otherwise records it as failed. The bytes of a failed attempt are taken off the progress,
+     * including those its segments sent over their own connections.
+     * If the connection is no longer usable after a failure, opens a new one.
+     * The files of a bundle are recorded and get their results together with it.
+     * @param ftp           Logged-in and configured {@link UploaderFtpsClient} of the connection.
+     * @param file          {@link File} to upload, or the {@link File} of a {@link FileBundler.Bundle}.
+     * @param hash          SHA-256 hash of the content of the file, or null if it is not deduplicated.
+     * @return              {@link UploaderFtpsClient} to upload the next file over, or null if no connection could be opened.
+     * @throws IOException  If thrown by FTP client command functions once the upload is cancelled,
+     *                      or if the content manifest cannot be written.
+     */
+    private UploaderFtpsClient uploadFile(UploaderFtpsClient ftp, File file, byte[] hash) throws IOException {
+        int attempt = attempts.merge(file, 1, Integer::sum);
+        long start = System.nanoTime();
+        List<File> members = bundles.containsKey(file) ? bundles.get(file).getFiles() : Collections.singletonList(file);
+        listener.fileStarted(file);
+        if(jobBatch != null) {
+            for(File member : members) {
+                jobBatch.started(member);
+            }
+        }
+        AtomicLong sent = new AtomicLong(0);
+        attemptBytes.set(sent);
+        String error;
+        boolean transientFailure;
+        try {
+            if(storeFile(ftp, file, sent)) {
+                filesStored.addAndGet(members.size());
+                if(hash != null) {
+                    contentManifest.add(hash, sessionFactory.getDestination(), sizeOf(file));
+                }
+                for(File member : members) {
+                    if(jobBatch != null) {
+                        jobBatch.completed(member);
+                    }
+                    finishAttempt(new FileResult(member, FileResult.Status.STORED, attempt, null));
+                }
+                sessionFactory.getMetrics().record(UploadMetrics.Phase.FILE, start);
+                return ftp;
+            }
+            error = ftp.getReplyCode() >= 400 ? ftp.getReplyString().trim() : "Upload did not complete";
+            transientFailure = retryPolicy.isTransient(ftp.getReplyCode());
+            if(concurrencyController != null && (ftp.getReplyCode() == FTPReply.SERVICE_NOT_AVAILABLE
+                    || ftp.getReplyCode() == FTPReply.CANNOT_OPEN_DATA_CONNECTION)) {
+                concurrencyController.congested();
+            }
+        } catch(IOException e) {
+            if(cancelled) {
+                throw e;
+            }
+            error = e.getMessage() != null ? e.getClass().getSimpleName()+": "+e.getMessage() : e.getClass().getSimpleName();
+            transientFailure = retryPolicy.isTransient(e);
+        } finally {
+            attemptBytes.remove();
+            ftp.setTransferPipelined(false);
+        }
+        if(cancelled) {
+            return ftp;
+        }
+        addProgress(-sent.get());
+        sessionFactory.getMetrics().record(UploadMetrics.Phase.FILE, start);
+        if(retryPolicy.shouldRetry(attempt, transientFailure)) {
+            long backoff = retryPolicy.getBackoffMillis(attempt);
+            System.out.println("\""+file.getName()+"\" failed ("+error+"), trying again in "+backoff+" ms.");
+            for(File member : members) {
+                finishAttempt(new FileResult(member, FileResult.Status.NOT_UPLOADED, attempt, error));
+            }
+            queue.retryLater(file, sizeOf(file), TimeUnit.MILLISECONDS.toNanos(backoff));
+        } else {
+            System.out.println("\""+file.getName()+"\" failed"+(transientFailure ? " after "+attempt+" attempts" : "")+": "+error);
+            for(File member : members) {
+                finishAttempt(new FileResult(member, FileResult.Status.FAILED, attempt, error));
+            }
+        }
+        return isUsable(ftp) ? ftp : reconnect(ftp);
+    }
+
+    /**
+     * Sets the result of a file after an attempt to upload it, and passes it to the {@link UploadListener}.
+     * @param result    {@link FileResult} of the file.
+     */
+    private void finishAttempt(FileResult result) {
+        results.put(result.getFile(), result);
+        listener.fileFinished(result);
+    }
+
+    /**
+     * Records the result of every file of the batch and the time and throughput of the batch.
+     * @param start Value of System.nanoTime() when the upload started.
+     */
+    private void recordMetrics(long start) {
+        UploadMetrics metrics = sessionFactory.getMetrics();
+        long bytesStored = 0;
+        for(FileResult result : getResults()) {
+            long size = sizeOf(result.getFile());
+            metrics.recordFile(result, size);
+            if(result.getStatus() == FileResult.Status.STORED) {
+                bytesStored += size;
+            }
+        }
+        metrics.recordBatch(bytesStored, System.nanoTime()-start);
+    }
+
+    /**
+     * Returns whether a connection still answers after a failed upload.
+     * @param ftp   {@link UploaderFtpsClient} of the connection.
+     * @return      True if it is connected and "NOOP" succeeds.
+     */
+    private boolean isUsable(UploaderFtpsClient ftp) {
+        try {
+            return ftp.isConnected() && ftp.sendNoOp();
+        } catch(IOException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Drops a broken connection and opens a new one, trying again with the backoff
+     * of the {@link RetryPolicy} if it cannot be opened.
+     * @param ftp   Broken {@link UploaderFtpsClient} of the connection.
+     * @return      New logged-in and configured {@link UploaderFtpsClient}, or null if none could be opened
+     *              or the upload was cancelled.
+     */
+    private UploaderFtpsClient reconnect(UploaderFtpsClient ftp) {
+        clients.remove(ftp);
+        try {
+            ftp.disconnect();
+        } catch(IOException e) {
+            // The connection is dropped either way.
+        }
+        for(int attempt = 1; !cancelled; attempt++) {
+            try {
+                UploaderFtpsClient session = sessionFactory.openSession();
+                clients.add(session);
+                System.out.println("Connected to FTP server again.");
+                return session;
+            } catch(IOException e) {
+                if(!retryPolicy.shouldRetry(attempt, true)) {
+                    System.out.println("Could not connect to FTP server again: "+e.getMessage());
+                    return null;
+                }
+                long backoff = retryPolicy.getBackoffMillis(attempt);
+                System.out.println("Could not connect to FTP server again ("+e.getMessage()+"), trying again in "+backoff+" ms.");
+                if(!waitNanos(TimeUnit.MILLISECONDS.toNanos(backoff))) {
+                    return null;
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Waits until a file put back in the queue can be taken, if any is left.
+     * @return  True if the queue should be polled again, false if it is empty or the upload is cancelled.
+     */
+    private boolean awaitRetry() {
+        long nanos = queue.getNanosUntilDue();
+        if(nanos < 0) {
+            return false;
+        }
+        return waitNanos(nanos) && !cancelled;
+    }
+
+    /**
+     * Waits for the given time, or until the upload is cancelled.
+     * @param nanos Time to wait in nanoseconds.
+     * @return      False if the thread was interrupted.
+     */
+    private boolean waitNanos(long nanos) {
+        synchronized(retryLock) {
+            try {
+                if(!cancelled && nanos > 0) {
+                    TimeUnit.NANOSECONDS.timedWait(retryLock, nanos);
+                }
+                return true;
+            } catch(InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+        }
+    }
+
+    /**
+     * Waits for the hash of the content of a file, if the batch is deduplicated.
+     * A file that cannot be hashed is uploaded without deduplication.
+     * @param file  {@link File} to upload.
+     * @return      SHA-256 hash of the content, or null if there is none.
+     */
+    private byte[] getContentHash(File file) {
+        Future<byte[]> future = contentHashes.get(file);
+        if(future == null) {
+            return null;
+        }
+        try {
+            return future.get();
+        } catch(InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        } catch(ExecutionException e) {
+            System.out.println("\""+file.getName()+"\" could not be hashed: "+e.getCause().getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Checks whether the content of a file was already uploaded to the destination,
+     * and prints whether by another file of the batch. The content of a file of the batch
+     * only counts as uploaded once the file is stored and added to the {@link ContentManifest}.
+     * If the dedupe setting is "report", a file with the same content as another file of the batch
+     * is a duplicate even before that. Empty files are never duplicates.
+     * @param file  {@link File} to upload.
+     * @param hash  SHA-256 hash of the content of the file.
+     * @return      True if the content is a duplicate.
+     */
+    private boolean isDuplicate(File file, byte[] hash) {
+        long size = sizeOf(file);
+        if(size == 0) {
+            return false;
+        }
+        File original = batchContents.putIfAbsent(ByteBuffer.wrap(hash), file);
+        boolean repeated = original != null && !original.equals(file);
+        if(contentManifest.contains(hash, sessionFactory.getDestination(), size)) {
+            if(repeated) {
+                System.out.println("Content of \""+file.getName()+"\" is the same as \""+original.getName()+"\".");
+            } else {
+                System.out.println("Content of \""+file.getName()+"\" was already uploaded to "+sessionFactory.getDestination()+".");
+            }
+            return true;
+        }
+        if(repeated && dedupe.equals("report")) {
+            System.out.println("Content of \""+file.getName()+"\" is the same as \""+original.getName()+"\".");
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Checks whether another file of the batch with the same content is still uploading
+     * or waiting to be tried again, so that the file waits for its result.
+     * If the other file failed, the file takes its place and is uploaded instead.
+     * @param file  {@link File} to upload.
+     * @param hash  SHA-256 hash of the content of the file.
+     * @return      True if the file has to wait.
+     */
+    private boolean isWaiting(File file, byte[] hash) {
+        if(sizeOf(file) == 0) {
+            return false;
+        }
+        ByteBuffer content = ByteBuffer.wrap(hash);
+        File original = batchContents.get(content);
+        if(original == null || original.equals(file)) {
+            return false;
+        }
+        FileResult result = results.get(original);
+        if(result != null && result.getStatus() == FileResult.Status.FAILED && batchContents.replace(content, original, file)) {
+            System.out.println("\""+original.getName()+"\" failed, uploading \""+file.getName()+"\" with the same content instead.");
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Uploads one file over a connection. Continues an unfinished upload recorded in the
+     * {@link TransferJournal}, otherwise uploads the file in segments if it is large enough
+     * and the server supports storing at an offset, or else in a single stream,
+     * compressed if the file is compressible.
+     * @param ftp           Logged-in and configured {@link UploaderFtpsClient} of the connection.
+     * @param file          {@link File} to upload.
+     * @param sent          Bytes of the attempt, which the segments add to from their own threads.
+     * @return              True if the file was stored on the FTP server.
+     * @throws IOException  If thrown by FTP client command functions.
+     */
+    private boolean storeFile(UploaderFtpsClient ftp, File file, AtomicLong sent) throws IOException {
+        if(bundles.containsKey(file)) {
+            return storeBundle(ftp, bundles.get(file));
+        }
+        long size = sizeOf(file);
+        boolean segmented = segmentedUpload != null && size >= segmentThreshold;
+        boolean journaled = journal != null && size >= resumeThreshold;
+        String destination = sessionFactory.getDestination();
+        long offset = 0;
+        if(journaled) {
+            if(!segmented && journal.isUnfinished(destination, file)) {
+                offset = getResumeOffset(ftp, file);
+            }
+            journal.started(destination, file);
+        }
+        boolean compressed = offset == 0 && !segmented && deflatePipeline != null
+                && channelTransfer.isCompressible(deflatePipeline, file);
+        if(!compressed) {
+            ftp.setDeflate(false);
+        }
+        boolean fileStored;
+        if(offset > 0) {
+            ftp.setTransferPipelined(true);
+            fileStored = resumeFile(ftp, file, offset);
+        } else if(segmented && FtpCommands.supportsRestStream(ftp)) {
+            fileStored = segmentedUpload.upload(ftp, file, size, bytes -> addProgress(bytes, sent));
+        } else {
+            if(segmented) {
+                System.out.println("FTP server does not support REST STREAM, uploading \""+file.getName()+"\" in one stream.");
+            }
+            ftp.setTransferPipelined(true);
+            fileStored = checksumVerifier != null ? storeVerified(ftp, file, compressed) : storeStream(ftp, file, compressed, null);
+        }
+        if(fileStored && journaled) {
+            journal.finished(destination, file);
+        }
+        return fileStored;
+    }
+
+    /**
+     * Uploads a bundle as one archive, then its manifest. If the verify setting is on,
+     * the archive is checked against the checksum the server computes of it before the
+     * manifest is stored, and uploaded again if it differs, like storeVerified(UploaderFtpsClient, File, boolean).
+     * @param ftp           Logged-in and configured {@link UploaderFtpsClient} of the connection.
+     * @param bundle        {@link FileBundler.Bundle} to upload.
+     * @return              True if the archive and its manifest were stored on the FTP server.
+     * @throws IOException  If thrown by FTP client command functions.
+     */
+    private boolean storeBundle(UploaderFtpsClient ftp, FileBundler.Bundle bundle) throws IOException {
+        String name = bundle.getFile().getName();
+        for(int attempt = 0; ; attempt++) {
+            ChecksumVerifier.Checksum checksum = checksumVerifier != null ? checksumVerifier.newChecksum() : null;
+            if(!fileBundler.storeArchive(ftp, bundle, checksum)) {
+                return false;
+            }
+            if(checksum == null || checksumVerifier.verify(ftp, name, checksum)) {
+                break;
+            }
+            if(attempt >= verifyRetries) {
+                System.out.println("Checksum of \""+name+"\" on FTP server still differs after "+attempt+" new upload(s).");
+                return false;
+            }
+            System.out.println("Checksum of \""+name+"\" on FTP server differs, uploading it again.");
+            addProgress(-bundle.getSize());
+        }
+        ftp.setTransferPipelined(true);
+        return fileBundler.storeManifest(ftp, bundle);
+    }
+
+    /**
+     * Uploads a whole file in a single stream while computing its checksum, and compares it
+     * with the checksum of the stored file on the FTP server. If they differ, the file is
+     * uploaded again, up to the number of times of the verifyRetries setting.
+     * @param ftp           Logged-in and configured {@link UploaderFtpsClient} of the connection.
+     * @param file          {@link File} to upload.
+     * @param compressed    True to send the file compressed through the {@link DeflatePipeline}.
+     * @return              True if the file was stored on the FTP server and its checksum matches.
+     * @throws IOException  If thrown by FTP client command functions.
+     */
+    private boolean storeVerified(UploaderFtpsClient ftp, File file, boolean compressed) throws IOException {
+        for(int attempt = 0; ; attempt++) {
+            ChecksumVerifier.Checksum checksum = checksumVerifier.newChecksum();
+            if(!storeStream(ftp, file, compressed, checksum)) {
+                return false;
+            }
+            if(checksumVerifier.verify(ftp, file.getName(), checksum)) {
+                return true;
+            }
+            if(attempt >= verifyRetries) {
+                System.out.println("Checksum of \""+file.getName()+"\" on FTP server still differs after "+attempt+" new upload(s).");
+                return false;
+            }
+            System.out.println("Checksum of \""+file.getName()+"\" on FTP server differs, uploading it again.");
+            addProgress(-sizeOf(file));
+        }
+    }
+
+    /**
+     * Uploads a whole file in a single stream, through the {@link ChannelTransfer}
+     * unless the transferPath setting is "stream".
+     * @param ftp           Logged-in and configured {@link UploaderFtpsClient} of the connection.
+     * @param file          {@link File} to upload.
+     * @param compressed    True to send the file compressed through the {@link DeflatePipeline}.
+     * @param checksum      {@link ChecksumVerifier.Checksum} to add the sent bytes to, or null.
+     * @return              True if the file was stored on the FTP server.
+     * @throws IOException  If thrown by FTP client command functions.
+     */
+    private boolean storeStream(UploaderFtpsClient ftp, File file, boolean compressed,
+                                ChecksumVerifier.Checksum checksum) throws IOException {
+        if(compressed) {
+            return channelTransfer.storeCompressed(ftp, file, deflatePipeline, checksum);
+        }
+        if(channelTransfer != null) {
+            return channelTransfer.storeFile(ftp, file, 0, "STOR", checksum);
+        }
+        InputStream fileStream = new FileInputStream(file);
+        BandwidthLimiter.Transfer transfer = sessionFactory.getBandwidthLimiter().open();
+        try {
+            InputStream input = transfer.wrap(fileStream);
+            return ftp.storeFile(file.getName(), checksum != null ? checksum.wrap(input) : input);
+        } finally {
+            transfer.close();
+            fileStream.close();
+        }
+    }
+
+    /**
+     * Returns the offset to continue an unfinished upload from: the size of the file
+     * on the FTP server, if it is not larger than the local file.
+     * @param ftp           Logged-in and configured {@link UploaderFtpsClient} of the connection.
+     * @param file          {@link File} to upload.
+     * @return              Offset to continue from, or 0 to upload the whole file.
+     * @throws IOException  If thrown by FTP client command functions.
+     */
+    private long getResumeOffset(UploaderFtpsClient ftp, File file) throws IOException {
+        long remoteSize = FtpCommands.getSize(ftp, file.getName());
+        if(remoteSize > 0 && remoteSize <= sizeOf(file)) {
+            return remoteSize;
+        }
+        return 0;
+    }
+
+    /**
+     * Continues an unfinished upload from the given offset with "REST" and "STOR",
+     * or with "APPE" if the server does not support "REST STREAM".
+     * If the whole file is already on the server, nothing is sent.
+     * @param ftp           Logged-in and configured {@link UploaderFtpsClient} of the connection.
+     * @param file          {@link File} to upload.
+     * @param offset        Number of bytes already on the FTP server.
+     * @return              True if the file was stored on the FTP server.
+     * @throws IOException  If thrown by FTP client command functions.
+     */
+    private boolean resumeFile(UploaderFtpsClient ftp, File file, long offset) throws IOException {
+        addProgress(offset);
+        if(offset == sizeOf(file)) {
+            System.out.println("\""+file.getName()+"\" is already complete on FTP server.");
+            return true;
+        }
+        System.out.println("Resuming \""+file.getName()+"\" from byte "+offset+".");
+        if(channelTransfer != null) {
+            return channelTransfer.storeFile(ftp, file, offset, FtpCommands.supportsRestStream(ftp) ? "STOR" : "APPE", null);
+        }
+        FileInputStream fileStream = new FileInputStream(file);
+        BandwidthLimiter.Transfer transfer = sessionFactory.getBandwidthLimiter().open();
+        try {
+            fileStream.getChannel().position(offset);
+            if(FtpCommands.supportsRestStream(ftp)) {
+                ftp.setRestartOffset(offset);
+                return ftp.storeFile(file.getName(), transfer.wrap(fileStream));
+            }
+            return ftp.appendFile(file.getName(), transfer.wrap(fileStream));
+        } finally {
+            transfer.close();
+            fileStream.close();
+        }
+    }
+
+    /**
+     * Returns a new {@link CopyStreamAdapter} that adds the bytes of every write
+     * of every connection to the progress of the whole batch.
+     * Package-private for the ProgressBenchmark of the benchmarks module.
+     * @return {@link CopyStreamAdapter} with overridden bytesTransferred(long, int, long).
+     */
+    CopyStreamAdapter newCopyStreamAdapter() {
+        return new CopyStreamAdapter() {
+            @Override
+            public void bytesTransferred(long totalBytesTransferred, int bytesTransferred, long streamSize) {
+                addProgress(bytesTransferred);
+            }
+        };
+    }
+
+    /**
+     * Adds uploaded bytes to the progress of the whole batch, and to the attempt
+     * the calling connection is making, if any.
+     * The {@link ProgressMonitor} reports it at its next sample.
+     * @param bytes Number of bytes uploaded.
+     */
+    private void addProgress(long bytes) {
+        addProgress(bytes, attemptBytes.get());
+    }
+
+    /**
+     * Adds uploaded bytes to the progress of the whole batch and to the bytes of an attempt,
+     * so that they are taken off again if the attempt fails.
+     * @param bytes Number of bytes uploaded.
+     * @param sent  Bytes of the attempt, or null if the bytes belong to none.
+     */
+    private void addProgress(long bytes, AtomicLong sent) {
+        progressMonitor.add(bytes);
+        if(sent != null) {
+            sent.addAndGet(bytes);
+        }
+    }
+
+    /**
+     * Returns the size of a file of the batch, as read once when the batch was created.
+     * @param file  {@link File} of the batch.
+     * @return      Size of the file in bytes.
+     */
+    private long sizeOf(File file) {
+        Long size = fileSizes.get(file);
+        return size != null ? size : file.length();
+    }
+
+    /**
+     * Returns a {@link ThreadFactory} for the daemon threads
+     * of the additional connections, so they do not keep the program running.
+     * @return  {@link ThreadFactory} of named daemon threads.
+     */
+    private ThreadFactory newThreadFactory() {
+        AtomicInteger count = new AtomicInteger(1);
+        return runnable -> {
+            Thread thread = new Thread(runnable, "UploadEngine-connection-"+count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+
+    /**
+     * Cancels the upload: no connection takes a new file, and the "ABOR" command
+     * is sent to the FTP server on every open connection.
+     * @return              True if the "ABOR" command succeeded on every connection.
+     * @throws IOException  If thrown by FTP client command function.
+     */
+    public boolean cancel() throws IOException {
+        cancelled = true;
+        synchronized(retryLock) {
+            retryLock.notifyAll();
+        }
+        boolean aborted = true;
+        synchronized(clients) {
+            for(FTPSClient ftp : clients) {
+                aborted &= ftp.abort();
+            }
+        }
+        return aborted;
+    }
+
+    /**
+     * Sets the {@link JobJournal} the batch is recorded in. Must be set before upload(UploaderFtpsClient).
+     * @param jobJournal    {@link JobJournal} of the program, or null to record nothing.
+     */
+    public void setJobJournal(JobJournal jobJournal) {
+        this.jobJournal = jobJournal;
+    }
+
+    /**
+     * Sets a batch the caller already began in the {@link JobJournal} with the files of this batch,
+     * such as before connecting. The files are recorded in it instead of in a new batch, and it is
+     * not ended when the upload returns, so the caller can keep the files that were not uploaded
+     * in the journal until it uploads them again. Must be set before upload(UploaderFtpsClient).
+     * @param jobBatch  {@link JobJournal.Batch} of the files, or null to begin a new one.
+     */
+    public void setJobBatch(JobJournal.Batch jobBatch) {
+        this.jobBatch = jobBatch;
+        this.jobBatchGiven = jobBatch != null;
+    }
+
+    /**
+     * Returns the queue of the files not taken by a connection yet, which can be reordered while uploading.
+     * @return  {@link UploadQueue} of the batch.
+     */
+    public UploadQueue getQueue() {
+        return queue;
+    }
+
+    /**
+     * Returns the result of every file of the batch, in the order of the batch.
+     * Files that were not stored, skipped or failed yet are {@link FileResult.Status#NOT_UPLOADED}.
+     * Files skipped because they are unchanged on the FTP server are not part of the batch.
+     * @return  New {@link List} of the {@link FileResult}s.
+     */
+    public List<FileResult> getResults() {
+        List<FileResult> list = new ArrayList<>(files.size());
+        for(File file : files) {
+            FileResult result = results.get(file);
+            list.add(result != null ? result : new FileResult(file, FileResult.Status.NOT_UPLOADED, 0, null));
+        }
+        return list;
+    }
+
+    /**
+     * Returns the number of files stored on the FTP server so far.
+     * @return  Number of files stored.
+     */
+    public int getFilesStored() {
+        return filesStored.get();
+    }
+
+    /**
+     * Returns the number of files skipped because they are unchanged on the FTP server,
+     * or because their content was already uploaded.
+     * @return  Number of files skipped.
+     */
+    public int getFilesSkipped() {
+        return filesSkipped+filesDeduplicated.get();
+    }
+
+    /**
+     * Returns the bytes uploaded so far, including the parts of resumed files already on the server.
+     * @return  Bytes uploaded so far over all connections.
+     */
+    public long getBytesUploaded() {
+        return progressMonitor.getBytesUploaded();
+    }
+
+    /**
+     * Returns the total bytes of all files in the batch.
+     * @return  Total bytes of the batch.
+     */
+    public long getBytesTotal() {
+        return progressMonitor.getBytesTotal();
+    }
+
+    /**
+     * Returns whether the upload of a file starts right away with its data connection,
+     * so that the reply to a "PASV" sent early can be used for it. It does not if the file
+     * is uploaded in segments or continued, as the size on the server is asked first,
+     * nor while the compression setting is on, as "MODE Z" or "MODE S" may be sent first.
+     * @param file  {@link File} or {@link File} of a {@link FileBundler.Bundle} to upload next.
+     * @return      True if nothing is sent before the data connection of the file.
+     */
+    private boolean startsWithDataConnection(File file) {
+        if(deflatePipeline != null) {
+            return false;
+        }
+        if(bundles.containsKey(file)) {
+            return true;
+        }
+        long size = sizeOf(file);
+        if(segmentedUpload != null && size >= segmentThreshold) {
+            return false;
+        }
+        return journal == null || size < resumeThreshold || !journal.isUnfinished(sessionFactory.getDestination(), file);
+    }
+
+    /**
+     * {@link UploaderFtpsClient.TransferPipeline} of one connection, used only by the thread
+     * of the connection. Takes the next file from the queue when the data of a file is sent,
+     * and prefetches it through the {@link ChannelTransfer}. Bundles are not prefetched,
+     * and no data connection is requested early while the verify setting is on,
+     * as the checksum command comes first. Neither is done for a next file whose upload
+     * sends other commands before its data connection, see startsWithDataConnection(File).
+     */
+    private class ConnectionPipeline implements UploaderFtpsClient.TransferPipeline {
+        private final int index;
+        private File next;
+        private boolean direct;
+
+        /**
+         * Constructor for {@link ConnectionPipeline} with no file taken.
+         * @param index Index of the connection, 0 for the first.
+         */
+        private ConnectionPipeline(int index) {
+            this.index = index;
+            this.next = null;
+            this.direct = false;
+        }
+
+        /**
+         * Returns the file taken while the file before finished, or else the next one in the queue.
+         * @return  {@link File} to upload next, or null if none is due.
+         */
+        private File take() {
+            File file = next != null ? next : queue.poll();
+            next = null;
+            return file;
+        }
+
+        /**
+         * Takes the next file from the queue, unless one was taken already,
+         * or the upload stops, or the connection is no longer wanted.
+         * @return  True if a file was taken, the checksum of the file before is not verified,
+         *          and the upload of the file starts with its data connection.
+         */
+        @Override
+        public boolean nextTransferFollows() {
+            if(next == null && !cancelled && !failed && isWanted(index)) {
+                next = queue.poll();
+            }
+            direct = next != null && checksumVerifier == null && startsWithDataConnection(next);
+            return direct;
+        }
+
+        /**
+         * Opens the file taken and reads its first block, if it is uploaded through the {@link ChannelTransfer}.
+         */
+        @Override
+        public void prepareNextTransfer() {
+            if(direct && channelTransfer != null && !bundles.containsKey(next)) {
+                channelTransfer.prefetch(next);
+            }
+        }
+
+        /**
+         * Puts a file taken but not uploaded back in the queue, and closes a prefetched file.
+         */
+        private void close() {
+            if(next != null) {
+                queue.add(next, sizeOf(next));
+                next = null;
+            }
+            if(channelTransfer != null) {
+                channelTransfer.clearPrefetch();
+            }
+        }
+    }
+}
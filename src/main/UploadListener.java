@@ -0,0 +1,40 @@
+package main;
+
+import java.io.File;
+
+/**
+ * Receives status and progress updates from an {@link UploadEngine}.
+ * Methods are called from the upload and sampling threads, so implementations that
+ * update a user interface must pass the values over to the UI thread themselves.
+ */
+public interface UploadListener {
+    /**
+     * Called when one of the connections begins uploading a file.
+     * @param file  {@link File} that is being uploaded.
+     */
+    void fileStarted(File file);
+
+    /**
+     * Called when an attempt to upload a file ends, on the thread that called fileStarted(File) for it.
+     * A file that is tried again is started and finished once per attempt.
+     * @param result    {@link FileResult} of the file after the attempt,
+     *                  {@link FileResult.Status#NOT_UPLOADED} if it is tried again.
+     */
+    default void fileFinished(FileResult result) {
+    }
+
+    /**
+     * Called at every progress sample with the amount of bytes uploaded for the whole batch.
+     * @param bytesUploaded Bytes uploaded so far over all connections.
+     * @param bytesTotal    Total bytes of all files in the batch.
+     */
+    void progressChanged(long bytesUploaded, long bytesTotal);
+
+    /**
+     * Called with every progress sample, after progressChanged(long, long).
+     * @param bytesPerSecond    Smoothed upload throughput over all connections.
+     * @param secondsRemaining  Estimated seconds until the batch is uploaded,
+     *                          or -1 while the throughput is not known yet.
+     */
+    void throughputChanged(double bytesPerSecond, long secondsRemaining);
+}
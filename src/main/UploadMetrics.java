@@ -0,0 +1,282 @@
+package main;
+
+import java.util.EnumMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Timings of the phases of connecting and uploading, such as resolving the hostname,
+ * the TLS handshakes, logging in, opening data connections and transferring files,
+ * kept as latency histograms, together with counters of bytes, file results and reply codes.
+ * Recording costs a few {@link LongAdder} increments and no allocation, so every phase
+ * of every file is recorded. The histograms have fixed buckets from half a millisecond
+ * to five minutes, like Prometheus histograms.
+ * The metrics can be written as JSON or in the Prometheus text format, see {@link MetricsExporter}.
+ * One instance is shared by all runs of the program, so the counters only grow.
+ */
+public class UploadMetrics {
+    private static final double[] bucketSeconds = {0.0005, 0.001, 0.0025, 0.005, 0.01, 0.025, 0.05,
+            0.1, 0.25, 0.5, 1, 2.5, 5, 10, 30, 60, 300};
+    private static final long[] bucketNanos = new long[bucketSeconds.length];
+    private final Map<Phase, Histogram> histograms;
+    private final Map<FileResult.Status, LongAdder> fileResults;
+    private final Map<Integer, LongAdder> replyCodes;
+    private final LongAdder bytesUploaded;
+    private volatile double lastBatchBytesPerSecond;
+
+    static {
+        for(int i = 0; i < bucketSeconds.length; i++) {
+            bucketNanos[i] = (long) (bucketSeconds[i]*1e9);
+        }
+    }
+
+    /**
+     * Phase of connecting or uploading that is timed.
+     */
+    public enum Phase {
+        /** Resolving the hostname of the FTP server. */
+        DNS,
+        /** Opening the TCP connection of a control connection. */
+        CONNECT,
+        /** Reading the welcome reply and sending "AUTH TLS". */
+        GREETING,
+        /** TLS handshake of a control connection. */
+        TLS_CONTROL,
+        /** "USER" and "PASS". */
+        LOGIN,
+        /** "TYPE", "PBSZ", "PROT", and changing to the upload path. */
+        CONFIGURE,
+        /** "PASV", connecting the data connection, and the reply to the store command. */
+        DATA_CONNECTION,
+        /** TLS handshake of a data connection. */
+        TLS_DATA,
+        /** Writing the file to the data connection. */
+        TRANSFER,
+        /** Waiting for the reply after the data connection is closed. */
+        COMPLETE,
+        /** One attempt to upload a file, from taking it to its result. */
+        FILE,
+        /** A whole batch. */
+        BATCH;
+
+        /**
+         * Returns the name of the phase in the exported metrics.
+         * @return  Lower case name, such as "tls_control".
+         */
+        public String label() {
+            return name().toLowerCase(Locale.ROOT);
+        }
+    }
+
+    /**
+     * Constructor for {@link UploadMetrics} with every histogram and counter empty.
+     */
+    public UploadMetrics() {
+        this.histograms = new EnumMap<>(Phase.class);
+        for(Phase phase : Phase.values()) {
+            histograms.put(phase, new Histogram());
+        }
+        this.fileResults = new EnumMap<>(FileResult.Status.class);
+        for(FileResult.Status status : FileResult.Status.values()) {
+            fileResults.put(status, new LongAdder());
+        }
+        this.replyCodes = new ConcurrentHashMap<>();
+        this.bytesUploaded = new LongAdder();
+        this.lastBatchBytesPerSecond = 0;
+    }
+
+    /**
+     * Records the time of a phase that started at the given time and ends now.
+     * @param phase         {@link Phase} that ended.
+     * @param startNanos    Value of System.nanoTime() when the phase started.
+     */
+    public void record(Phase phase, long startNanos) {
+        recordNanos(phase, System.nanoTime()-startNanos);
+    }
+
+    /**
+     * Records the time of a phase.
+     * @param phase {@link Phase} that ended.
+     * @param nanos Time the phase took in nanoseconds.
+     */
+    public void recordNanos(Phase phase, long nanos) {
+        histograms.get(phase).record(Math.max(0, nanos));
+    }
+
+    /**
+     * Counts a reply of the FTP server.
+     * @param replyCode Reply code, such as 226.
+     */
+    public void recordReply(int replyCode) {
+        LongAdder counter = replyCodes.get(replyCode);
+        if(counter == null) {
+            counter = replyCodes.computeIfAbsent(replyCode, code -> new LongAdder());
+        }
+        counter.increment();
+    }
+
+    /**
+     * Counts the result of a file, and its bytes if it was stored.
+     * @param result    {@link FileResult} of the file.
+     * @param bytes     Size of the file in bytes.
+     */
+    public void recordFile(FileResult result, long bytes) {
+        fileResults.get(result.getStatus()).increment();
+        if(result.getStatus() == FileResult.Status.STORED) {
+            bytesUploaded.add(bytes);
+        }
+    }
+
+    /**
+     * Records a finished batch and its throughput.
+     * @param bytes Bytes uploaded in the batch.
+     * @param nanos Time the batch took in nanoseconds.
+     */
+    public void recordBatch(long bytes, long nanos) {
+        recordNanos(Phase.BATCH, nanos);
+        if(nanos > 0) {
+            lastBatchBytesPerSecond = bytes*1e9/nanos;
+        }
+    }
+
+    /**
+     * Returns the metrics as one JSON object.
+     * @return  {@link String} of the JSON object.
+     */
+    public String toJson() {
+        StringBuilder json = new StringBuilder(4096);
+        json.append("{\"phases\":{");
+        boolean first = true;
+        for(Map.Entry<Phase, Histogram> entry : histograms.entrySet()) {
+            Histogram histogram = entry.getValue();
+            json.append(first ? "" : ",").append('"').append(entry.getKey().label()).append("\":{\"count\":")
+                    .append(histogram.count.sum()).append(",\"sumSeconds\":").append(format(histogram.sumNanos.sum()/1e9))
+                    .append(",\"buckets\":[");
+            long cumulative = 0;
+            for(int i = 0; i < bucketSeconds.length; i++) {
+                cumulative += histogram.buckets[i].sum();
+                json.append(i > 0 ? "," : "").append("{\"le\":").append(format(bucketSeconds[i]))
+                        .append(",\"count\":").append(cumulative).append('}');
+            }
+            json.append("]}");
+            first = false;
+        }
+        json.append("},\"files\":{");
+        first = true;
+        for(Map.Entry<FileResult.Status, LongAdder> entry : fileResults.entrySet()) {
+            json.append(first ? "" : ",").append('"').append(entry.getKey().name().toLowerCase(Locale.ROOT))
+                    .append("\":").append(entry.getValue().sum());
+            first = false;
+        }
+        json.append("},\"replyCodes\":{");
+        first = true;
+        for(Map.Entry<Integer, LongAdder> entry : new TreeMap<>(replyCodes).entrySet()) {
+            json.append(first ? "" : ",").append('"').append(entry.getKey()).append("\":").append(entry.getValue().sum());
+            first = false;
+        }
+        json.append("},\"bytesUploaded\":").append(bytesUploaded.sum())
+                .append(",\"lastBatchBytesPerSecond\":").append(format(lastBatchBytesPerSecond)).append('}');
+        return json.toString();
+    }
+
+    /**
+     * Returns the metrics in the Prometheus text exposition format.
+     * @return  {@link String} of the metrics, one sample per line.
+     */
+    public String toPrometheus() {
+        StringBuilder text = new StringBuilder(8192);
+        text.append("# HELP autouploadfiles_phase_seconds Time of each phase of connecting and uploading.\n");
+        text.append("# TYPE autouploadfiles_phase_seconds histogram\n");
+        for(Map.Entry<Phase, Histogram> entry : histograms.entrySet()) {
+            String phase = entry.getKey().label();
+            Histogram histogram = entry.getValue();
+            long cumulative = 0;
+            for(int i = 0; i < bucketSeconds.length; i++) {
+                cumulative += histogram.buckets[i].sum();
+                text.append("autouploadfiles_phase_seconds_bucket{phase=\"").append(phase).append("\",le=\"")
+                        .append(format(bucketSeconds[i])).append("\"} ").append(cumulative).append('\n');
+            }
+            long count = histogram.count.sum();
+            text.append("autouploadfiles_phase_seconds_bucket{phase=\"").append(phase).append("\",le=\"+Inf\"} ")
+                    .append(count).append('\n');
+            text.append("autouploadfiles_phase_seconds_sum{phase=\"").append(phase).append("\"} ")
+                    .append(format(histogram.sumNanos.sum()/1e9)).append('\n');
+            text.append("autouploadfiles_phase_seconds_count{phase=\"").append(phase).append("\"} ")
+                    .append(count).append('\n');
+        }
+        text.append("# HELP autouploadfiles_files_total Files by result.\n");
+        text.append("# TYPE autouploadfiles_files_total counter\n");
+        for(Map.Entry<FileResult.Status, LongAdder> entry : fileResults.entrySet()) {
+            text.append("autouploadfiles_files_total{status=\"").append(entry.getKey().name().toLowerCase(Locale.ROOT))
+                    .append("\"} ").append(entry.getValue().sum()).append('\n');
+        }
+        text.append("# HELP autouploadfiles_replies_total Replies of the FTP server by reply code.\n");
+        text.append("# TYPE autouploadfiles_replies_total counter\n");
+        for(Map.Entry<Integer, LongAdder> entry : new TreeMap<>(replyCodes).entrySet()) {
+            text.append("autouploadfiles_replies_total{code=\"").append(entry.getKey()).append("\"} ")
+                    .append(entry.getValue().sum()).append('\n');
+        }
+        text.append("# HELP autouploadfiles_uploaded_bytes_total Bytes of the files stored on the FTP server.\n");
+        text.append("# TYPE autouploadfiles_uploaded_bytes_total counter\n");
+        text.append("autouploadfiles_uploaded_bytes_total ").append(bytesUploaded.sum()).append('\n');
+        text.append("# HELP autouploadfiles_last_batch_bytes_per_second Throughput of the last batch.\n");
+        text.append("# TYPE autouploadfiles_last_batch_bytes_per_second gauge\n");
+        text.append("autouploadfiles_last_batch_bytes_per_second ").append(format(lastBatchBytesPerSecond)).append('\n');
+        return text.toString();
+    }
+
+    /**
+     * Formats a number for JSON and Prometheus, with a dot whatever the default locale is.
+     * @param value Number to format.
+     * @return      {@link String} of the number, such as "0.0025".
+     */
+    private static String format(double value) {
+        if(value == Math.rint(value) && Math.abs(value) < 1e15) {
+            return Long.toString((long) value);
+        }
+        String text = String.format(Locale.ROOT, "%.6g", value);
+        if(text.indexOf('.') >= 0 && text.indexOf('e') < 0) {
+            text = text.replaceAll("0+$", "").replaceAll("\\.$", "");
+        }
+        return text;
+    }
+
+    /**
+     * Latency histogram of one phase, with a count per bucket, not cumulative.
+     * The last bucket counts the times above the largest bound.
+     */
+    private static class Histogram {
+        private final LongAdder[] buckets;
+        private final LongAdder count;
+        private final LongAdder sumNanos;
+
+        /**
+         * Constructor for an empty {@link Histogram}.
+         */
+        private Histogram() {
+            this.buckets = new LongAdder[bucketNanos.length+1];
+            for(int i = 0; i < buckets.length; i++) {
+                buckets[i] = new LongAdder();
+            }
+            this.count = new LongAdder();
+            this.sumNanos = new LongAdder();
+        }
+
+        /**
+         * Adds a time to the bucket of the smallest bound it is at or below.
+         * @param nanos Time in nanoseconds.
+         */
+        private void record(long nanos) {
+            int i = 0;
+            while(i < bucketNanos.length && nanos > bucketNanos[i]) {
+                i++;
+            }
+            buckets[i].increment();
+            count.increment();
+            sumNanos.add(nanos);
+        }
+    }
+}
@@ -0,0 +1,331 @@
+package main;
+
+import java.io.File;
+import java.nio.file.FileSystems;
+import java.nio.file.PathMatcher;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+
+/**
+ * Queue of the files of a batch that are not being uploaded yet, shared by all connections,
+ * which take the next file in the order of the scheduling {@link Policy}.
+ * Smallest-first gets the most files done soonest in a batch of mixed sizes, so one huge
+ * file does not hold back many small ones. The priority of a file is given by the first
+ * of the priority patterns that matches its name, earlier patterns ranking higher.
+ * While the batch runs, files can be moved to the front or the back of the queue,
+ * or given another priority, which is what the queue list of the {@link UploaderWindow} does.
+ * A file that failed can be put back to be tried again after a wait; until then it keeps
+ * its place in snapshot() but is passed over by poll().
+ * Files that can be taken are kept in a {@link TreeSet} in the order of the queue, files that
+ * wait in a second {@link TreeSet} by the time they can be taken, from which they are moved
+ * to the first once it has come. All are found through a {@link Map}, so taking, moving and
+ * reprioritizing a file costs O(log n). All methods are synchronized.
+ */
+public class UploadQueue {
+    private final Policy policy;
+    private final List<PathMatcher> priorityPatterns;
+    private final TreeSet<Entry> ordered;
+    private final TreeSet<Entry> waiting;
+    private final Map<File, Entry> entries;
+    private long sequence;
+    private long frontBoost;
+    private long backBoost;
+
+    /**
+     * Order in which the files are taken.
+     */
+    public enum Policy {
+        /** In the order the files were selected. */
+        FIFO,
+        /** Smallest file first. */
+        SMALLEST_FIRST,
+        /** Highest priority first, then in the order selected. */
+        PRIORITY,
+        /** Least recently modified file first, in the order the files were written. */
+        MODIFIED;
+
+        /**
+         * Returns the policy of a setting value, ignoring case: "fifo", "smallest", "priority" or "modified".
+         * @param name  Value of the queuePolicy setting.
+         * @return      {@link Policy} of the value, {@link #FIFO} if it is unknown.
+         */
+        public static Policy parse(String name) {
+            switch(name.trim().toLowerCase()) {
+                case "smallest":
+                case "smallest_first":
+                    return SMALLEST_FIRST;
+                case "priority":
+                    return PRIORITY;
+                case "modified":
+                    return MODIFIED;
+                default:
+                    return FIFO;
+            }
+        }
+    }
+
+    /**
+     * Constructor for an empty {@link UploadQueue}.
+     * @param policy            {@link Policy} the files are taken in.
+     * @param priorityPatterns  Glob patterns of file names from highest to lowest priority,
+     *                          such as "*.csv". Files matching none have the lowest priority.
+     */
+    public UploadQueue(Policy policy, List<String> priorityPatterns) {
+        this.policy = policy;
+        this.priorityPatterns = new ArrayList<>();
+        for(String pattern : priorityPatterns) {
+            this.priorityPatterns.add(FileSystems.getDefault().getPathMatcher("glob:"+pattern.trim()));
+        }
+        this.ordered = new TreeSet<>(newComparator(policy));
+        this.waiting = new TreeSet<>((a, b) -> a.dueNanos != b.dueNanos ? Long.signum(a.dueNanos-b.dueNanos)
+                : Long.compare(a.sequence, b.sequence));
+        this.entries = new HashMap<>();
+        this.sequence = 0;
+        this.frontBoost = 0;
+        this.backBoost = 0;
+    }
+
+    /**
+     * Adds a file to the back of the files of its rank.
+     * @param file  {@link File} to upload.
+     * @param size  Size of the file in bytes.
+     */
+    public synchronized void add(File file, long size) {
+        retryLater(file, size, 0);
+    }
+
+    /**
+     * Puts a file back to be taken again once a wait has passed.
+     * @param file          {@link File} to upload.
+     * @param size          Size of the file in bytes.
+     * @param delayNanos    Time in nanoseconds before the file can be taken.
+     */
+    public synchronized void retryLater(File file, long size, long delayNanos) {
+        if(entries.containsKey(file)) {
+            return;
+        }
+        Entry entry = new Entry(file, size, policy == Policy.MODIFIED ? file.lastModified() : 0,
+                getPatternPriority(file), sequence++);
+        entries.put(file, entry);
+        if(delayNanos > 0) {
+            entry.dueNanos = System.nanoTime()+delayNanos;
+            waiting.add(entry);
+        } else {
+            ordered.add(entry);
+        }
+    }
+
+    /**
+     * Takes the next file to upload out of the queue, passing over files that wait to be tried again.
+     * @return  Next {@link File}, or null if no file can be taken now.
+     */
+    public synchronized File poll() {
+        moveDue();
+        Entry entry = ordered.pollFirst();
+        if(entry == null) {
+            return null;
+        }
+        entries.remove(entry.file);
+        return entry.file;
+    }
+
+    /**
+     * Returns how long until a file can be taken.
+     * @return  0 if a file can be taken now, the nanoseconds until the first waiting file can be taken,
+     *          or -1 if the queue is empty.
+     */
+    public synchronized long getNanosUntilDue() {
+        moveDue();
+        if(!ordered.isEmpty()) {
+            return 0;
+        }
+        if(waiting.isEmpty()) {
+            return -1;
+        }
+        return Math.max(0, waiting.first().dueNanos-System.nanoTime());
+    }
+
+    /**
+     * Moves a file in front of every other file, including files moved to the front before.
+     * @param file  {@link File} in the queue.
+     * @return      True if the file was still in the queue.
+     */
+    public synchronized boolean moveToFront(File file) {
+        return reorder(file, ++frontBoost, null);
+    }
+
+    /**
+     * Moves a file behind every other file, including files moved to the back before.
+     * @param file  {@link File} in the queue.
+     * @return      True if the file was still in the queue.
+     */
+    public synchronized boolean moveToBack(File file) {
+        return reorder(file, --backBoost, null);
+    }
+
+    /**
+     * Changes the priority of a file, which orders it if the policy is {@link Policy#PRIORITY}.
+     * @param file      {@link File} in the queue.
+     * @param priority  New priority, higher is taken first.
+     * @return          True if the file was still in the queue.
+     */
+    public synchronized boolean setPriority(File file, int priority) {
+        return reorder(file, null, priority);
+    }
+
+    /**
+     * Removes all files from the queue.
+     */
+    public synchronized void clear() {
+        ordered.clear();
+        waiting.clear();
+        entries.clear();
+    }
+
+    /**
+     * Returns the number of files in the queue.
+     * @return  Number of files not taken yet.
+     */
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    /**
+     * Returns the files in the queue in the order they will be taken.
+     * @return  New {@link List} of the queued {@link File}s.
+     */
+    public synchronized List<File> snapshot() {
+        TreeSet<Entry> all = new TreeSet<>(ordered.comparator());
+        all.addAll(ordered);
+        all.addAll(waiting);
+        List<File> files = new ArrayList<>(all.size());
+        for(Entry entry : all) {
+            files.add(entry.file);
+        }
+        return files;
+    }
+
+    /**
+     * Returns the policy of the queue.
+     * @return  {@link Policy} the files are taken in.
+     */
+    public Policy getPolicy() {
+        return policy;
+    }
+
+    /**
+     * Moves the files whose wait has passed into the order of the queue.
+     */
+    private void moveDue() {
+        long now = System.nanoTime();
+        while(!waiting.isEmpty() && waiting.first().dueNanos-now <= 0) {
+            Entry entry = waiting.pollFirst();
+            entry.dueNanos = 0;
+            ordered.add(entry);
+        }
+    }
+
+    /**
+     * Takes a file out of the order, changes its boost or priority, and puts it back.
+     * A file that waits only gets the new values, which order it once its wait has passed.
+     * @param file      {@link File} in the queue.
+     * @param boost     New boost, or null to keep it.
+     * @param priority  New priority, or null to keep it.
+     * @return          True if the file was still in the queue.
+     */
+    private boolean reorder(File file, Long boost, Integer priority) {
+        Entry entry = entries.get(file);
+        if(entry == null) {
+            return false;
+        }
+        boolean ready = entry.dueNanos == 0;
+        if(ready) {
+            ordered.remove(entry);
+        }
+        if(boost != null) {
+            entry.boost = boost;
+        }
+        if(priority != null) {
+            entry.priority = priority;
+        }
+        if(ready) {
+            ordered.add(entry);
+        }
+        return true;
+    }
+
+    /**
+     * Returns the priority of a file from the priority patterns: the number of patterns
+     * for the first one, down to 1 for the last one, and 0 if no pattern matches.
+     * @param file  {@link File} to upload.
+     * @return      Priority of the file.
+     */
+    private int getPatternPriority(File file) {
+        for(int i = 0; i < priorityPatterns.size(); i++) {
+            if(priorityPatterns.get(i).matches(file.toPath().getFileName())) {
+                return priorityPatterns.size()-i;
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * Returns the order of the queue: files moved to the front first and to the back last,
+     * then by the policy, then in the order they were added.
+     * @param policy    {@link Policy} of the queue.
+     * @return          {@link Comparator} of the entries.
+     */
+    private static Comparator<Entry> newComparator(Policy policy) {
+        Comparator<Entry> byBoost = (a, b) -> Long.compare(b.boost, a.boost);
+        Comparator<Entry> byPolicy;
+        switch(policy) {
+            case SMALLEST_FIRST:
+                byPolicy = (a, b) -> Long.compare(a.size, b.size);
+                break;
+            case PRIORITY:
+                byPolicy = (a, b) -> Integer.compare(b.priority, a.priority);
+                break;
+            case MODIFIED:
+                byPolicy = (a, b) -> Long.compare(a.modified, b.modified);
+                break;
+            default:
+                byPolicy = (a, b) -> 0;
+        }
+        return byBoost.thenComparing(byPolicy).thenComparing((a, b) -> Long.compare(a.sequence, b.sequence));
+    }
+
+    /**
+     * File in the queue with the values it is ordered by.
+     */
+    private static class Entry {
+        private final File file;
+        private final long size;
+        private final long modified;
+        private final long sequence;
+        private int priority;
+        private long boost;
+        private long dueNanos;
+
+        /**
+         * Constructor for {@link Entry}.
+         * @param file      {@link File} to upload.
+         * @param size      Size of the file in bytes.
+         * @param modified  Modification time of the file.
+         * @param priority  Priority of the file.
+         * @param sequence  Number of files added before this one.
+         */
+        private Entry(File file, long size, long modified, int priority, long sequence) {
+            this.file = file;
+            this.size = size;
+            this.modified = modified;
+            this.priority = priority;
+            this.sequence = sequence;
+            this.boost = 0;
+            this.dueNanos = 0;
+        }
+    }
+}
@@ -0,0 +1,137 @@
+package main;
+
+import org.apache.commons.lang3.SystemUtils;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.util.Properties;
+
+/**
+ * Typed view of the settings stored in the .properties file of the program.
+ * Used for the upload settings that have no field in the {@link MainWindow},
+ * which can be set by editing the .properties file.
+ * Values that are missing or cannot be parsed fall back to the given default value.
+ */
+public class UploadSettings {
+    public static final String fileName = ".autoUploadFiles.properties";
+    private Properties properties;
+
+    /**
+     * Constructor for {@link UploadSettings} reading from the given {@link Properties}.
+     * @param properties    {@link Properties} of the program.
+     */
+    public UploadSettings(Properties properties) {
+        this.properties = properties;
+    }
+
+    /**
+     * Returns the {@link String} value of a setting.
+     * @param key           Name of the setting.
+     * @param defaultValue  Value returned if the setting is missing.
+     * @return              Value of the setting, or the default value.
+     */
+    public String getString(String key, String defaultValue) {
+        String value = properties.getProperty(key);
+        if(value == null || value.trim().equals("")) {
+            return defaultValue;
+        }
+        return value.trim();
+    }
+
+    /**
+     * Returns the int value of a setting.
+     * @param key           Name of the setting.
+     * @param defaultValue  Value returned if the setting is missing or not a number.
+     * @return              Value of the setting, or the default value.
+     */
+    public int getInt(String key, int defaultValue) {
+        int value = defaultValue;
+        try {
+            value = Integer.parseInt(getString(key, String.valueOf(defaultValue)));
+        } catch(NumberFormatException numFormat) {
+            numFormat.printStackTrace();
+        }
+        return value;
+    }
+
+    /**
+     * Returns the long value of a setting.
+     * @param key           Name of the setting.
+     * @param defaultValue  Value returned if the setting is missing or not a number.
+     * @return              Value of the setting, or the default value.
+     */
+    public long getLong(String key, long defaultValue) {
+        long value = defaultValue;
+        try {
+            value = Long.parseLong(getString(key, String.valueOf(defaultValue)));
+        } catch(NumberFormatException numFormat) {
+            numFormat.printStackTrace();
+        }
+        return value;
+    }
+
+    /**
+     * Returns the boolean value of a setting.
+     * @param key           Name of the setting.
+     * @param defaultValue  Value returned if the setting is missing.
+     * @return              True if the setting is "true", ignoring case, or the default value.
+     */
+    public boolean getBoolean(String key, boolean defaultValue) {
+        return Boolean.parseBoolean(getString(key, String.valueOf(defaultValue)));
+    }
+
+    /**
+     * Sets the value of a setting, replacing its previous value.
+     * @param key   Name of the setting.
+     * @param value New value of the setting.
+     */
+    public void set(String key, String value) {
+        properties.setProperty(key, value);
+    }
+
+    /**
+     * Sets the value of a setting and writes it to the .properties file in the working directory
+     * at once, leaving the other settings in the file as they are. Used for values the program
+     * learns while it runs, such as the best number of connections to a host.
+     * The file is written even if the user did not choose to save the settings, and created
+     * if there is none. If OS is Windows, a created file gets the "hidden" DOS attribute.
+     * @param key           Name of the setting.
+     * @param value         New value of the setting.
+     * @throws IOException  If the file cannot be read or written.
+     */
+    public void save(String key, String value) throws IOException {
+        set(key, value);
+        File file = new File(fileName);
+        boolean created = !file.exists();
+        Properties stored = new Properties();
+        if(!created) {
+            FileInputStream inputStream = new FileInputStream(file);
+            try {
+                stored.load(inputStream);
+            } finally {
+                inputStream.close();
+            }
+        }
+        stored.setProperty(key, value);
+        OutputStream outputStream = Files.newOutputStream(file.toPath());
+        try {
+            stored.store(outputStream, null);
+        } finally {
+            outputStream.close();
+        }
+        if(created && SystemUtils.IS_OS_WINDOWS) {
+            Files.setAttribute(file.toPath(), "dos:hidden", true);
+        }
+    }
+
+    /**
+     * Returns the {@link Properties} this view reads from.
+     * @return  {@link Properties} of the program.
+     */
+    public Properties getProperties() {
+        return properties;
+    }
+}
@@ -0,0 +1,518 @@
+package main;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FileDescriptor;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Properties;
+
+/**
+ * Headless command-line uploader. Runs the same {@link UploadEngine} as the {@link UploaderTask},
+ * without loading any JavaFX class, so it starts quickly and needs no display.
+ * The FTP values and settings are read from the .properties file of the program,
+ * and can be overridden with arguments of the form "--name=value" using the same names,
+ * such as "--hostname=example.com" or "--segments=4".
+ * The password is read from the "--password" argument, the first line of stdin with
+ * "--password-stdin", or the AUTOUPLOADFILES_PASSWORD environment variable.
+ * Files are given as arguments, and "-" reads more file paths from stdin, one per line.
+ * With "--watch", the arguments are directories instead, which are watched by a
+ * {@link DirectoryWatcher}, and new files are uploaded in batches until the process is stopped.
+ * Unfinished files of a batch to the same destination that was cut off in an earlier run,
+ * as recorded in the {@link JobJournal}, are uploaded with the given files, or first when watching.
+ * The metrics of the uploads are written to the metricsFile after every batch, and served on
+ * the loopback address at the metricsPort while the process runs, see {@link MetricsExporter}.
+ * Progress and results are written to stdout as one JSON object per line, everything
+ * else that is printed, including the FTP commands with "--verbose", goes to stderr.
+ */
+public class UploaderCli {
+    public static final String option = "--cli";
+    public static final String passwordVariable = "AUTOUPLOADFILES_PASSWORD";
+    public static final int exitSucceeded = 0;
+    public static final int exitFailed = 1;
+    public static final int exitUsage = 2;
+    private PrintStream output;
+    private Properties properties;
+    private List<File> files;
+    private String password;
+    private boolean passwordFromStdin;
+    private boolean filesFromStdin;
+    private boolean verbose;
+    private boolean watch;
+    private JobJournal jobJournal;
+    private List<File> recovered;
+    private MetricsExporter metricsExporter;
+
+    /**
+     * Constructor for {@link UploaderCli}. Writes its results to the stdout of the process.
+     */
+    public UploaderCli() {
+        this.output = new PrintStream(new FileOutputStream(FileDescriptor.out), true);
+        this.properties = new Properties();
+        this.files = new ArrayList<>();
+        this.password = System.getenv(passwordVariable);
+        this.passwordFromStdin = false;
+        this.filesFromStdin = false;
+        this.verbose = false;
+        this.watch = false;
+        this.jobJournal = null;
+        this.recovered = new ArrayList<>();
+        this.metricsExporter = null;
+    }
+
+    /**
+     * Parses the arguments, uploads the files, and returns the exit code of the process.
+     * @param args  Command-line arguments after "--cli".
+     * @return      0 if every file was uploaded, 1 if the upload failed, 2 if the arguments are invalid.
+     */
+    public int run(String[] args) {
+        System.setOut(System.err);
+        try {
+            loadProperties();
+            if(!parseArguments(args)) {
+                printUsage();
+                return exitUsage;
+            }
+            readStdin();
+        } catch(IOException e) {
+            printError(e.getMessage());
+            return exitUsage;
+        }
+        UploadSettings settings = new UploadSettings(properties);
+        openJobJournal(settings);
+        try {
+            return uploadOrWatch(settings);
+        } finally {
+            if(jobJournal != null) {
+                jobJournal.close();
+            }
+            if(metricsExporter != null) {
+                metricsExporter.stop();
+            }
+        }
+    }
+
+    /**
+     * Validates the values, then uploads the files, or watches the directories.
+     * @param settings  {@link UploadSettings} of the program.
+     * @return          0 if every file was uploaded, 1 if the upload failed, 2 if the values are invalid.
+     */
+    private int uploadOrWatch(UploadSettings settings) {
+        String problem = validate();
+        if(problem != null) {
+            printError(problem);
+            return exitUsage;
+        }
+        FtpsSessionFactory sessionFactory = new FtpsSessionFactory(settings.getString("hostname", ""),
+                settings.getInt("port", -1), settings.getString("username", ""), password,
+                settings.getString("uploadPath", ""));
+        sessionFactory.setSettings(settings);
+        sessionFactory.setBandwidthLimiter(new BandwidthLimiter(settings.getLong("bandwidthLimitKBps", 0)*1024,
+                settings.getBoolean("bandwidthFair", false)));
+        if(verbose) {
+            sessionFactory.setPrintStream(System.err);
+        }
+        startMetricsExporter(settings, sessionFactory.getMetrics());
+        if(watch) {
+            return watch(sessionFactory, settings);
+        }
+        List<File> batch = new ArrayList<>(files);
+        for(File file : recovered) {
+            if(!batch.contains(file) && !batch.contains(file.getAbsoluteFile())) {
+                batch.add(file);
+            }
+        }
+        return upload(sessionFactory, settings, batch, null, null) ? exitSucceeded : exitFailed;
+    }
+
+    /**
+     * Starts the {@link MetricsExporter} for the metricsFile and metricsPort settings.
+     * If the port cannot be bound, the error is printed and files are uploaded without it.
+     * @param settings  {@link UploadSettings} of the program.
+     * @param metrics   {@link UploadMetrics} of the {@link FtpsSessionFactory}.
+     */
+    private void startMetricsExporter(UploadSettings settings, UploadMetrics metrics) {
+        String metricsFile = settings.getString("metricsFile", "");
+        metricsExporter = new MetricsExporter(metrics, metricsFile.isEmpty() ? null : new File(metricsFile));
+        int metricsPort = settings.getInt("metricsPort", 0);
+        if(metricsPort > 0) {
+            try {
+                metricsExporter.start(metricsPort);
+            } catch(IOException e) {
+                System.err.println("Metrics could not be served on port "+metricsPort+": "+e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Opens the {@link JobJournal}, unless the jobJournal setting is off, and reads the unfinished
+     * files of earlier batches to the destination. The journal is also closed when the process is stopped,
+     * so the files completed until then are not uploaded again.
+     * If the journal cannot be opened, the error is printed and files are uploaded without it.
+     * @param settings  {@link UploadSettings} of the program.
+     */
+    private void openJobJournal(UploadSettings settings) {
+        if(!settings.getBoolean("jobJournal", true)) {
+            return;
+        }
+        try {
+            jobJournal = new JobJournal(new File(JobJournal.fileName),
+                    settings.getLong("jobJournalSyncMillis", JobJournal.defaultSyncMillis));
+        } catch(IOException e) {
+            System.out.println("Job journal could not be opened: "+e.getMessage());
+            return;
+        }
+        Runtime.getRuntime().addShutdownHook(new Thread(jobJournal::close, "JobJournal-shutdown"));
+        recovered = jobJournal.getUnfinished(FtpsSessionFactory.toDestination(settings.getString("username", ""),
+                settings.getString("hostname", ""), settings.getInt("port", -1), settings.getString("uploadPath", "")));
+        if(!recovered.isEmpty()) {
+            output.println("{\"event\":\"recovered\",\"files\":"+recovered.size()+"}");
+        }
+    }
+
+    /**
+     * Loads the .properties file of the program from the working directory, if it exists.
+     * @throws IOException  If the file exists but cannot be read.
+     */
+    private void loadProperties() throws IOException {
+        File propertiesFile = new File(UploadSettings.fileName);
+        if(propertiesFile.exists()) {
+            FileInputStream inputStream = new FileInputStream(propertiesFile);
+            try {
+                properties.load(inputStream);
+            } finally {
+                inputStream.close();
+            }
+        }
+    }
+
+    /**
+     * Reads options and file paths from the arguments.
+     * @param args  Command-line arguments after "--cli".
+     * @return      False if help was asked for or an option is not understood.
+     */
+    private boolean parseArguments(String[] args) {
+        boolean options = true;
+        for(String arg : args) {
+            if(options && arg.equals("--")) {
+                options = false;
+            } else if(options && (arg.equals("--help") || arg.equals("-h"))) {
+                return false;
+            } else if(options && arg.equals("--password-stdin")) {
+                passwordFromStdin = true;
+            } else if(options && arg.equals("--verbose")) {
+                verbose = true;
+            } else if(options && arg.equals("--watch")) {
+                watch = true;
+            } else if(options && arg.startsWith("--password=")) {
+                password = arg.substring("--password=".length());
+            } else if(options && arg.startsWith("--") && arg.indexOf('=') > 2) {
+                properties.setProperty(arg.substring(2, arg.indexOf('=')), arg.substring(arg.indexOf('=')+1));
+            } else if(options && arg.startsWith("--")) {
+                System.err.println("Unknown option: "+arg);
+                return false;
+            } else if(arg.equals("-")) {
+                filesFromStdin = true;
+            } else {
+                files.add(new File(arg));
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Reads the password and file paths from stdin, if the arguments ask for them.
+     * The password is the first line, every following non-empty line is a file path.
+     * @throws IOException  If stdin cannot be read.
+     */
+    private void readStdin() throws IOException {
+        if(!passwordFromStdin && !filesFromStdin) {
+            return;
+        }
+        BufferedReader reader = new BufferedReader(new InputStreamReader(System.in, StandardCharsets.UTF_8));
+        if(passwordFromStdin) {
+            password = reader.readLine();
+        }
+        if(filesFromStdin) {
+            String line;
+            while((line = reader.readLine()) != null) {
+                if(!line.trim().isEmpty()) {
+                    files.add(new File(line.trim()));
+                }
+            }
+        }
+    }
+
+    /**
+     * Checks the FTP values and files like the {@link MainWindow} does before an upload.
+     * @return  Message of the first problem found, or null if the upload can start.
+     */
+    private String validate() {
+        UploadSettings settings = new UploadSettings(properties);
+        if(settings.getString("hostname", "").equals("")) {
+            return "Please enter the hostname.";
+        } else if(settings.getInt("port", -1) < 1 || settings.getInt("port", -1) > 65535) {
+            return "Please enter a valid port number.";
+        } else if(settings.getString("username", "").equals("")) {
+            return "Please enter the username.";
+        } else if(password == null || password.equals("")) {
+            return "Please enter the password.";
+        } else if(settings.getString("uploadPath", "").equals("")) {
+            return "Please enter the upload path.";
+        } else if(settings.getInt("connections", 1) < 1 || settings.getInt("connections", 1) > UploadEngine.connectionLimit) {
+            return "Please enter a number of connections from 1 to "+UploadEngine.connectionLimit+".";
+        } else if(files.isEmpty() && (watch || recovered.isEmpty())) {
+            return "Please select the file(s).";
+        }
+        for(File file : files) {
+            if(watch && !file.isDirectory()) {
+                return "Directory not found: "+file.getPath();
+            } else if(!watch && !file.isFile()) {
+                return "File not found: "+file.getPath();
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Watches the directories and uploads new files in batches until the process is stopped.
+     * Connections are kept open between batches in a {@link FtpsSessionPool}.
+     * Every batch is begun in the {@link JobJournal} before connecting. Files that were not uploaded,
+     * because the server could not be reached or they failed after their retries, are uploaded
+     * again with the next batch after the backoff of the {@link RetryPolicy}, which grows with every
+     * batch in a row that leaves files behind. Their journal batch is only ended once they are
+     * recorded in the next one, so they are uploaded after a restart if the process is stopped meanwhile.
+     * Files that no longer exist are dropped.
+     * @param sessionFactory    {@link FtpsSessionFactory} of the server.
+     * @param settings          {@link UploadSettings} of the program.
+     * @return                  1 if the directories cannot be watched, otherwise never returns.
+     */
+    private int watch(FtpsSessionFactory sessionFactory, UploadSettings settings) {
+        List<Path> directories = new ArrayList<>();
+        for(File file : files) {
+            directories.add(file.toPath());
+        }
+        DirectoryWatcher watcher = new DirectoryWatcher(directories,
+                settings.getLong("watchQuietMillis", DirectoryWatcher.defaultQuietMillis));
+        FtpsSessionPool sessionPool = new FtpsSessionPool(
+                settings.getLong("sessionIdleSeconds", FtpsSessionPool.defaultIdleSeconds),
+                settings.getLong("sessionKeepaliveSeconds", FtpsSessionPool.defaultKeepaliveSeconds));
+        sessionFactory.setSessionPool(sessionPool);
+        int batchFiles = settings.getInt("watchBatchFiles", 1000);
+        RetryPolicy retryPolicy = new RetryPolicy(settings.getInt("retries", RetryPolicy.defaultRetries),
+                settings.getLong("retryBaseMillis", RetryPolicy.defaultBaseMillis),
+                settings.getLong("retryMaxMillis", RetryPolicy.defaultMaxMillis));
+        List<File> carried = new ArrayList<>(recovered);
+        JobJournal.Batch carriedBatch = null;
+        int rounds = 0;
+        try {
+            watcher.start();
+            output.println("{\"event\":\"watching\",\"directories\":"+files.size()+"}");
+            while(true) {
+                List<File> batch;
+                if(carried.isEmpty()) {
+                    batch = watcher.takeBatch(batchFiles);
+                } else {
+                    batch = carried;
+                    for(File file : watcher.pollBatch(batchFiles-batch.size())) {
+                        if(!batch.contains(file)) {
+                            batch.add(file);
+                        }
+                    }
+                }
+                JobJournal.Batch jobBatch = jobJournal != null
+                        ? jobJournal.begin(sessionFactory.getDestination(), batch) : null;
+                if(carriedBatch != null) {
+                    carriedBatch.end();
+                }
+                List<File> notUploaded = new ArrayList<>();
+                upload(sessionFactory, settings, batch, jobBatch, notUploaded);
+                carried = new ArrayList<>();
+                for(File file : notUploaded) {
+                    if(file.isFile()) {
+                        carried.add(file);
+                    }
+                }
+                if(carried.isEmpty()) {
+                    if(jobBatch != null) {
+                        jobBatch.end();
+                    }
+                    carriedBatch = null;
+                    rounds = 0;
+                    continue;
+                }
+                carriedBatch = jobBatch;
+                rounds++;
+                long backoff = retryPolicy.getBackoffMillis(rounds);
+                System.out.println(carried.size()+" file(s) not uploaded, trying again in "+backoff+" ms.");
+                Thread.sleep(backoff);
+            }
+        } catch(IOException e) {
+            e.printStackTrace();
+            printError("Could not watch directories: "+e.getMessage());
+            return exitFailed;
+        } catch(InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return exitFailed;
+        } finally {
+            watcher.stop();
+            sessionPool.close();
+        }
+    }
+
+    /**
+     * Opens a session and uploads a batch of files with an {@link UploadEngine},
+     * then writes the result of every file and of the batch as JSON lines.
+     * @param sessionFactory    {@link FtpsSessionFactory} of the server.
+     * @param settings          {@link UploadSettings} of the program.
+     * @param batch             {@link File}s to upload.
+     * @param jobBatch          {@link JobJournal.Batch} the files were already begun in, or null
+     *                          for the {@link UploadEngine} to begin and end one itself.
+     * @param notUploaded       {@link List} the files that failed or were not uploaded are added to,
+     *                          every file of the batch if no session could be opened, or null.
+     * @return                  True if every file was uploaded.
+     */
+    private boolean upload(FtpsSessionFactory sessionFactory, UploadSettings settings, List<File> batch,
+                           JobJournal.Batch jobBatch, List<File> notUploaded) {
+        long timeStart = System.currentTimeMillis();
+        long fullHandshakes = sessionFactory.getHandshakeStats().getFullHandshakes();
+        long resumedHandshakes = sessionFactory.getHandshakeStats().getResumedHandshakes();
+        boolean fileStored = false;
+        String message;
+        UploadEngine uploadEngine = null;
+        try {
+            UploaderFtpsClient ftp = sessionFactory.openSession();
+            boolean reusable = false;
+            try {
+                uploadEngine = new UploadEngine(sessionFactory, batch, settings.getInt("connections", 1),
+                        newUploadListener(), settings);
+                uploadEngine.setJobJournal(jobJournal);
+                uploadEngine.setJobBatch(jobBatch);
+                fileStored = uploadEngine.upload(ftp);
+                reusable = true;
+            } finally {
+                sessionFactory.releaseSession(ftp, reusable);
+            }
+            message = fileStored ? "Upload succeeded." : "FTP file upload failed.";
+        } catch(IOException e) {
+            e.printStackTrace();
+            message = e.getMessage() != null ? e.getMessage() : "Error encountered during file upload.";
+        }
+        int filesFailed = 0;
+        if(uploadEngine == null && notUploaded != null) {
+            notUploaded.addAll(batch);
+        }
+        if(uploadEngine != null) {
+            for(FileResult result : uploadEngine.getResults()) {
+                if(result.getStatus() == FileResult.Status.FAILED) {
+                    filesFailed++;
+                }
+                if(notUploaded != null && (result.getStatus() == FileResult.Status.FAILED
+                        || result.getStatus() == FileResult.Status.NOT_UPLOADED)) {
+                    notUploaded.add(result.getFile());
+                }
+                output.println("{\"event\":\"fileResult\",\"path\":"+quote(result.getFile().getAbsolutePath())
+                        +",\"status\":\""+result.getStatus().name().toLowerCase()+"\""
+                        +",\"attempts\":"+result.getAttempts()
+                        +",\"message\":"+quote(result.getMessage())+"}");
+            }
+        }
+        HandshakeStats handshakeStats = sessionFactory.getHandshakeStats();
+        output.println("{\"event\":\"result\",\"succeeded\":"+fileStored
+                +",\"files\":"+batch.size()
+                +",\"filesStored\":"+(uploadEngine != null ? uploadEngine.getFilesStored() : 0)
+                +",\"filesSkipped\":"+(uploadEngine != null ? uploadEngine.getFilesSkipped() : 0)
+                +",\"filesFailed\":"+filesFailed
+                +",\"bytesUploaded\":"+(uploadEngine != null ? uploadEngine.getBytesUploaded() : 0)
+                +",\"bytesTotal\":"+(uploadEngine != null ? uploadEngine.getBytesTotal() : 0)
+                +",\"millis\":"+(System.currentTimeMillis()-timeStart)
+                +",\"fullHandshakes\":"+(handshakeStats.getFullHandshakes()-fullHandshakes)
+                +",\"resumedHandshakes\":"+(handshakeStats.getResumedHandshakes()-resumedHandshakes)
+                +",\"message\":"+quote(message)+"}");
+        metricsExporter.writeFile();
+        return fileStored;
+    }
+
+    /**
+     * Returns a new {@link UploadListener} that writes every update as a JSON line to stdout.
+     * @return  {@link UploadListener} for the command line.
+     */
+    private UploadListener newUploadListener() {
+        return new UploadListener() {
+            @Override
+            public void fileStarted(File file) {
+                output.println("{\"event\":\"file\",\"path\":"+quote(file.getAbsolutePath())
+                        +",\"size\":"+file.length()+"}");
+            }
+
+            @Override
+            public void progressChanged(long bytesUploaded, long bytesTotal) {
+                output.println("{\"event\":\"progress\",\"bytesUploaded\":"+bytesUploaded
+                        +",\"bytesTotal\":"+bytesTotal+"}");
+            }
+
+            @Override
+            public void throughputChanged(double bytesPerSecond, long secondsRemaining) {
+                output.println(String.format(Locale.ROOT,
+                        "{\"event\":\"throughput\",\"bytesPerSecond\":%.0f,\"secondsRemaining\":%d}",
+                        bytesPerSecond, secondsRemaining));
+            }
+        };
+    }
+
+    /**
+     * Writes an error as a JSON line to stdout.
+     * @param message   Message of the error.
+     */
+    private void printError(String message) {
+        output.println("{\"event\":\"error\",\"message\":"+quote(message)+"}");
+    }
+
+    /**
+     * Prints how to use the command line to stderr.
+     */
+    private void printUsage() {
+        System.err.println("Usage: java -jar AutoUploadFiles.jar "+option+" [--name=value]... [--password-stdin]"
+                +" [--verbose] [--watch] [--] file... [-]");
+        System.err.println("  --hostname=, --port=, --username=, --uploadPath=, --connections=");
+        System.err.println("      FTP values, default to the values saved in "+UploadSettings.fileName);
+        System.err.println("  --password=        Password, or set "+passwordVariable+" or use --password-stdin");
+        System.err.println("  --password-stdin   Read the password from the first line of stdin");
+        System.err.println("  --<setting>=       Any setting of "+UploadSettings.fileName+", such as --segments=4");
+        System.err.println("  --verbose          Print FTP commands and replies to stderr");
+        System.err.println("  --watch            Watch the given directories and upload new files in batches");
+        System.err.println("  -                  Read more file paths from stdin, one per line");
+    }
+
+    /**
+     * Returns a {@link String} as a JSON string literal.
+     * @param value {@link String} to quote.
+     * @return      Quoted and escaped {@link String}, or null if the value is null.
+     */
+    private static String quote(String value) {
+        if(value == null) {
+            return "null";
+        }
+        StringBuilder quoted = new StringBuilder(value.length()+2);
+        quoted.append('"');
+        for(int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if(c == '"' || c == '\\') {
+                quoted.append('\\').append(c);
+            } else if(c < 0x20) {
+                quoted.append(String.format("\\u%04x", (int) c));
+            } else {
+                quoted.append(c);
+            }
+        }
+        return quoted.append('"').toString();
+    }
+}
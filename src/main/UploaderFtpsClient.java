@@ -0,0 +1,461 @@
+package main;
+
+import org.apache.commons.net.ProtocolCommandListener;
+import org.apache.commons.net.ftp.FTPReply;
+import org.apache.commons.net.ftp.FTPSClient;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSocket;
+import java.io.IOException;
+import java.net.Inet6Address;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.util.ArrayList;
+
+/**
+ * {@link FTPSClient} used for every connection of the program.
+ * Creates a new SSL data socket for every transfer that resumes the SSL session
+ * of the control connection, counts full and resumed handshakes in {@link HandshakeStats},
+ * and gives the {@link ChannelTransfer} access to the data socket of a transfer.
+ * Remembers its console listener and the configuration it was set up with,
+ * so that a session kept by the {@link FtpsSessionPool} can be attached to the next run.
+ * Also remembers whether the deflate transfer mode ("MODE Z") is on, which
+ * the Apache Commons Net library does not support itself.
+ * If {@link UploadMetrics} are set, times the phases of connecting, logging in,
+ * and of every data connection, and counts the reply codes of the server.
+ * If a {@link TransferPipeline} is set and the transfer is marked as pipelined, the "PASV"
+ * of the next transfer is sent as soon as the data connection of the transfer is closed,
+ * before its reply is read, and the next transfer is prepared while the server finishes
+ * the current one. The reply to "PASV" then arrives together with the reply of the transfer,
+ * saving a round trip per file.
+ */
+public class UploaderFtpsClient extends FTPSClient {
+    private ProtocolCommandListener commandListener;
+    private String configuration;
+    private final SSLContext sslContext;
+    private HandshakeStats handshakeStats;
+    private boolean dataProtected;
+    private boolean deflate;
+    private UploadMetrics metrics;
+    private long connectNanos;
+    private long controlHandshakeNanos;
+    private long transferNanos;
+    private TransferPipeline transferPipeline;
+    private boolean transferPipelined;
+    private boolean passivePipelining;
+    private String preparedPassiveReply;
+
+    /**
+     * Next transfers of a connection, as far as they are known while a transfer finishes.
+     */
+    public interface TransferPipeline {
+        /**
+         * Called once the data connection of a transfer is closed, before its reply is read.
+         * @return  True if another transfer follows right after the reply, so that
+         *          its data connection can be requested at once.
+         */
+        boolean nextTransferFollows();
+
+        /**
+         * Called while the reply of a transfer is awaited, after its data connection is
+         * closed and the data connection of the next transfer is requested.
+         */
+        void prepareNextTransfer();
+    }
+
+    /**
+     * Constructor for {@link UploaderFtpsClient}.
+     * @param isImplicit    Implicit or explicit connection.
+     * @param sslContext    {@link SSLContext} of the control and data connections.
+     *                      Clients sharing one can resume each other's sessions.
+     */
+    public UploaderFtpsClient(boolean isImplicit, SSLContext sslContext) {
+        super(isImplicit, sslContext);
+        this.sslContext = sslContext;
+        this.handshakeStats = null;
+        this.dataProtected = false;
+        this.deflate = false;
+        this.metrics = null;
+        this.connectNanos = 0;
+        this.controlHandshakeNanos = 0;
+        this.transferNanos = 0;
+        this.transferPipeline = null;
+        this.transferPipelined = false;
+        this.passivePipelining = true;
+        this.preparedPassiveReply = null;
+        this.commandListener = null;
+        this.configuration = null;
+    }
+
+    /**
+     * Replaces the listener that FTP commands and replies are printed to.
+     * @param commandListener   {@link ProtocolCommandListener} of the console, or null for none.
+     */
+    public void setCommandListener(ProtocolCommandListener commandListener) {
+        if(this.commandListener != null) {
+            removeProtocolCommandListener(this.commandListener);
+        }
+        this.commandListener = commandListener;
+        if(commandListener != null) {
+            addProtocolCommandListener(commandListener);
+        }
+    }
+
+    /**
+     * Sets the configuration this session was set up with, as returned by
+     * {@link FtpsSessionFactory}.getConfiguration().
+     * @param configuration {@link String} of the configuration.
+     */
+    public void setConfiguration(String configuration) {
+        this.configuration = configuration;
+    }
+
+    /**
+     * Returns the configuration this session was set up with.
+     * @return  {@link String} of the configuration, or null if it was not configured yet.
+     */
+    public String getConfiguration() {
+        return configuration;
+    }
+
+    /**
+     * Switches between the deflate transfer mode ("MODE Z") and the stream mode ("MODE S").
+     * The command is only sent if the mode changes. In deflate mode, the caller
+     * writes a zlib stream to the data connection, such as a {@link DeflatePipeline} does.
+     * @param deflate       True for "MODE Z", false for "MODE S".
+     * @throws IOException  If the server refuses the mode.
+     */
+    public void setDeflate(boolean deflate) throws IOException {
+        if(deflate == this.deflate) {
+            return;
+        }
+        if(!FTPReply.isPositiveCompletion(sendCommand("MODE", deflate ? "Z" : "S"))) {
+            throw new IOException("FTP server refused transfer mode: "+getReplyString().trim());
+        }
+        this.deflate = deflate;
+    }
+
+    /**
+     * Opens a data connection and sends the command for it, such as "STOR" or "APPE".
+     * Sends "REST" first if a restart offset is set.
+     * The caller writes to the returned socket, closes it, and then
+     * calls completePendingCommand() to read the reply of the transfer.
+     * @param command       FTP command to send over the control connection.
+     * @param remote        Name of the file on the FTP server.
+     * @return              Connected data {@link Socket}, or null if the server refused the command.
+     * @throws IOException  If thrown by FTP client command functions.
+     */
+    public Socket openDataConnection(String command, String remote) throws IOException {
+        return _openDataConnection_(command, remote);
+    }
+
+    /**
+     * Connects to the FTP server by its hostname, which the TLS session cache needs.
+     * If metrics are set, resolves the hostname first to time it, which leaves the address
+     * in the cache of the JVM for the connect, and remembers when the TCP connect starts.
+     * @param hostname      Hostname of the FTP server.
+     * @param port          Port of the FTP server.
+     * @throws IOException  If the hostname cannot be resolved or the server cannot be reached.
+     */
+    @Override
+    public void connect(String hostname, int port) throws IOException {
+        if(metrics != null) {
+            long start = System.nanoTime();
+            InetAddress.getByName(hostname);
+            metrics.record(UploadMetrics.Phase.DNS, start);
+        }
+        connectNanos = System.nanoTime();
+        super.connect(hostname, port);
+    }
+
+    /**
+     * Reads the welcome reply, and sends "AUTH TLS" and negotiates TLS on the control connection.
+     * Times the TCP connect before, and the greeting apart from the handshake.
+     * @throws IOException  If thrown by FTP client command functions or the handshake fails.
+     */
+    @Override
+    protected void _connectAction_() throws IOException {
+        long start = System.nanoTime();
+        if(metrics != null && connectNanos != 0) {
+            metrics.recordNanos(UploadMetrics.Phase.CONNECT, start-connectNanos);
+        }
+        controlHandshakeNanos = 0;
+        passivePipelining = true;
+        preparedPassiveReply = null;
+        super._connectAction_();
+        if(metrics != null) {
+            metrics.recordNanos(UploadMetrics.Phase.GREETING, System.nanoTime()-start-controlHandshakeNanos);
+        }
+    }
+
+    /**
+     * Negotiates TLS on the control connection and counts and times the handshake.
+     * @throws IOException  If the handshake fails.
+     */
+    @Override
+    protected void sslNegotiation() throws IOException {
+        long start = System.currentTimeMillis();
+        long startNanos = System.nanoTime();
+        super.sslNegotiation();
+        controlHandshakeNanos = System.nanoTime()-startNanos;
+        if(metrics != null) {
+            metrics.recordNanos(UploadMetrics.Phase.TLS_CONTROL, controlHandshakeNanos);
+        }
+        recordHandshake((SSLSocket) _socket_, start);
+    }
+
+    /**
+     * Logs in with "USER" and "PASS" and times it.
+     * @param username      Username for the FTP server login.
+     * @param password      Password for the FTP server login.
+     * @return              True if the login succeeded.
+     * @throws IOException  If thrown by FTP client command functions.
+     */
+    @Override
+    public boolean login(String username, String password) throws IOException {
+        long start = System.nanoTime();
+        boolean loggedIn = super.login(username, password);
+        if(metrics != null) {
+            metrics.record(UploadMetrics.Phase.LOGIN, start);
+        }
+        return loggedIn;
+    }
+
+    /**
+     * Reads the reply of a transfer once its data connection is closed.
+     * If a {@link TransferPipeline} is set, the transfer is marked as pipelined and another transfer
+     * follows, sends "PASV" for it first and prepares it while the reply is awaited, then reads
+     * the reply to "PASV" as well. The mark is cleared either way.
+     * The reply code and string are those of the transfer either way.
+     * Times the transfer since the data connection was opened, and the wait for the reply.
+     * @return              True if the transfer succeeded.
+     * @throws IOException  If thrown by FTP client command functions.
+     */
+    @Override
+    public boolean completePendingCommand() throws IOException {
+        long start = System.nanoTime();
+        long opened = transferNanos;
+        transferNanos = 0;
+        boolean pipelined = false;
+        boolean asked = transferPipelined;
+        transferPipelined = false;
+        if(transferPipeline != null && asked) {
+            if(transferPipeline.nextTransferFollows() && canPipelinePassive()) {
+                String message = "PASV\r\n";
+                _controlOutput_.write(message);
+                _controlOutput_.flush();
+                fireCommandSent("PASV", message);
+                pipelined = true;
+            }
+            transferPipeline.prepareNextTransfer();
+        }
+        boolean completed = super.completePendingCommand();
+        if(pipelined) {
+            completed = readPipelinedPassiveReply(completed);
+        }
+        if(metrics != null && opened != 0) {
+            metrics.recordNanos(UploadMetrics.Phase.TRANSFER, start-opened);
+            metrics.record(UploadMetrics.Phase.COMPLETE, start);
+        }
+        return completed;
+    }
+
+    /**
+     * Returns whether "PASV" can be sent before the reply of a transfer: only in passive mode
+     * over IPv4 without "EPSV", and only while the server answered it in order so far.
+     * @return  True if the data connection of the next transfer can be requested early.
+     */
+    private boolean canPipelinePassive() {
+        return passivePipelining && getDataConnectionMode() == PASSIVE_LOCAL_DATA_CONNECTION_MODE
+                && !isUseEPSVwithIPv4() && !(getRemoteAddress() instanceof Inet6Address);
+    }
+
+    /**
+     * Reads the reply to a "PASV" sent before the reply of a transfer was read, and keeps it
+     * for the next data connection. Some servers answer "PASV" before the transfer is done,
+     * then the reply of the transfer is read after it. If the server refuses "PASV" sent this way,
+     * it is no longer sent early on this connection.
+     * @param completed     True if the reply read as the reply of the transfer was positive.
+     * @return              True if the transfer succeeded.
+     * @throws IOException  If thrown by FTP client command functions.
+     */
+    private boolean readPipelinedPassiveReply(boolean completed) throws IOException {
+        if(_replyCode == FTPReply.ENTERING_PASSIVE_MODE) {
+            String passiveReply = _replyLines.get(0);
+            completed = FTPReply.isPositiveCompletion(getReply());
+            preparedPassiveReply = passiveReply;
+            return completed;
+        }
+        int transferCode = _replyCode;
+        ArrayList<String> transferLines = new ArrayList<>(_replyLines);
+        String transferString = getReplyString();
+        if(getReply() == FTPReply.ENTERING_PASSIVE_MODE) {
+            preparedPassiveReply = _replyLines.get(0);
+        } else {
+            passivePipelining = false;
+            System.out.println("FTP server refused PASV sent before the reply of a transfer, "
+                    +"data connections are no longer requested early.");
+        }
+        _replyCode = transferCode;
+        _replyLines.clear();
+        _replyLines.addAll(transferLines);
+        _replyString = transferString;
+        _newReplyString = false;
+        return completed;
+    }
+
+    /**
+     * Enters passive mode for the next data connection. If the reply to a "PASV"
+     * sent early is kept, returns it instead of sending the command again.
+     * @return              Reply code of "PASV".
+     * @throws IOException  If thrown by FTP client command functions.
+     */
+    @Override
+    public int pasv() throws IOException {
+        String reply = preparedPassiveReply;
+        if(reply == null) {
+            return super.pasv();
+        }
+        preparedPassiveReply = null;
+        _replyCode = FTPReply.ENTERING_PASSIVE_MODE;
+        _replyLines.clear();
+        _replyLines.add(reply);
+        _newReplyString = true;
+        return _replyCode;
+    }
+
+    /**
+     * Sends a command and reads its reply. The reply to a "PASV" sent early is dropped,
+     * as it is only used if the data connection is opened right after the transfer before.
+     * @param command       FTP command to send.
+     * @param args          Arguments of the command, or null.
+     * @return              Reply code of the command.
+     * @throws IOException  If thrown by FTP client command functions.
+     */
+    @Override
+    public int sendCommand(String command, String args) throws IOException {
+        preparedPassiveReply = null;
+        return super.sendCommand(command, args);
+    }
+
+    /**
+     * Passes a reply of the server to the listeners, and counts its reply code.
+     * @param replyCode Reply code of the server.
+     * @param reply     Whole reply of the server.
+     */
+    @Override
+    protected void fireReplyReceived(int replyCode, String reply) {
+        if(metrics != null) {
+            metrics.recordReply(replyCode);
+        }
+        super.fireReplyReceived(replyCode, reply);
+    }
+
+    /**
+     * Sends "PROT" and remembers whether data connections are private.
+     * Private data connections are opened as plain sockets and the TLS layer is added
+     * in _openDataConnection_(String, String), so that it resumes the session
+     * of the control connection.
+     * @param prot          "C" for plain or "P" for private data connections.
+     * @throws IOException  If the server refuses the command.
+     */
+    @Override
+    public void execPROT(String prot) throws IOException {
+        super.execPROT(prot);
+        dataProtected = "P".equals(prot);
+        if(dataProtected) {
+            setSocketFactory(null);
+            setServerSocketFactory(null);
+        }
+    }
+
+    /**
+     * Opens a data connection and, if data connections are private, negotiates TLS on it.
+     * The TLS socket is layered over a {@link ControlPortSocket} under the host and port
+     * of the control connection, so the session cache of the shared {@link SSLContext}
+     * resumes the session of the control connection.
+     * @param command       FTP command to send over the control connection.
+     * @param arg           Argument of the command.
+     * @return              Connected data {@link Socket}, or null if the server refused the command.
+     * @throws IOException  If thrown by FTP client command functions or the handshake fails.
+     */
+    @Override
+    protected Socket _openDataConnection_(String command, String arg) throws IOException {
+        long startNanos = System.nanoTime();
+        Socket socket = super._openDataConnection_(command, arg);
+        if(metrics != null) {
+            metrics.record(UploadMetrics.Phase.DATA_CONNECTION, startNanos);
+        }
+        if(socket == null || !dataProtected) {
+            transferNanos = socket != null ? System.nanoTime() : 0;
+            return socket;
+        }
+        String host = _hostname_ != null ? _hostname_ : getRemoteAddress().getHostAddress();
+        int port = getRemotePort();
+        long start = System.currentTimeMillis();
+        startNanos = System.nanoTime();
+        SSLSocket sslSocket;
+        try {
+            sslSocket = (SSLSocket) sslContext.getSocketFactory()
+                    .createSocket(new ControlPortSocket(socket, port), host, port, true);
+            sslSocket.setUseClientMode(true);
+            sslSocket.startHandshake();
+        } catch(IOException e) {
+            socket.close();
+            throw e;
+        }
+        recordHandshake(sslSocket, start);
+        if(metrics != null) {
+            metrics.record(UploadMetrics.Phase.TLS_DATA, startNanos);
+        }
+        transferNanos = System.nanoTime();
+        return sslSocket;
+    }
+
+    /**
+     * Counts a finished handshake in the {@link HandshakeStats}, if any are set.
+     * @param socket    {@link SSLSocket} that finished its handshake.
+     * @param start     Time in milliseconds the handshake started.
+     */
+    private void recordHandshake(SSLSocket socket, long start) {
+        if(handshakeStats != null) {
+            handshakeStats.record(socket.getSession(), start);
+        }
+    }
+
+    /**
+     * Sets the {@link HandshakeStats} that the handshakes of this client are counted in.
+     * @param handshakeStats    {@link HandshakeStats} of the upload run, or null for none.
+     */
+    public void setHandshakeStats(HandshakeStats handshakeStats) {
+        this.handshakeStats = handshakeStats;
+    }
+
+    /**
+     * Sets the {@link TransferPipeline} that tells whether a transfer follows the current one,
+     * and prepares it while the current one finishes.
+     * @param transferPipeline  {@link TransferPipeline} of the connection, or null to run transfers one after another.
+     */
+    public void setTransferPipeline(TransferPipeline transferPipeline) {
+        this.transferPipeline = transferPipeline;
+    }
+
+    /**
+     * Marks whether the {@link TransferPipeline} is asked for the next transfer once the coming
+     * transfer completes. Only the last transfer before the next data connection should be marked,
+     * as any other command sent in between drops the reply to a "PASV" sent early.
+     * The mark is cleared when a transfer completes.
+     * @param transferPipelined True to ask the {@link TransferPipeline} at the end of the coming transfer.
+     */
+    public void setTransferPipelined(boolean transferPipelined) {
+        this.transferPipelined = transferPipelined;
+    }
+
+    /**
+     * Sets the {@link UploadMetrics} that the phases and replies of this client are recorded in.
+     * @param metrics   {@link UploadMetrics} of the program, or null for none.
+     */
+    public void setMetrics(UploadMetrics metrics) {
+        this.metrics = metrics;
+    }
+}
@@ -1,26 +1,16 @@
 package main;
 
 import javafx.application.Platform;
-import javafx.beans.property.SimpleStringProperty;
-import javafx.beans.property.StringProperty;
+import javafx.collections.FXCollections;
+import javafx.collections.ObservableList;
 import javafx.concurrent.Task;
 import javafx.scene.control.Alert;
-import org.apache.commons.net.PrintCommandListener;
-import org.apache.commons.net.ftp.FTP;
 import org.apache.commons.net.ftp.FTPReply;
 import org.apache.commons.net.ftp.FTPSClient;
-import org.apache.commons.net.io.CopyStreamAdapter;
 
-import javax.net.ssl.SSLSession;
-import javax.net.ssl.SSLSessionContext;
-import javax.net.ssl.SSLSocket;
 import java.io.*;
-import java.lang.reflect.Field;
-import java.lang.reflect.Method;
-import java.net.Socket;
-import java.util.Iterator;
 import java.util.List;
-import java.util.Locale;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
  * An extension of JavaFX's {@link Task} to be run in a new thread separate from
@@ -30,6 +20,7 @@ import java.util.Locale;
  * for the {@link AutoUploadFiles}, whether successful or failed.
  */
 public class UploaderTask extends Task<UploaderTaskResult> {
+    private static final int consoleBufferSize = 1 << 20;
     private AutoUploadFiles autoUploadFiles;
     private String hostname;
     private int port;
@@ -37,9 +28,14 @@ public class UploaderTask extends Task<UploaderTaskResult> {
     private String password;
     private String uploadPath;
     private List<File> files;
-    private File currentFile;
-    private FTPSClient ftp;
-    private StringProperty stringProperty;
+    private int connections;
+    private UploaderFtpsClient ftp;
+    private UploadEngine uploadEngine;
+    private TranscriptList transcript;
+    private ConsoleBuffer consoleBuffer;
+    private Runnable consoleDrain;
+    private ObservableList<File> queuedFiles;
+    private AtomicBoolean queueRefreshPending;
 
     /**
      * Empty constructor for {@link UploaderTask}. Most values are set to empty non-null,
@@ -53,19 +49,33 @@ public class UploaderTask extends Task<UploaderTaskResult> {
         this.password = "";
         this.uploadPath = "";
         this.files = null;
+        this.connections = 1;
         this.ftp = null;
-        this.currentFile = null;
-        this.stringProperty = new SimpleStringProperty("");
+        this.uploadEngine = null;
+        this.transcript = new TranscriptList(new TranscriptLog(TranscriptLog.defaultLineCap));
+        this.consoleBuffer = null;
+        this.queuedFiles = FXCollections.observableArrayList();
+        this.queueRefreshPending = new AtomicBoolean(false);
+        this.consoleDrain = () -> {
+            String text = consoleBuffer.drain();
+            if(!text.isEmpty()) {
+                appendTranscript(text);
+            }
+        };
     }
 
     /**
      * Constructor for {@link UploaderTask}, calls empty constructor,
-     * then sets provided {@link AutoUploadFiles}.
+     * then sets provided {@link AutoUploadFiles} and the number of
+     * console lines kept in memory from its settings.
      * @param autoUploadFiles AutoUploadFiles class of the program.
      */
     public UploaderTask(AutoUploadFiles autoUploadFiles) {
         this();
         this.autoUploadFiles = autoUploadFiles;
+        int transcriptLines = new UploadSettings(autoUploadFiles.getProperties())
+                .getInt("transcriptLines", TranscriptLog.defaultLineCap);
+        this.transcript = new TranscriptList(new TranscriptLog(transcriptLines));
     }
 
     /**
@@ -78,9 +88,10 @@ public class UploaderTask extends Task<UploaderTaskResult> {
      * @param password      Password for the FTP server login.
      * @param uploadPath    Path on FTP server to upload the file(s) to.
      * @param files         File(s) to upload to FTP server.
+     * @param connections   Number of connections to upload the file(s) over at the same time.
      */
-    public UploaderTask(AutoUploadFiles autoUploadFiles, String hostname, int port,
-                        String username, String password, String uploadPath, List<File> files) {
+    public UploaderTask(AutoUploadFiles autoUploadFiles, String hostname, int port, String username,
+                        String password, String uploadPath, List<File> files, int connections) {
         this(autoUploadFiles);
         this.hostname = hostname;
         this.port = port;
@@ -88,10 +99,12 @@ public class UploaderTask extends Task<UploaderTaskResult> {
         this.password = password;
         this.uploadPath = uploadPath;
         this.files = files;
+        this.connections = connections;
     }
 
     /**
      * Override of {@link Task}.call(), starts the task in the thread.
+     * Writes the {@link UploadMetrics} of the program once the upload is done.
      * @return Result of task to be shown in an alert by {@link AutoUploadFiles}.
      */
     @Override
@@ -103,29 +116,39 @@ public class UploaderTask extends Task<UploaderTaskResult> {
             e.printStackTrace();
             result = new UploaderTaskResult("Error encountered during file upload.", Alert.AlertType.ERROR);
         }
+        autoUploadFiles.exportMetrics();
         return result;
     }
 
     /**
      * Creates the FTP client instance and uploads the file(s) to the FTP server.
-     * Uses the designated FTP values and print stream.
+     * Uses the designated FTP values and print stream. If more than one connection
+     * is designated, the {@link UploadEngine} opens the additional connections.
+     * If the {@link FtpsSessionPool} holds an open connection to the same server and login,
+     * it is used instead of connecting and logging in again.
      * @return              {@link UploaderTaskResult} of the FTP file upload to be shown in an alert by {@link AutoUploadFiles}.
      * @throws IOException  If thrown by FTP client command functions.
      */
     private UploaderTaskResult executeFileUpload() throws IOException {
         UploaderTaskResult result;
-        long timeStart;
-        long timeEnd;
-        boolean fileStored = false;
-
-        ftp = getAltFtpsClient(false);
 
+        UploadSettings settings = new UploadSettings(autoUploadFiles.getProperties());
+        FtpsSessionFactory sessionFactory = new FtpsSessionFactory(hostname, port, username, password, uploadPath);
+        sessionFactory.setSettings(settings);
+        sessionFactory.setSessionPool(autoUploadFiles.getSessionPool());
+        sessionFactory.setBandwidthLimiter(autoUploadFiles.getBandwidthLimiter());
+        sessionFactory.setMetrics(autoUploadFiles.getMetrics());
         PrintStream printStream = newPrintStream();
         autoUploadFiles.redirectOutput(printStream);
-        ftp.addProtocolCommandListener(new PrintCommandListener(printStream, true));
-        ftp.setCopyStreamListener(newCopyStreamAdapter());
+        sessionFactory.setPrintStream(printStream);
 
         updateTitle("Connecting to FTP server...");
+        ftp = sessionFactory.borrowSession();
+        if(ftp != null) {
+            System.out.println("Reusing open connection to "+sessionFactory.getSessionKey()+".");
+            return uploadFiles(sessionFactory, settings);
+        }
+        ftp = sessionFactory.newClient();
         ftp.connect(hostname, port);
         if(!FTPReply.isPositiveCompletion(ftp.getReplyCode())) {
             result = new UploaderTaskResult("Could not connect to FTP server.", Alert.AlertType.ERROR);
@@ -135,31 +158,8 @@ public class UploaderTask extends Task<UploaderTaskResult> {
                 result =  new UploaderTaskResult("Incorrect username/password.", Alert.AlertType.ERROR);
             } else {
                 updateTitle("Configuring FTP connection...");
-                ftp.setFileType(FTP.BINARY_FILE_TYPE);
-                ftp.setFileTransferMode(FTP.BINARY_FILE_TYPE);
-                ftp.execPBSZ(0);
-                ftp.execPROT("P");
-                ftp.enterLocalPassiveMode();
-                ftp.changeWorkingDirectory(uploadPath);
-                InputStream fileStream;
-                timeStart = System.currentTimeMillis();
-                for(Iterator<File> it = files.iterator(); it.hasNext();) {
-                    currentFile = it.next();
-                    if(!isCancelled()) {
-                        updateTitle("Uploading file \""+currentFile.getName()+"\"...");
-                        fileStream = new FileInputStream(currentFile);
-                        fileStored = ftp.storeFile(currentFile.getName(), fileStream);
-                        fileStream.close();
-                    }
-                    if(!fileStored) break;
-                }
-                timeEnd = System.currentTimeMillis();
-                if(fileStored) {
-                    updateTitle("Finished uploading to FTP server.");
-                    result = new UploaderTaskResult(getSuccessMessage(timeEnd-timeStart), Alert.AlertType.INFORMATION);
-                } else {
-                    result = new UploaderTaskResult("FTP file upload failed.", Alert.AlertType.ERROR);
-                }
+                sessionFactory.configure(ftp);
+                return uploadFiles(sessionFactory, settings);
             }
             ftp.logout();
         }
@@ -167,6 +167,46 @@ public class UploaderTask extends Task<UploaderTaskResult> {
         return result;
     }
 
+    /**
+     * Uploads the file(s) over the logged-in and configured connection with an {@link UploadEngine},
+     * then returns the connection to the {@link FtpsSessionPool}, or closes it if the upload
+     * was cancelled or broke off.
+     * @param sessionFactory    {@link FtpsSessionFactory} the connection was opened with.
+     * @param settings          {@link UploadSettings} of the program.
+     * @return                  {@link UploaderTaskResult} of the FTP file upload.
+     * @throws IOException      If thrown by FTP client command functions.
+     */
+    private UploaderTaskResult uploadFiles(FtpsSessionFactory sessionFactory, UploadSettings settings)
+            throws IOException {
+        UploaderTaskResult result;
+        long timeStart;
+        long timeEnd;
+        boolean fileStored;
+        boolean reusable = false;
+        uploadEngine = new UploadEngine(sessionFactory, files, connections, newUploadListener(), settings);
+        uploadEngine.setJobJournal(autoUploadFiles.getJobJournal());
+        try {
+            timeStart = System.currentTimeMillis();
+            fileStored = uploadEngine.upload(ftp);
+            timeEnd = System.currentTimeMillis();
+            reusable = !isCancelled();
+        } finally {
+            sessionFactory.releaseSession(ftp, reusable);
+        }
+        System.out.println(sessionFactory.getHandshakeStats());
+        String details = getResultDetails();
+        if(details != null) {
+            System.out.print(details);
+        }
+        if(fileStored) {
+            updateTitle("Finished uploading to FTP server.");
+            result = new UploaderTaskResult(getSuccessMessage(timeEnd-timeStart), Alert.AlertType.INFORMATION, details);
+        } else {
+            result = new UploaderTaskResult(getFailureMessage(), Alert.AlertType.ERROR, details);
+        }
+        return result;
+    }
+
     /**
      * Returns an {@link FTPSClient} instance as provided by the Apache Commons Net library.
      * @param isExplicit    Explicit or implicit connection.
@@ -184,82 +224,129 @@ public class UploaderTask extends Task<UploaderTaskResult> {
     }
 
     /**
-     * Returns an {@link FTPSClient} instance that creates a new SSL data socket for storeFile().
-     * @param isExplicit    Explicit or implicit connection.
-     * @return              {@link FTPSClient} with overridden _prepareDataSocket_().
+     * Returns a new {@link PrintStream} that writes UTF-8 into a {@link ConsoleBuffer}.
+     * The buffer is drained on the JavaFX Application Thread under {@link Platform}.runLater(),
+     * at most once for all bytes written since the previous drain,
+     * and the decoded text is appended to the {@link TranscriptList} of this uploader task at once.
+     * @return                              {@link PrintStream} into the {@link ConsoleBuffer}.
+     * @throws UnsupportedEncodingException Never, UTF-8 is always supported.
      */
-    private FTPSClient getAltFtpsClient(boolean isExplicit) {
-        return new FTPSClient(isExplicit) {
-            @Override
-            protected void _prepareDataSocket_(final Socket socket) throws IOException {
-                if (socket instanceof SSLSocket) {
-                    final SSLSession session = ((SSLSocket) _socket_).getSession();
-                    final SSLSessionContext context = session.getSessionContext();
-                    try {
-                        final Field sessionHostPortCache = context.getClass().getDeclaredField("sessionHostPortCache");
-                        sessionHostPortCache.setAccessible(true);
-                        final Object cache = sessionHostPortCache.get(context);
-                        final Method putMethod = cache.getClass().getDeclaredMethod("put", Object.class, Object.class);
-                        putMethod.setAccessible(true);
-                        final Method getHostMethod = socket.getClass().getDeclaredMethod("getHost");
-                        getHostMethod.setAccessible(true);
-                        Object host = getHostMethod.invoke(socket);
-                        final String key = String.format("%s:%s", host, String.valueOf(socket.getPort())).toLowerCase(Locale.ROOT);
-                        putMethod.invoke(cache, key, session);
-                    } catch (Exception e) {
-                        e.printStackTrace();
-                    }
-                }
-            }
-        };
+    private PrintStream newPrintStream() throws UnsupportedEncodingException {
+        consoleBuffer = new ConsoleBuffer(consoleBufferSize, () -> Platform.runLater(consoleDrain));
+        return new PrintStream(consoleBuffer, true, "UTF-8");
     }
 
     /**
-     * Returns a new {@link PrintStream} that updates the {@link StringProperty}
-     * of this uploader task upon calling the write(int) function.
-     * @return  {@link PrintStream} with overridden write(int).
+     * Returns a new {@link UploadListener} that updates the Title, Progress, and Message properties
+     * of this uploader task as the {@link UploadEngine} uploads the batch.
+     * The Message property shows the throughput and the time remaining.
+     * @return  {@link UploadListener} that forwards updates to this uploader task.
      */
-    private PrintStream newPrintStream() {
-        return new PrintStream(new OutputStream() {
+    private UploadListener newUploadListener() {
+        return new UploadListener() {
             @Override
-            public void write(int b) {
-                updateString(String.valueOf((char) b));
+            public void fileStarted(File file) {
+                updateTitle("Uploading file \""+file.getName()+"\"...");
+                refreshQueuedFiles();
+            }
+
+            @Override
+            public void progressChanged(long bytesUploaded, long bytesTotal) {
+                updateProgress(bytesUploaded, bytesTotal);
             }
-        });
-    }
 
-    /**
-     * Returns a new {@link CopyStreamAdapter} that updates the Progress property
-     * of this uploader task upon calling the bytesTransferred(long, int, long) function.
-     * Called when {@link FTPSClient}.storeFile() stores an array of bytes to the FTP server.
-     * @return {@link CopyStreamAdapter} with overridden bytesTransferred(long, int, long).
-     */
-    private CopyStreamAdapter newCopyStreamAdapter() {
-        return new CopyStreamAdapter() {
             @Override
-            public void bytesTransferred(long totalBytesTransferred, int bytesTransferred, long streamSize) {
-                updateProgress(totalBytesTransferred, currentFile.length());
+            public void throughputChanged(double bytesPerSecond, long secondsRemaining) {
+                updateMessage(getThroughputMessage(bytesPerSecond, secondsRemaining));
             }
         };
     }
 
     /**
-     * Attempts to cancel the FTP upload by sending the "ABOR" command to the FTP server.
+     * Creates a message showing the throughput and time remaining of the upload.
+     * @param bytesPerSecond    Upload throughput in bytes per second.
+     * @param secondsRemaining  Estimated seconds remaining, or -1 if not known.
+     * @return                  {@link String} of the message, such as "1.25 MB/s, 0:03:20 remaining".
+     */
+    private String getThroughputMessage(double bytesPerSecond, long secondsRemaining) {
+        StringBuilder message = new StringBuilder();
+        if(bytesPerSecond >= 1024*1024) {
+            message.append(String.format("%.2f MB/s", bytesPerSecond/(1024*1024)));
+        } else {
+            message.append(String.format("%.1f KB/s", bytesPerSecond/1024));
+        }
+        if(secondsRemaining >= 0) {
+            message.append(String.format(", %d:%02d:%02d remaining",
+                    secondsRemaining/3600, (secondsRemaining/60)%60, secondsRemaining%60));
+        }
+        return message.toString();
+    }
+
+    /**
+     * Attempts to cancel the FTP upload by sending the "ABOR" command to the FTP server
+     * on every connection of the {@link UploadEngine}, or on the only connection
+     * if the upload has not started yet.
      * @return              Successful or failed "ABOR" command execution.
      * @throws IOException  If thrown by FTP client command function.
      */
     public boolean cancelFtpUpload() throws IOException {
+        if(uploadEngine != null) {
+            return uploadEngine.cancel();
+        }
         return ftp.abort();
     }
 
+    /**
+     * Creates a message to show in an alert if the FTP file upload failed,
+     * with the number of files that were stored, that failed, and that were not uploaded.
+     * @return  {@link String} of the message for the alert.
+     */
+    private String getFailureMessage() {
+        int stored = 0;
+        int failed = 0;
+        int notUploaded = 0;
+        List<FileResult> results = uploadEngine.getResults();
+        for(FileResult result : results) {
+            if(result.getStatus() == FileResult.Status.STORED || result.getStatus() == FileResult.Status.SKIPPED) {
+                stored++;
+            } else if(result.getStatus() == FileResult.Status.FAILED) {
+                failed++;
+            } else {
+                notUploaded++;
+            }
+        }
+        return "FTP file upload failed. "+stored+" of "+results.size()+" file(s) were uploaded, "
+                +failed+" failed and "+notUploaded+" were not uploaded.";
+    }
+
+    /**
+     * Returns one line for every file of the batch that was not uploaded at the first attempt.
+     * @return  {@link String} of the lines, or null if every file was uploaded at once.
+     */
+    private String getResultDetails() {
+        StringBuilder details = new StringBuilder();
+        for(FileResult result : uploadEngine.getResults()) {
+            if(result.getStatus() != FileResult.Status.SKIPPED
+                    && (result.getStatus() != FileResult.Status.STORED || result.getAttempts() > 1)) {
+                details.append(result).append('\n');
+            }
+        }
+        return details.length() > 0 ? details.toString() : null;
+    }
+
     /**
      * Creates a message to show in an alert if the FTP file upload was successful.
+     * Mentions the files skipped because they are unchanged on the FTP server, if any.
      * @param millis    Time length of FTP file upload in milliseconds.
      * @return          {@link String} of the message for the alert.
      */
     private String getSuccessMessage(long millis) {
         StringBuilder message = new StringBuilder();
-        int fileQuantity = files.size();
+        int fileQuantity = uploadEngine.getFilesStored();
+        int filesSkipped = uploadEngine.getFilesSkipped();
+        if(fileQuantity == 0 && filesSkipped > 0) {
+            return "All "+filesSkipped+" file(s) are unchanged on the FTP server, nothing was uploaded.";
+        }
         message.append(fileQuantity);
         if(fileQuantity == 1) {
             message.append(" file was successfully uploaded over ");
@@ -292,57 +379,66 @@ public class UploaderTask extends Task<UploaderTaskResult> {
                 message.append(" seconds.");
             }
         }
+        if(filesSkipped > 0) {
+            message.append(" ");
+            message.append(filesSkipped);
+            message.append(" unchanged file(s) were skipped.");
+        }
         return message.toString();
     }
 
     /**
-     * Returns the {@link StringProperty} contained in this uploader task.
-     * This is a manually implemented {@link StringProperty} and is not
-     * one of the {@link javafx.beans.property.Property} values automatically
-     * created for a standard {@link Task}, such as progress, title, or message.
-     * May be removed in the future and replaced with message, which will need
-     * its updateMessage(String) overridden to run under {@link Platform}.runLater().
-     * When previously used, message did not update with the console properly.
-     * @return  {@link StringProperty} of this uploader task.
+     * Returns the {@link TranscriptList} of the console of this uploader task.
+     * Holds the FTP commands and replies and anything printed to {@link System}.out,
+     * with a limited number of lines in memory and the older lines in a temporary file.
+     * @return  {@link TranscriptList} of this uploader task.
      */
-    public final StringProperty stringProperty() {
-        return stringProperty;
+    public final TranscriptList getTranscript() {
+        return transcript;
     }
 
     /**
-     * Returns the string contained in the {@link StringProperty}.
-     * @return  String in the {@link StringProperty}.
+     * Returns the files waiting to be uploaded, in the order they will be taken.
+     * Updated on the JavaFX Application Thread whenever a file is started or the queue is reordered.
+     * @return  {@link ObservableList} of the queued {@link File}s.
      */
-    public final String getString() {
-        return stringProperty.get();
+    public final ObservableList<File> getQueuedFiles() {
+        return queuedFiles;
     }
 
     /**
-     * Sets the value of the {@link StringProperty}, removing its previous value.
-     * @param set   The new value of the {@link StringProperty}.
+     * Returns the {@link UploadQueue} of the running upload.
+     * @return  {@link UploadQueue}, or null if the upload has not started.
      */
-    public final void setString(String set) {
-        stringProperty.set(set);
+    public UploadQueue getUploadQueue() {
+        UploadEngine engine = uploadEngine;
+        return engine != null ? engine.getQueue() : null;
     }
 
     /**
-     * Appends the value of the set parameter to the previous value of the {@link StringProperty}.
-     * @param set   The value to add to the {@link StringProperty}.
+     * Copies the order of the {@link UploadQueue} into the list of queued files
+     * under {@link Platform}.runLater(), at most once for all calls since the previous copy.
      */
-    public final void appendString(String set) {
-        setString(getString()+set);
+    public void refreshQueuedFiles() {
+        UploadQueue queue = getUploadQueue();
+        if(queue != null && queueRefreshPending.compareAndSet(false, true)) {
+            Platform.runLater(() -> {
+                queueRefreshPending.set(false);
+                queuedFiles.setAll(queue.snapshot());
+            });
+        }
     }
 
     /**
-     * Appends the value of the set parameter to the previous value of the {@link StringProperty}.
+     * Appends text to the {@link TranscriptList} of this uploader task.
      * Uses {@link Platform}.runLater() if there is information crossing threads.
-     * @param set   The value to add to the {@link StringProperty}.
+     * @param text  The text to add to the {@link TranscriptList}.
      */
-    public final void updateString(String set) {
+    public final void appendTranscript(String text) {
         if(Platform.isFxApplicationThread()) {
-            appendString(set);
+            transcript.append(text);
         } else {
-            Platform.runLater(() -> appendString(set));
+            Platform.runLater(() -> transcript.append(text));
         }
     }
 }
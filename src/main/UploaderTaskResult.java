@@ -4,11 +4,13 @@ import javafx.scene.control.Alert;
 
 /**
  * Container for information used for {@link AutoUploadFiles} to generate an {@link Alert}.
- * Contains a {@link String} message and an {@link javafx.scene.control.Alert.AlertType} for the icon.
+ * Contains a {@link String} message and an {@link javafx.scene.control.Alert.AlertType} for the icon,
+ * and optionally details, such as the result of every file that was not uploaded.
  */
 public class UploaderTaskResult {
     private String message;
     private Alert.AlertType alertType;
+    private String details;
 
     /**
      * Constructs a new {@link UploaderTaskResult} with the provided message and alert type.
@@ -16,8 +18,19 @@ public class UploaderTaskResult {
      * @param alertType Alert type icon to show in the alert.
      */
     public UploaderTaskResult(String message, Alert.AlertType alertType) {
+        this(message, alertType, null);
+    }
+
+    /**
+     * Constructs a new {@link UploaderTaskResult} with the provided message, alert type and details.
+     * @param message   Message to show in the alert.
+     * @param alertType Alert type icon to show in the alert.
+     * @param details   Details to show when the alert is expanded, or null for none.
+     */
+    public UploaderTaskResult(String message, Alert.AlertType alertType, String details) {
         this.message = message;
         this.alertType = alertType;
+        this.details = details;
     }
 
     /**
@@ -35,4 +48,12 @@ public class UploaderTaskResult {
     public Alert.AlertType getAlertType() {
         return alertType;
     }
+
+    /**
+     * Returns the details of the alert.
+     * @return  The details of the alert, or null if there are none.
+     */
+    public String getDetails() {
+        return details;
+    }
 }
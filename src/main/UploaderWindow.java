@@ -1,22 +1,34 @@
 package main;
 
-import javafx.application.Platform;
+import javafx.collections.ListChangeListener;
 import javafx.geometry.Insets;
 import javafx.geometry.Pos;
 import javafx.scene.Scene;
 import javafx.scene.control.Button;
+import javafx.scene.control.CheckBox;
 import javafx.scene.control.Label;
+import javafx.scene.control.ListCell;
+import javafx.scene.control.ListView;
 import javafx.scene.control.ProgressBar;
-import javafx.scene.control.TextArea;
+import javafx.scene.control.Spinner;
 import javafx.scene.layout.*;
 import javafx.stage.Stage;
 
+import java.io.File;
+
 /**
  * The window used to show the status of the FTP upload.
  * Features a status label, progress bar and percentage indicator,
+ * a throughput label with the estimated time remaining,
+ * a bandwidth limit in KB/s and a fairness check box that change the
+ * {@link BandwidthLimiter} of the program while uploading,
+ * a list of the queued files with buttons that move the selected file
+ * to the front or the back of the {@link UploadQueue},
  * a console showing the FTP commands being sent between this client
  * and the server, which can also show errors if debug was checked,
  * as well as cancel and close buttons.
+ * The console is a {@link ListView} of the lines of the {@link TranscriptList}
+ * of the {@link UploaderTask}, which only lays out the lines in view.
  * Status, progress, and percentage indicators are bound to their
  * respective {@link javafx.beans.property.Property} values
  * in the {@link UploaderTask} and are updated between {@link Thread}s.
@@ -24,10 +36,16 @@ import javafx.stage.Stage;
 public class UploaderWindow implements Runnable {
     private AutoUploadFiles autoUploadFiles;
     private Stage window;
-    private TextArea textArea;
+    private ListView<String> console;
     private Label statusLabel;
     private ProgressBar progressBar;
     private Label percentLabel;
+    private Label throughputLabel;
+    private Spinner<Integer> limitSpinner;
+    private CheckBox fairCheckBox;
+    private ListView<File> queueList;
+    private Button nextButton;
+    private Button lastButton;
     private Button cancelButton;
     private Button closeButton;
 
@@ -38,10 +56,16 @@ public class UploaderWindow implements Runnable {
     public UploaderWindow() {
         autoUploadFiles = null;
         window = new Stage();
-        textArea = newTextArea();
+        console = newConsole();
         statusLabel = new Label("");
         progressBar = new ProgressBar();
         percentLabel = new Label("");
+        throughputLabel = new Label("");
+        limitSpinner = newLimitSpinner();
+        fairCheckBox = newFairCheckBox();
+        queueList = newQueueList();
+        nextButton = newMoveButton("Upload next", true);
+        lastButton = newMoveButton("Upload last", false);
         cancelButton = newCancelButton();
         closeButton = newCloseButton();
     }
@@ -78,8 +102,16 @@ public class UploaderWindow implements Runnable {
         progressBar.progressProperty().bind(autoUploadFiles.getUploaderTask().progressProperty());
         percentLabel.textProperty().unbind();
         percentLabel.textProperty().bind(autoUploadFiles.getUploaderTask().progressProperty().multiply(100).asString("%.2f").concat("%"));
-        textArea.textProperty().unbind();
-        textArea.textProperty().bind(autoUploadFiles.getUploaderTask().stringProperty());
+        throughputLabel.textProperty().unbind();
+        throughputLabel.textProperty().bind(autoUploadFiles.getUploaderTask().messageProperty());
+        TranscriptList transcript = autoUploadFiles.getUploaderTask().getTranscript();
+        console.setItems(transcript);
+        transcript.addListener((ListChangeListener<String>) c -> console.scrollTo(transcript.size()-1));
+        window.setOnHidden(e -> transcript.close());
+        BandwidthLimiter bandwidthLimiter = autoUploadFiles.getBandwidthLimiter();
+        limitSpinner.getValueFactory().setValue((int) (bandwidthLimiter.getRate()/1024));
+        fairCheckBox.setSelected(bandwidthLimiter.isFair());
+        queueList.setItems(autoUploadFiles.getUploaderTask().getQueuedFiles());
 
         progressBar.setMaxWidth(Double.MAX_VALUE);
         VBox vboxProgressBar = new VBox(progressBar);
@@ -98,6 +130,10 @@ public class UploaderWindow implements Runnable {
         topGrid.add(statusLabel, 0, 0);
         topGrid.add(vboxProgressBar, 0, 1);
         topGrid.add(percentLabel, 1, 1);
+        topGrid.add(throughputLabel, 0, 2);
+        HBox hboxLimit = new HBox(6, new Label("Limit (KB/s, 0 = none):"), limitSpinner, fairCheckBox);
+        hboxLimit.setAlignment(Pos.CENTER_LEFT);
+        topGrid.add(hboxLimit, 0, 3);
 
         HBox hboxButtons = new HBox(6);
         hboxButtons.getChildren().addAll(cancelButton, closeButton);
@@ -107,8 +143,13 @@ public class UploaderWindow implements Runnable {
         BorderPane border = new BorderPane();
         border.setPadding(new Insets(10));
         border.setTop(topGrid);
-        border.setCenter(textArea);
-        border.setMargin(textArea, new Insets(10, 0, 10, 0));
+        border.setCenter(console);
+        border.setMargin(console, new Insets(10, 0, 10, 0));
+        HBox hboxMoveButtons = new HBox(6, nextButton, lastButton);
+        VBox vboxQueue = new VBox(6, new Label("Queued files:"), queueList, hboxMoveButtons);
+        VBox.setVgrow(queueList, Priority.ALWAYS);
+        border.setRight(vboxQueue);
+        border.setMargin(vboxQueue, new Insets(10, 0, 10, 10));
         border.setBottom(borderBottom);
 
         window.setScene(new Scene(border));
@@ -116,20 +157,97 @@ public class UploaderWindow implements Runnable {
     }
 
     /**
-     * Constructs a new {@link TextArea} for the console that
-     * listens for updates and scrolls to the bottom automatically.
-     * @return  {@link TextArea} for the console.
+     * Constructs a new {@link ListView} for the console. The lines are set
+     * when the window is constructed, and the console scrolls to the bottom
+     * once per update of the {@link TranscriptList}.
+     * @return  {@link ListView} for the console.
+     */
+    private ListView<String> newConsole() {
+        ListView<String> console = new ListView<>();
+        console.setEditable(false);
+        console.setFixedCellSize(20);
+        console.setStyle("-fx-font-family: monospace;");
+        return console;
+    }
+
+    /**
+     * Constructs a new {@link ListView} for the queued files, showing their names.
+     * The files are set when the window is constructed.
+     * @return  {@link ListView} of the queued files.
+     */
+    private ListView<File> newQueueList() {
+        ListView<File> queueList = new ListView<>();
+        queueList.setPrefWidth(220);
+        queueList.setFixedCellSize(20);
+        queueList.setCellFactory(list -> new ListCell<File>() {
+            @Override
+            protected void updateItem(File file, boolean empty) {
+                super.updateItem(file, empty);
+                setText(empty || file == null ? null : file.getName());
+            }
+        });
+        return queueList;
+    }
+
+    /**
+     * Returns a new {@link Button} that moves the selected queued file to the front
+     * or the back of the {@link UploadQueue} of the {@link UploaderTask}.
+     * @param text      Text of the button.
+     * @param toFront   True to move the file to the front, false to the back.
+     * @return          {@link Button} that reorders the queue.
+     */
+    private Button newMoveButton(String text, boolean toFront) {
+        Button moveButton = new Button(text);
+        moveButton.setOnAction(e -> {
+            File file = queueList.getSelectionModel().getSelectedItem();
+            UploadQueue queue = autoUploadFiles.getUploaderTask().getUploadQueue();
+            if(file != null && queue != null) {
+                if(toFront) {
+                    queue.moveToFront(file);
+                } else {
+                    queue.moveToBack(file);
+                }
+                autoUploadFiles.getUploaderTask().refreshQueuedFiles();
+            }
+        });
+        return moveButton;
+    }
+
+    /**
+     * Returns a new editable {@link Spinner} for the bandwidth limit in KB/s,
+     * which sets the rate of the {@link BandwidthLimiter} whenever it changes.
+     * Typed values are also taken when the spinner loses focus.
+     * @return  {@link Spinner} of the bandwidth limit.
+     */
+    private Spinner<Integer> newLimitSpinner() {
+        Spinner<Integer> limitSpinner = new Spinner<>(0, 10000000, 0, 100);
+        limitSpinner.setEditable(true);
+        limitSpinner.setPrefWidth(110);
+        limitSpinner.valueProperty().addListener((observable, oldValue, newValue) -> {
+            autoUploadFiles.getBandwidthLimiter().setRate(newValue*1024L);
+        });
+        limitSpinner.focusedProperty().addListener((observable, wasFocused, isFocused) -> {
+            if(!isFocused) {
+                try {
+                    limitSpinner.getValueFactory().setValue(Math.max(0, Integer.parseInt(limitSpinner.getEditor().getText().trim())));
+                } catch(NumberFormatException e) {
+                    limitSpinner.getEditor().setText(String.valueOf(limitSpinner.getValue()));
+                }
+            }
+        });
+        return limitSpinner;
+    }
+
+    /**
+     * Returns a new {@link CheckBox} that turns per-connection fairness of the {@link BandwidthLimiter} on or off.
+     * @return  {@link CheckBox} for fairness.
      */
-    private TextArea newTextArea() {
-        TextArea textArea = new TextArea("");
-        textArea.setWrapText(false);
-        textArea.setEditable(false);
-        textArea.textProperty().addListener(e -> {
-            Platform.runLater(() -> {
-                textArea.setScrollTop(Double.MAX_VALUE);
-            });
+    private CheckBox newFairCheckBox() {
+        CheckBox fairCheckBox = new CheckBox("Fair share per connection");
+        fairCheckBox.setOnAction(e -> {
+            autoUploadFiles.getBandwidthLimiter().setFair(fairCheckBox.isSelected());
         });
-        return textArea;
+        return fairCheckBox;
     }
 
     /**